@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.provider.ContactsContract.AggregationExceptions;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans the {@link AggregationExceptions} that join raw contacts into one contact or split
+ * them into several, writing as few exceptions as give the same result.
+ *
+ * <p>The provider keeps raw contacts together transitively, so joining n raw contacts only
+ * takes a chain of n - 1 {@link AggregationExceptions#TYPE_KEEP_TOGETHER} exceptions, plus
+ * one for each pair that is explicitly kept separate. Keeping apart is not transitive, so a
+ * split still needs an exception for each pair of raw contacts from different groups, but only
+ * one per pair: the provider stores a pair the same way in either order.</p>
+ */
+final class AggregationPlanner {
+
+    private AggregationPlanner() {
+    }
+
+    /**
+     * Plans joining the raw contacts into one contact.
+     *
+     * @param keepSeparatePairs the pairs of the raw contacts that have a
+     *     {@link AggregationExceptions#TYPE_KEEP_SEPARATE} exception, which has to be overridden,
+     *     or null if they are unknown
+     */
+    static ArrayList<ContentProviderOperation> planJoin(long[] rawContactIds,
+            List<long[]> keepSeparatePairs) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        if (keepSeparatePairs == null) {
+            // Any pair might be kept separate.
+            for (int i = 0; i < rawContactIds.length; i++) {
+                for (int j = i + 1; j < rawContactIds.length; j++) {
+                    operations.add(buildJoinOperation(rawContactIds[i], rawContactIds[j]));
+                }
+            }
+            return operations;
+        }
+        final Set<Pair> chain = new HashSet<>();
+        for (int i = 1; i < rawContactIds.length; i++) {
+            if (chain.add(new Pair(rawContactIds[i - 1], rawContactIds[i]))) {
+                operations.add(buildJoinOperation(rawContactIds[i - 1], rawContactIds[i]));
+            }
+        }
+        for (long[] pair : keepSeparatePairs) {
+            if (chain.add(new Pair(pair[0], pair[1]))) {
+                operations.add(buildJoinOperation(pair[0], pair[1]));
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Plans splitting raw contacts into one contact for each group.
+     *
+     * @param hardSplit whether to keep the groups apart, rather than let the provider aggregate
+     *     them automatically again
+     */
+    static ArrayList<ContentProviderOperation> planSplit(long[][] rawContactIdGroups,
+            boolean hardSplit) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < rawContactIdGroups.length; i++) {
+            for (int j = i + 1; j < rawContactIdGroups.length; j++) {
+                for (long rawContactId1 : rawContactIdGroups[i]) {
+                    for (long rawContactId2 : rawContactIdGroups[j]) {
+                        operations.add(
+                                buildSplitOperation(rawContactId1, rawContactId2, hardSplit));
+                    }
+                }
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * Construct a {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperation.
+     */
+    private static ContentProviderOperation buildJoinOperation(long rawContactId1,
+            long rawContactId2) {
+        return ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI)
+                .withValue(AggregationExceptions.TYPE, AggregationExceptions.TYPE_KEEP_TOGETHER)
+                .withValue(AggregationExceptions.RAW_CONTACT_ID1, rawContactId1)
+                .withValue(AggregationExceptions.RAW_CONTACT_ID2, rawContactId2)
+                .build();
+    }
+
+    /**
+     * Construct a {@link AggregationExceptions#TYPE_AUTOMATIC} or a
+     * {@link AggregationExceptions#TYPE_KEEP_SEPARATE} ContentProviderOperation if a hard split is
+     * requested.
+     */
+    private static ContentProviderOperation buildSplitOperation(long rawContactId1,
+            long rawContactId2, boolean hardSplit) {
+        return ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI)
+                .withValue(AggregationExceptions.TYPE, hardSplit
+                        ? AggregationExceptions.TYPE_KEEP_SEPARATE
+                        : AggregationExceptions.TYPE_AUTOMATIC)
+                .withValue(AggregationExceptions.RAW_CONTACT_ID1, rawContactId1)
+                .withValue(AggregationExceptions.RAW_CONTACT_ID2, rawContactId2)
+                .build();
+    }
+
+    /** An unordered pair of raw contacts. */
+    private static final class Pair {
+        final long low;
+        final long high;
+
+        Pair(long rawContactId1, long rawContactId2) {
+            low = Math.min(rawContactId1, rawContactId2);
+            high = Math.max(rawContactId1, rawContactId2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Pair && ((Pair) o).low == low && ((Pair) o).high == high;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (low ^ (low >>> 32)) + (int) (high ^ (high >>> 32));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+
+/**
+ * Receives the results of a join or split from {@link ContactSaveService}. While a join or
+ * split that takes several transactions runs, it shows its progress in a dialog that lets the
+ * user cancel it. Nothing is shown for joins and splits that take a single transaction.
+ */
+public class AggregationProgressReceiver extends ResultReceiver {
+    private final int mMessageId;
+    private Activity mActivity;
+    private ProgressDialog mDialog;
+
+    /**
+     * @param messageId the message of the progress dialog
+     */
+    public AggregationProgressReceiver(Activity activity, int messageId) {
+        super(new Handler(Looper.getMainLooper()));
+        mActivity = activity;
+        mMessageId = messageId;
+    }
+
+    @Override
+    protected void onReceiveResult(int resultCode, Bundle resultData) {
+        if (resultCode == ContactSaveService.AGGREGATION_PROGRESS) {
+            showProgress(resultData.getInt(ContactSaveService.EXTRA_APPLIED_COUNT),
+                    resultData.getInt(ContactSaveService.EXTRA_RESULT_COUNT));
+            return;
+        }
+        dismissDialog();
+        onFinished(resultCode, resultData);
+    }
+
+    /**
+     * Called on the main thread with the final result of the join or split. Also called after
+     * the receiver was {@link #detach detached}, so that the result can still be shown in a
+     * toast, but then the activity may be gone.
+     *
+     * @param resultCode e.g. {@link ContactSaveService#CONTACTS_LINKED} or
+     *         {@link ContactSaveService#AGGREGATION_CANCELLED}
+     */
+    protected void onFinished(int resultCode, Bundle resultData) {
+    }
+
+    /**
+     * Stops showing progress, e.g. because the activity is going away. The join or split goes
+     * on.
+     */
+    public void detach() {
+        dismissDialog();
+        mActivity = null;
+    }
+
+    private void showProgress(int appliedCount, int totalCount) {
+        if (mActivity == null || mActivity.isFinishing()) {
+            return;
+        }
+        if (mDialog == null) {
+            mDialog = new ProgressDialog(mActivity);
+            mDialog.setMessage(mActivity.getString(mMessageId));
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    mActivity.getString(android.R.string.cancel),
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            // The result arrives as AGGREGATION_CANCELLED once the current
+                            // transaction finished.
+                            ContactSaveService.cancelAggregation();
+                        }
+                    });
+            mDialog.show();
+        }
+        mDialog.setMax(totalCount);
+        mDialog.setProgress(appliedCount);
+    }
+
+    private void dismissDialog() {
+        if (mDialog != null) {
+            if (mDialog.isShowing()) {
+                mDialog.dismiss();
+            }
+            mDialog = null;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Second tier of the {@link ContactPhotoManager} cache. Keeps the compressed photo bytes in the
+ * app cache directory so that they survive the process, which lets a cold list render its
+ * photos without pulling the photo blobs from the provider again.
+ *
+ * <p>The cache consists of two files. {@code photos.dat} is an append-only sequence of records
+ * that is memory-mapped for reading:
+ * <pre>
+ *   int keyLength, byte[keyLength] key (UTF-8), int photoLength, byte[photoLength] photo
+ * </pre>
+ * {@code photos.idx} lists the live records, least recently used first:
+ * <pre>
+ *   int MAGIC, int FORMAT_VERSION, int entryCount, long dataLength,
+ *   entryCount * (long keyHash, long offset, int photoVersion, int recordLength)
+ * </pre>
+ * The index is only rewritten, atomically, by {@link #flush()}. Records that have been evicted
+ * or replaced stay in the data file until it grows past twice the size budget, at which point
+ * it is compacted. Every record repeats its key, so a hash collision or an index that is older
+ * than the data file can never return the wrong photo.
+ * </p>
+ *
+ * <p>All methods do disk I/O and must not be called on the UI thread.</p>
+ */
+final class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+
+    /** Returned by {@link #getVersion} if there is no entry for the key. */
+    public static final int NO_VERSION = -1;
+
+    private static final String DIRECTORY_NAME = "contact_photos";
+    private static final String DATA_FILE_NAME = "photos.dat";
+    private static final String INDEX_FILE_NAME = "photos.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x43504443; // "CPDC"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Photos larger than this fraction of the size budget are not worth evicting a whole
+     * screen of thumbnails for.
+     */
+    private static final int MAX_PHOTO_FRACTION = 8;
+
+    /**
+     * The data file is mapped in regions of this size, so that an append only remaps the last
+     * region. A region's mapping also covers the next region, for records that cross into it.
+     */
+    private static final long REGION_SIZE = 1024 * 1024;
+
+    private static final class Entry {
+        final long offset;
+        final int recordLength;
+        final int photoVersion;
+
+        Entry(long offset, int recordLength, int photoVersion) {
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.photoVersion = photoVersion;
+        }
+    }
+
+    private final Context mContext;
+    private final long mMaxBytes;
+    private File mDirectory;
+
+    /** Live entries by key hash, in LRU order. */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private boolean mOpenAttempted;
+    private RandomAccessFile mDataFile;
+    private FileChannel mDataChannel;
+    /** Mapped regions of the data file, by start offset. */
+    private final Map<Long, MappedByteBuffer> mDataRegions = new HashMap<>();
+    private long mDataLength;
+    private long mLiveBytes;
+    private boolean mIndexDirty;
+
+    public ContactPhotoDiskCache(Context context, long maxBytes) {
+        mContext = context;
+        mMaxBytes = maxBytes;
+    }
+
+    @VisibleForTesting
+    ContactPhotoDiskCache(File directory, long maxBytes) {
+        mContext = null;
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the disk cache key of a photo, given the key used by the memory caches (a photo
+     * id or a photo URI) and the requested extent.
+     */
+    public static String keyFor(Object photoKey, int requestedExtent) {
+        return photoKey + "@" + requestedExtent;
+    }
+
+    /**
+     * Returns the photo version stored with the key, or {@link #NO_VERSION} if it isn't cached.
+     */
+    public synchronized int getVersion(String key) {
+        if (!ensureOpen()) {
+            return NO_VERSION;
+        }
+        final Entry entry = mEntries.get(hash(key));
+        return entry == null ? NO_VERSION : entry.photoVersion;
+    }
+
+    /**
+     * Returns the cached photo bytes, or null if they are not cached or could not be read.
+     */
+    public synchronized byte[] get(String key) {
+        if (!ensureOpen()) {
+            return null;
+        }
+        final long hash = hash(key);
+        final Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        // Reading changes the LRU order.
+        mIndexDirty = true;
+        try {
+            final ByteBuffer record = mapRecord(entry);
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (record.getInt() != keyBytes.length) {
+                return null;
+            }
+            for (byte b : keyBytes) {
+                if (record.get() != b) {
+                    return null;
+                }
+            }
+            final byte[] photo = new byte[record.getInt()];
+            record.get(photo);
+            return photo;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read cached photo " + key, e);
+            removeEntry(hash);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the photo bytes and evicts the least recently used entries if that puts the cache
+     * over its size budget.
+     *
+     * @param photoVersion the version of the photo row the bytes came from, or 0 if the photo
+     * isn't versioned
+     */
+    public synchronized void put(String key, int photoVersion, byte[] photo) {
+        if (photo == null || photo.length == 0 || photo.length > mMaxBytes / MAX_PHOTO_FRACTION
+                || !ensureOpen()) {
+            return;
+        }
+        final long hash = hash(key);
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final int recordLength = 4 + keyBytes.length + 4 + photo.length;
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(keyBytes.length).put(keyBytes).putInt(photo.length).put(photo);
+        record.flip();
+
+        final Entry existing = mEntries.get(hash);
+        if (existing != null && existing.photoVersion == photoVersion
+                && existing.recordLength == recordLength && isRecord(existing, record)) {
+            // Refetched the same photo, e.g. one that is loaded by URI. Getting the entry has
+            // already marked it as used.
+            mIndexDirty = true;
+            return;
+        }
+        removeEntry(hash);
+        try {
+            long position = mDataLength;
+            while (record.hasRemaining()) {
+                position += mDataChannel.write(record, position);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cached photo " + key, e);
+            return;
+        }
+        mEntries.put(hash, new Entry(mDataLength, recordLength, photoVersion));
+        mDataLength += recordLength;
+        mLiveBytes += recordLength;
+        mIndexDirty = true;
+
+        trimToSize();
+        if (mDataLength > 2 * mMaxBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes the entry, e.g. because the photo row has changed.
+     */
+    public synchronized void remove(String key) {
+        if (ensureOpen()) {
+            removeEntry(hash(key));
+        }
+    }
+
+    /**
+     * Deletes all entries and the backing files.
+     */
+    public synchronized void clear() {
+        closeFiles();
+        mEntries.clear();
+        mLiveBytes = 0;
+        mDataLength = 0;
+        mIndexDirty = false;
+        final File directory = getDirectory();
+        if (directory != null) {
+            new File(directory, DATA_FILE_NAME).delete();
+            new File(directory, INDEX_FILE_NAME).delete();
+        }
+        mOpenAttempted = false;
+    }
+
+    /**
+     * Writes the index if entries have been added, removed or used since the last flush.
+     */
+    public synchronized void flush() {
+        if (!mIndexDirty || mDataChannel == null) {
+            return;
+        }
+        final File directory = getDirectory();
+        final File temp = new File(directory, INDEX_FILE_NAME + TEMP_SUFFIX);
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(mEntries.size());
+                out.writeLong(mDataLength);
+                for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+                    out.writeLong(e.getKey());
+                    out.writeLong(e.getValue().offset);
+                    out.writeInt(e.getValue().photoVersion);
+                    out.writeInt(e.getValue().recordLength);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(new File(directory, INDEX_FILE_NAME))) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            mIndexDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write photo cache index", e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by live entries.
+     */
+    public synchronized long size() {
+        return mLiveBytes;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    private File getDirectory() {
+        if (mDirectory == null && mContext != null) {
+            mDirectory = new File(mContext.getCacheDir(), DIRECTORY_NAME);
+        }
+        return mDirectory;
+    }
+
+    /**
+     * Opens the data file and reads the index the first time the cache is used. A missing or
+     * unreadable index starts the cache from scratch.
+     *
+     * @return whether the cache is usable
+     */
+    private boolean ensureOpen() {
+        if (mOpenAttempted) {
+            return mDataChannel != null;
+        }
+        mOpenAttempted = true;
+        final File directory = getDirectory();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            mDataFile = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+            mDataChannel = mDataFile.getChannel();
+            mDataLength = mDataChannel.size();
+            if (!readIndex(new File(directory, INDEX_FILE_NAME))) {
+                mEntries.clear();
+                mLiveBytes = 0;
+                mDataChannel.truncate(0);
+                mDataLength = 0;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open photo cache", e);
+            closeFiles();
+            return false;
+        }
+    }
+
+    private boolean readIndex(File indexFile) {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    return false;
+                }
+                final int count = in.readInt();
+                final long indexedDataLength = in.readLong();
+                if (indexedDataLength > mDataLength) {
+                    // The data file was truncated behind our back.
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    final long hash = in.readLong();
+                    final long offset = in.readLong();
+                    final int photoVersion = in.readInt();
+                    final int recordLength = in.readInt();
+                    if (offset < 0 || recordLength <= 0
+                            || offset + recordLength > indexedDataLength) {
+                        return false;
+                    }
+                    mEntries.put(hash, new Entry(offset, recordLength, photoVersion));
+                    mLiveBytes += recordLength;
+                }
+            } finally {
+                in.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read photo cache index", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns a buffer positioned at the start of the record, remapping the region of the data
+     * file that holds it if the record has been appended since the region was last mapped.
+     */
+    private ByteBuffer mapRecord(Entry entry) throws IOException {
+        final long end = entry.offset + entry.recordLength;
+        final long regionStart = entry.offset / REGION_SIZE * REGION_SIZE;
+        final long regionEnd = regionStart + 2 * REGION_SIZE;
+        if (end > regionEnd) {
+            // Larger than a region, map the record on its own.
+            return mDataChannel.map(FileChannel.MapMode.READ_ONLY, entry.offset,
+                    entry.recordLength);
+        }
+        MappedByteBuffer region = mDataRegions.get(regionStart);
+        if (region == null || regionStart + region.capacity() < end) {
+            region = mDataChannel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                    Math.min(mDataLength, regionEnd) - regionStart);
+            mDataRegions.put(regionStart, region);
+        }
+        final ByteBuffer record = region.duplicate();
+        record.limit((int) (end - regionStart));
+        record.position((int) (entry.offset - regionStart));
+        return record;
+    }
+
+    /** Returns whether the entry holds exactly the given record. */
+    private boolean isRecord(Entry entry, ByteBuffer record) {
+        try {
+            return mapRecord(entry).equals(record);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void removeEntry(long hash) {
+        final Entry entry = mEntries.remove(hash);
+        if (entry != null) {
+            mLiveBytes -= entry.recordLength;
+            mIndexDirty = true;
+        }
+    }
+
+    private void trimToSize() {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mLiveBytes > mMaxBytes && iterator.hasNext()) {
+            mLiveBytes -= iterator.next().recordLength;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Rewrites the data file with only the live records, keeping their LRU order.
+     */
+    private void compact() {
+        final File directory = getDirectory();
+        final File temp = new File(directory, DATA_FILE_NAME + TEMP_SUFFIX);
+        final LinkedHashMap<Long, Entry> compacted = new LinkedHashMap<>(64, 0.75f, true);
+        try {
+            final FileChannel out = new FileOutputStream(temp).getChannel();
+            try {
+                long position = 0;
+                for (Map.Entry<Long, Entry> e : mEntries.entrySet()) {
+                    final Entry entry = e.getValue();
+                    final ByteBuffer record = mapRecord(entry);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    compacted.put(e.getKey(),
+                            new Entry(position, entry.recordLength, entry.photoVersion));
+                    position += entry.recordLength;
+                }
+            } finally {
+                out.close();
+            }
+            closeFiles();
+            if (!temp.renameTo(new File(directory, DATA_FILE_NAME))) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot compact photo cache", e);
+            temp.delete();
+            clear();
+            return;
+        }
+        mEntries.clear();
+        mEntries.putAll(compacted);
+        mIndexDirty = true;
+        // Reopen the compacted file and persist the new offsets right away, so that an index
+        // pointing into the old file is never used with the new one.
+        try {
+            mDataFile = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+            mDataChannel = mDataFile.getChannel();
+            mDataLength = mDataChannel.size();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot reopen photo cache", e);
+            closeFiles();
+            return;
+        }
+        flush();
+    }
+
+    private void closeFiles() {
+        mDataRegions.clear();
+        mDataChannel = null;
+        if (mDataFile != null) {
+            try {
+                mDataFile.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            mDataFile = null;
+        }
+    }
+
+    /** 64-bit FNV-1a hash of the key. */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
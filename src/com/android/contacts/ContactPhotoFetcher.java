@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.net.TrafficStats;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.util.TrafficStatsTags;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads URI based photos (remote directory thumbnails, business photos, display photos, etc)
+ * on a bounded number of concurrent fetches.
+ *
+ * <p>Requests for a URI that is already queued or being read are merged into the pending fetch,
+ * so each URI is read once no matter how many views ask for it. HTTP fetches are limited per
+ * host, so a single slow server can't occupy every fetch slot, and connections time out instead
+ * of holding a slot forever.</p>
+ */
+final class ContactPhotoFetcher {
+    private static final String TAG = "ContactPhotoFetcher";
+
+    private static final int BUFFER_SIZE = 1024 * 16;
+
+    /** Default maximum number of fetches running at the same time. */
+    public static final int DEFAULT_MAX_FETCHES = 6;
+
+    /** Default maximum number of HTTP fetches running against the same host. */
+    public static final int DEFAULT_MAX_FETCHES_PER_HOST = 4;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+
+    /**
+     * Receives the outcome of a fetch. Called on the thread that performed the fetch.
+     */
+    public interface Callback {
+        /**
+         * @param bytes the photo bytes, or null if the photo could not be read
+         */
+        void onPhotoFetched(Uri uri, byte[] bytes);
+    }
+
+    /**
+     * A queued or running read of one URI, along with everyone waiting for it.
+     */
+    private final class Fetch implements Runnable {
+        final Uri uri;
+        /** The host to account the fetch against, or null if it isn't limited per host. */
+        final String host;
+        final List<Callback> callbacks = new ArrayList<>(1);
+
+        Fetch(Uri uri) {
+            this.uri = uri;
+            final String scheme = uri.getScheme();
+            host = ("http".equals(scheme) || "https".equals(scheme)) ? uri.getHost() : null;
+        }
+
+        @Override
+        public void run() {
+            byte[] bytes = null;
+            try {
+                bytes = read(uri);
+            } catch (final Exception | OutOfMemoryError ex) {
+                if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "Cannot load photo " + uri, ex);
+                }
+            }
+            if (bytes == null && Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Cannot load photo " + uri);
+            }
+            finish(this, bytes);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final String mUserAgent;
+    private final Executor mExecutor;
+    private final int mMaxFetches;
+    private final int mMaxFetchesPerHost;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    /** Guards the fields below. */
+    private final Object mLock = new Object();
+    /** Queued and running fetches by URI. */
+    private final Map<Uri, Fetch> mFetches = new HashMap<>();
+    /** Fetches waiting for a slot, oldest first. */
+    private final ArrayDeque<Fetch> mQueue = new ArrayDeque<>();
+    /** Number of running fetches per host. */
+    private final Map<String, Integer> mRunningPerHost = new HashMap<>();
+    private int mRunning;
+
+    private final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * @param executor runs the fetches. It must be able to run {@code maxFetches} tasks at the
+     * same time
+     */
+    public ContactPhotoFetcher(ContentResolver resolver, String userAgent, Executor executor,
+            int maxFetches) {
+        this(resolver, userAgent, executor, maxFetches, DEFAULT_MAX_FETCHES_PER_HOST,
+                DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    @VisibleForTesting
+    ContactPhotoFetcher(ContentResolver resolver, String userAgent, Executor executor,
+            int maxFetches, int maxFetchesPerHost, int connectTimeoutMillis,
+            int readTimeoutMillis) {
+        mResolver = resolver;
+        mUserAgent = userAgent;
+        mExecutor = executor;
+        mMaxFetches = maxFetches;
+        mMaxFetchesPerHost = maxFetchesPerHost;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Reads the photo at the URI and passes the bytes to the callback. If the URI is already
+     * being fetched, the callback is attached to that fetch instead of starting another one.
+     */
+    public void fetch(Uri uri, Callback callback) {
+        synchronized (mLock) {
+            Fetch fetch = mFetches.get(uri);
+            if (fetch == null) {
+                fetch = new Fetch(uri);
+                mFetches.put(uri, fetch);
+                mQueue.add(fetch);
+            }
+            fetch.callbacks.add(callback);
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Returns the number of distinct URIs queued or being read.
+     */
+    public int getPendingFetchCount() {
+        synchronized (mLock) {
+            return mFetches.size();
+        }
+    }
+
+    /**
+     * Starts queued fetches, oldest first, as long as there are free slots. Fetches for hosts
+     * that are at their limit are skipped until one of their fetches finishes.
+     */
+    private void scheduleLocked() {
+        final Iterator<Fetch> iterator = mQueue.iterator();
+        while (mRunning < mMaxFetches && iterator.hasNext()) {
+            final Fetch fetch = iterator.next();
+            if (fetch.host != null) {
+                final Integer running = mRunningPerHost.get(fetch.host);
+                if (running != null && running >= mMaxFetchesPerHost) {
+                    continue;
+                }
+                mRunningPerHost.put(fetch.host, running == null ? 1 : running + 1);
+            }
+            iterator.remove();
+            mRunning++;
+            mExecutor.execute(fetch);
+        }
+    }
+
+    private void finish(Fetch fetch, byte[] bytes) {
+        final List<Callback> callbacks;
+        synchronized (mLock) {
+            mFetches.remove(fetch.uri);
+            mRunning--;
+            if (fetch.host != null) {
+                final int running = mRunningPerHost.get(fetch.host) - 1;
+                if (running == 0) {
+                    mRunningPerHost.remove(fetch.host);
+                } else {
+                    mRunningPerHost.put(fetch.host, running);
+                }
+            }
+            // No more callbacks can be attached once the fetch is out of mFetches.
+            callbacks = fetch.callbacks;
+            scheduleLocked();
+        }
+        for (Callback callback : callbacks) {
+            callback.onPhotoFetched(fetch.uri, bytes);
+        }
+    }
+
+    /**
+     * Reads the whole photo, or returns null if there is nothing to read.
+     */
+    private byte[] read(Uri uri) throws IOException {
+        if (ContactPhotoManager.DEBUG) Log.d(TAG, "Loading " + uri);
+        final String scheme = uri.getScheme();
+        if ("http".equals(scheme) || "https".equals(scheme)) {
+            TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
+            final HttpURLConnection connection =
+                    (HttpURLConnection) new URL(uri.toString()).openConnection();
+            try {
+                connection.setConnectTimeout(mConnectTimeoutMillis);
+                connection.setReadTimeout(mReadTimeoutMillis);
+                // Include the user agent if it is specified.
+                if (!TextUtils.isEmpty(mUserAgent)) {
+                    connection.setRequestProperty("User-Agent", mUserAgent);
+                }
+                final InputStream is;
+                try {
+                    is = connection.getInputStream();
+                } catch (IOException e) {
+                    return null;
+                }
+                return readFully(is, connection.getContentLength());
+            } finally {
+                connection.disconnect();
+                TrafficStats.clearThreadStatsTag();
+            }
+        }
+        final InputStream is = mResolver.openInputStream(uri);
+        return is == null ? null : readFully(is, -1);
+    }
+
+    /**
+     * Reads and closes the stream. If the length is known up front the bytes are read straight
+     * into an array of that size, without going through an intermediate buffer.
+     */
+    private byte[] readFully(InputStream is, int contentLength) throws IOException {
+        try {
+            if (contentLength > 0) {
+                final byte[] bytes = new byte[contentLength];
+                int offset = 0;
+                int size;
+                while (offset < contentLength
+                        && (size = is.read(bytes, offset, contentLength - offset)) != -1) {
+                    offset += size;
+                }
+                if (offset == contentLength && is.read() == -1) {
+                    return bytes;
+                }
+                throw new IOException("Content-Length mismatch");
+            }
+            final byte[] buffer = mBuffer.get();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            int size;
+            while ((size = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, size);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
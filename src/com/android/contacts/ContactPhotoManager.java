@@ -33,22 +33,24 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.media.ThumbnailUtils;
-import android.net.TrafficStats;
 import android.net.Uri;
 import android.net.Uri.Builder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.provider.ContactsContract.Profile;
 import androidx.core.graphics.drawable.RoundedBitmapDrawable;
 import androidx.core.graphics.drawable.RoundedBitmapDrawableFactory;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.View;
@@ -56,9 +58,9 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.android.contacts.lettertiles.LetterTileDrawable;
+import com.android.contacts.util.BitmapPool;
 import com.android.contacts.util.BitmapUtil;
 import com.android.contacts.util.PermissionsUtil;
-import com.android.contacts.util.TrafficStatsTags;
 import com.android.contacts.util.UriUtils;
 import com.android.contactsbind.util.UserAgentGenerator;
 
@@ -66,19 +68,26 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronously loads contact photos and maintains a cache of photos.
@@ -564,6 +573,37 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
      */
     public abstract void preloadPhotosInBackground();
 
+    /**
+     * Hints at the thumbnails that are about to come on screen, closest first, so that they can
+     * be loaded and decoded ahead of time. This work has a lower priority than photos requested
+     * for views, and it continues while loading is paused. Each call replaces the previous hint:
+     * prefetches of photos that are no longer hinted at are dropped. Pass an empty array to stop
+     * prefetching.
+     */
+    public void prefetchThumbnails(long[] photoIds) {
+    }
+
+    /**
+     * Prints the state of the caches and the photo loading statistics, e.g. from
+     * {@link android.app.Activity#dump}.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+    }
+
+    /**
+     * Returns the state of the caches and the photo loading statistics as a bundle, e.g. for an
+     * instrumentation test to report with {@link android.app.Instrumentation#sendStatus}.
+     */
+    public Bundle getStats() {
+        return new Bundle();
+    }
+
+    /**
+     * Resets the photo loading statistics. The caches are left alone.
+     */
+    public void resetStats() {
+    }
+
     // ComponentCallbacks2
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
@@ -582,6 +622,26 @@ public abstract class ContactPhotoManager implements ComponentCallbacks2 {
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+    private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+    private static final String FETCHER_THREAD_NAME = "ContactPhotoFetcher";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default number of threads decoding photo bytes into bitmaps. One core is left to the UI
+     * thread, and more than four decoders just contend for memory bandwidth.
+     */
+    private static final int DEFAULT_DECODE_WORKERS = Math.max(1, Math.min(CPU_COUNT - 1, 4));
+
+    /** Default number of threads reading URI based photos from the network or streams. */
+    private static final int DEFAULT_FETCH_WORKERS = ContactPhotoFetcher.DEFAULT_MAX_FETCHES;
+
+    /** Decode priorities, lower values are decoded first. See {@link #decodeInBackground}. */
+    private static final int DECODE_PRIORITY_VISIBLE = 0;
+    private static final int DECODE_PRIORITY_PREFETCH = 1;
+
+    /** How long an idle decode or fetch worker is kept around. */
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 30;
 
     private static final int FADE_TRANSITION_DURATION = 200;
 
@@ -597,9 +657,28 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private static final int MESSAGE_PHOTOS_LOADED = 2;
 
+    /**
+     * Type of message sent to restore the cache sizes a while after they were reduced by
+     * {@link #onTrimMemory}.
+     */
+    private static final int MESSAGE_RESTORE_CACHE_SIZES = 3;
+
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] COLUMNS = new String[] { Photo._ID, Photo.PHOTO };
+    private static final String[] COLUMNS = new String[] {
+            Photo._ID, Photo.PHOTO, Data.DATA_VERSION };
+
+    private static final String[] VERSION_COLUMNS = new String[] { Data._ID, Data.DATA_VERSION };
+
+    /** The data rows of the user's profile, which live in a separate database. */
+    private static final Uri PROFILE_DATA_URI =
+            Uri.withAppendedPath(Profile.CONTENT_URI, Contacts.Data.CONTENT_DIRECTORY);
+
+    /**
+     * The most ids bound in a single {@code IN(...)} selection. SQLite refuses statements with
+     * more than 999 arguments, and the provider may add some of its own.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
 
     /**
      * Placeholder object used to indicate that a bitmap for a given key could not
@@ -620,9 +699,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         final int originalSmallerExtent;
 
         volatile boolean fresh;
+        /** Set while a decode of {@link #bytes} is queued or running on a decode worker. */
+        final AtomicBoolean decoding = new AtomicBoolean();
+        /** The queued or running decode of {@link #bytes}, if any. */
+        volatile DecodeTask decodeTask;
         Bitmap bitmap;
         Reference<Bitmap> bitmapRef;
         int decodedSampleSize;
+        /** The photo rendered as a circle, if it has been. Only used on the UI thread. */
+        CircularBitmap circular;
 
         public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
             this.bytes = bytes;
@@ -631,6 +716,26 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * A photo rendered as a circle once, so that it can be displayed by a plain
+     * {@link BitmapDrawable} instead of setting up a {@link RoundedBitmapDrawable} for every
+     * bind. The instance is also the key of the bitmap in {@link #mBitmapCache}, so circular
+     * photos share the budget of the decoded bitmaps.
+     */
+    private static final class CircularBitmap {
+        /** The key of the photo in {@link #mBitmapHolderCache}. */
+        final Object photoKey;
+        /** The sample size of the bitmap the circle was rendered from. */
+        final int sampleSize;
+        final Reference<Bitmap> bitmapRef;
+
+        CircularBitmap(Object photoKey, int sampleSize, Bitmap bitmap) {
+            this.photoKey = photoKey;
+            this.sampleSize = sampleSize;
+            this.bitmapRef = new SoftReference<Bitmap>(bitmap);
+        }
+    }
+
     private final Context mContext;
 
     /**
@@ -646,9 +751,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private volatile boolean mBitmapHolderCacheAllUnfresh = true;
 
     /**
-     * Cache size threshold at which bitmaps will not be preloaded.
+     * Fraction of {@link #mBitmapHolderCache} at which bitmaps will not be preloaded.
      */
-    private final int mBitmapHolderCacheRedZoneBytes;
+    private static final float HOLDER_CACHE_RED_ZONE = 0.75f;
+
+    /** The sizes of the caches when there is no memory pressure. */
+    private final int mHolderCacheMaxSize;
+    private final int mBitmapCacheMaxSize;
 
     /**
      * Level 2 LRU cache for bitmaps. This is a smaller cache that holds
@@ -657,6 +766,25 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private final LruCache<Object, Bitmap> mBitmapCache;
 
+    /**
+     * Bitmaps evicted from {@link #mBitmapCache} whose memory is reused to decode and crop
+     * new photos.
+     */
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * The photo bitmap each view was last given by this manager, if any. A bitmap that is still
+     * displayed must not be returned to {@link #mBitmapPool}. Only used on the UI thread.
+     */
+    private final WeakHashMap<ImageView, Bitmap> mDisplayedBitmaps = new WeakHashMap<>();
+
+    /**
+     * Level 3 cache that keeps photo bytes on disk across process restarts. Photos read from it
+     * are cached as stale in {@link #mBitmapHolderCache}, so they are displayed right away and
+     * then validated against the photo row version before they are considered fresh.
+     */
+    private final ContactPhotoDiskCache mDiskCache;
+
     /**
      * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request.
      * The request may swapped out before the photo loading request is started.
@@ -675,6 +803,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private LoaderThread mLoaderThread;
 
+    /**
+     * Workers that turn cached photo bytes into bitmaps, so that a backlog of decodes doesn't
+     * hold up the provider queries on {@link #mLoaderThread}.
+     */
+    private final ThreadPoolExecutor mDecodeExecutor;
+
+    /**
+     * Workers that read URI based photos (directory thumbnails, display photos, etc), so that
+     * slow network or stream reads don't hold up thumbnail queries.
+     */
+    private final ThreadPoolExecutor mFetchExecutor;
+
+    /** Orders decode tasks that are queued at the same priority. */
+    private final AtomicLong mDecodeSequence = new AtomicLong();
+
+    /** The photo ids last passed to {@link #prefetchThumbnails}, closest first. */
+    private volatile long[] mPrefetchPhotoIds = new long[0];
+
+    /** The same ids as {@link #mPrefetchPhotoIds}, for lookups from the decode workers. */
+    private volatile Set<Long> mPrefetchWindow = Collections.emptySet();
+
+    /** Reads URI based photos on {@link #mFetchExecutor}. */
+    private final ContactPhotoFetcher mFetcher;
+
+    /** Cache keys of URI based photos currently being read by {@link #mFetcher}. */
+    private final Set<Object> mUriLoadsInFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
      */
@@ -685,15 +841,42 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private boolean mPaused;
 
-    /** Cache size for {@link #mBitmapHolderCache} for devices with "large" RAM. */
+    /** Minimum cache size for {@link #mBitmapHolderCache}, halved on low RAM devices. */
     private static final int HOLDER_CACHE_SIZE = 2000000;
 
-    /** Cache size for {@link #mBitmapCache} for devices with "large" RAM. */
+    /** Minimum cache size for {@link #mBitmapCache}, halved on low RAM devices. */
     private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
 
+    /** Number of screens full of thumbnails that {@link #mBitmapCache} should hold. */
+    private static final int BITMAP_CACHE_SCREENS = 3;
+
+    /**
+     * Each cache may use at most this fraction of the heap, see
+     * {@link ActivityManager#getMemoryClass}. Low RAM devices use half of that.
+     */
+    private static final int CACHE_HEAP_DIVISOR = 16;
+
+    /** The holder cache grows by {@link #HOLDER_CACHE_SIZE} for each this many MB of heap. */
+    private static final int HOLDER_CACHE_HEAP_STEP_MB = 64;
+
+    /** Screens at least this wide show lists in two panes. */
+    private static final int TWO_PANE_MIN_WIDTH_DP = 600;
+
+    /** How long the cache sizes stay reduced after {@link #onTrimMemory}. */
+    private static final int CACHE_RESTORE_DELAY = 30000;
+
+    /** Size budget of {@link #mDiskCache}. */
+    private static final int DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
     /** Height/width of a thumbnail image */
     private static int mThumbnailSize;
 
+    /** Hit rates, evictions and latencies, see {@link #dump}. */
+    private final ContactPhotoStats mStats = new ContactPhotoStats();
+
+    /** Set while the caches are cleared in response to {@link #onTrimMemory}. */
+    private volatile boolean mTrimmingMemory;
+
     /** For debug: How many times we had to reload cached photo for a stale entry */
     private final AtomicInteger mStaleCacheOverwrite = new AtomicInteger();
 
@@ -706,14 +889,36 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private String mUserAgent;
 
     public ContactPhotoManagerImpl(Context context) {
+        this(context, DEFAULT_DECODE_WORKERS, DEFAULT_FETCH_WORKERS);
+    }
+
+    /**
+     * @param decodeWorkers number of threads decoding photo bytes into bitmaps
+     * @param fetchWorkers number of threads reading URI based photos
+     */
+    @VisibleForTesting
+    ContactPhotoManagerImpl(Context context, int decodeWorkers, int fetchWorkers) {
         mContext = context;
+        mDecodeExecutor = newWorkerPool(DECODER_THREAD_NAME, decodeWorkers,
+                new PriorityBlockingQueue<Runnable>());
+        mFetchExecutor = newWorkerPool(FETCHER_THREAD_NAME, fetchWorkers,
+                new LinkedBlockingQueue<Runnable>());
+        mDiskCache = new ContactPhotoDiskCache(context, DISK_CACHE_SIZE);
 
         final ActivityManager am = ((ActivityManager) context.getSystemService(
                 Context.ACTIVITY_SERVICE));
-
-        final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
-
-        final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
+        final Resources res = context.getResources();
+        final DisplayMetrics metrics = res.getDisplayMetrics();
+        final int panes =
+                res.getConfiguration().smallestScreenWidthDp >= TWO_PANE_MIN_WIDTH_DP ? 2 : 1;
+
+        mThumbnailSize = res.getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
+
+        final int bitmapCacheSize = computeBitmapCacheSize(am.getMemoryClass(),
+                am.isLowRamDevice(), mThumbnailSize,
+                Math.max(metrics.widthPixels, metrics.heightPixels), panes);
+        mBitmapCacheMaxSize = bitmapCacheSize;
+        mBitmapPool = new BitmapPool(bitmapCacheSize / 4);
         mBitmapCache = new LruCache<Object, Bitmap>(bitmapCacheSize) {
             @Override protected int sizeOf(Object key, Bitmap value) {
                 return value.getByteCount();
@@ -721,10 +926,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    recycleBitmap(key, oldValue);
+                }
+                if (evicted) {
+                    mStats.recordEviction(ContactPhotoStats.TIER_BITMAP, getEvictionReason());
+                }
                 if (DEBUG) dumpStats();
             }
         };
-        final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+        final int holderCacheSize =
+                computeHolderCacheSize(am.getMemoryClass(), am.isLowRamDevice(), panes);
+        mHolderCacheMaxSize = holderCacheSize;
         mBitmapHolderCache = new LruCache<Object, BitmapHolder>(holderCacheSize) {
             @Override protected int sizeOf(Object key, BitmapHolder value) {
                 return value.bytes != null ? value.bytes.length : 0;
@@ -732,24 +945,83 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
             @Override protected void entryRemoved(
                     boolean evicted, Object key, BitmapHolder oldValue, BitmapHolder newValue) {
+                if (evicted) {
+                    mStats.recordEviction(ContactPhotoStats.TIER_HOLDER, getEvictionReason());
+                }
                 if (DEBUG) dumpStats();
             }
         };
-        mBitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
-        Log.i(TAG, "Cache adj: " + cacheSizeAdjustment);
-        if (DEBUG) {
-            Log.d(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
-                    + " + " + btk(mBitmapCache.maxSize()));
-        }
-
-        mThumbnailSize = context.getResources().getDimensionPixelSize(
-                R.dimen.contact_browser_list_item_photo_size);
+        Log.i(TAG, "Cache size: " + btk(mBitmapHolderCache.maxSize())
+                + " + " + btk(mBitmapCache.maxSize()));
 
         // Get a user agent string to use for URI photo requests.
         mUserAgent = UserAgentGenerator.getUserAgent(context);
         if (mUserAgent == null) {
             mUserAgent = "";
         }
+        mFetcher = new ContactPhotoFetcher(context.getContentResolver(), mUserAgent,
+                mFetchExecutor, fetchWorkers);
+    }
+
+    /**
+     * Returns the size of {@link #mBitmapCache}: enough for {@link #BITMAP_CACHE_SCREENS} screens
+     * full of thumbnails in every pane, but no less than {@link #BITMAP_CACHE_SIZE} and no more
+     * than the device's share of the heap.
+     *
+     * @param memoryClass the heap size in MB, see {@link ActivityManager#getMemoryClass}
+     * @param thumbnailSize the height and width of a thumbnail in pixels
+     * @param screenHeight the longer side of the screen in pixels
+     * @param panes the number of lists shown side by side
+     */
+    @VisibleForTesting
+    static int computeBitmapCacheSize(int memoryClass, boolean lowRamDevice, int thumbnailSize,
+            int screenHeight, int panes) {
+        final int thumbnailBytes = thumbnailSize * thumbnailSize * 4;
+        final int thumbnailsPerScreen =
+                panes * ((screenHeight + thumbnailSize - 1) / thumbnailSize);
+        final long wanted = (long) thumbnailBytes * thumbnailsPerScreen * BITMAP_CACHE_SCREENS;
+        final long minimum = lowRamDevice ? BITMAP_CACHE_SIZE / 2 : BITMAP_CACHE_SIZE;
+        return (int) Math.min(getHeapLimit(memoryClass, lowRamDevice), Math.max(minimum, wanted));
+    }
+
+    /**
+     * Returns the size of {@link #mBitmapHolderCache}. The compressed thumbnails have the same
+     * size on every screen, so this grows with the heap and the number of panes instead.
+     */
+    @VisibleForTesting
+    static int computeHolderCacheSize(int memoryClass, boolean lowRamDevice, int panes) {
+        final int steps = Math.max(1, Math.min(4, memoryClass / HOLDER_CACHE_HEAP_STEP_MB));
+        final long wanted = (long) HOLDER_CACHE_SIZE * steps * panes / (lowRamDevice ? 2 : 1);
+        return (int) Math.min(getHeapLimit(memoryClass, lowRamDevice), wanted);
+    }
+
+    private static long getHeapLimit(int memoryClass, boolean lowRamDevice) {
+        return (long) memoryClass * 1024 * 1024 / CACHE_HEAP_DIVISOR / (lowRamDevice ? 2 : 1);
+    }
+
+    /**
+     * Creates a pool of background priority threads whose core threads time out when idle, so
+     * that an unused photo manager doesn't keep any workers alive.
+     */
+    private static ThreadPoolExecutor newWorkerPool(final String name, int workers,
+            BlockingQueue<Runnable> queue) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + threadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /** Converts bytes to K bytes, rounding up.  Used only for debug log. */
@@ -803,14 +1075,128 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                     + ", avg: " + btk(safeDiv(bitmapBytes, numBitmaps)));
             // We don't get from L2 cache, so L2 stats is meaningless.
         }
+
+        Log.d(TAG, "Pool: " + btk(mBitmapPool.size()) + ", " + mBitmapPool);
+    }
+
+    private int getEvictionReason() {
+        return mTrimmingMemory
+                ? ContactPhotoStats.EVICTION_TRIM_MEMORY : ContactPhotoStats.EVICTION_LRU;
     }
 
+    @Override
+    public void dump(String prefix, PrintWriter writer) {
+        final String innerPrefix = prefix + "  ";
+        writer.println(prefix + "ContactPhotoManager:");
+        int softBitmaps = 0;
+        int softBitmapBytes = 0;
+        for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
+            final Bitmap bitmap = holder.bitmapRef != null ? holder.bitmapRef.get() : null;
+            if (bitmap != null) {
+                softBitmaps++;
+                softBitmapBytes += bitmap.getByteCount();
+            }
+        }
+        writer.println(innerPrefix + "holders: " + mBitmapHolderCache.size() + "/"
+                + mBitmapHolderCache.maxSize() + " bytes, "
+                + mBitmapHolderCache.snapshot().size() + " entries, "
+                + softBitmaps + " decoded (" + softBitmapBytes + " bytes)");
+        writer.println(innerPrefix + "bitmaps: " + mBitmapCache.size() + "/"
+                + mBitmapCache.maxSize() + " bytes, " + mBitmapCache.snapshot().size()
+                + " entries");
+        writer.println(innerPrefix + "disk: " + mDiskCache.size() + "/" + mDiskCache.maxSize()
+                + " bytes");
+        writer.println(innerPrefix + "pool: " + mBitmapPool);
+        LetterTileDrawable.dumpTileCache(innerPrefix, writer);
+        writer.println(innerPrefix + "pending: " + mPendingRequests.size() + " requests, "
+                + mDecodeExecutor.getQueue().size() + " queued decodes, "
+                + mFetcher.getPendingFetchCount() + " fetches");
+        mStats.dump(innerPrefix, writer);
+    }
+
+    @Override
+    public Bundle getStats() {
+        final Bundle stats = new Bundle();
+        stats.putLong("holder.bytes", mBitmapHolderCache.size());
+        stats.putLong("holder.maxBytes", mBitmapHolderCache.maxSize());
+        stats.putLong("bitmap.bytes", mBitmapCache.size());
+        stats.putLong("bitmap.maxBytes", mBitmapCache.maxSize());
+        stats.putLong("disk.bytes", mDiskCache.size());
+        stats.putLong("disk.maxBytes", mDiskCache.maxSize());
+        stats.putLong("pool.bytes", mBitmapPool.size());
+        mStats.addTo(stats);
+        return stats;
+    }
+
+    @Override
+    public void resetStats() {
+        mStats.reset();
+    }
+
+    /**
+     * Responds to memory pressure in steps: the decoded bitmaps, which can be recreated from the
+     * compressed photos without any I/O, are given up first. The compressed photos are only
+     * reduced once the process is likely to be killed, and everything is dropped only at the
+     * critical levels. The caches get their full size back {@link #CACHE_RESTORE_DELAY} after
+     * the last call.
+     */
     @Override
     public void onTrimMemory(int level) {
         if (DEBUG) Log.d(TAG, "onTrimMemory: " + level);
-        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-            // Clear the caches.  Note all pending requests will be removed too.
-            clear();
+        mTrimmingMemory = true;
+        try {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+                // Clear the caches.  Note all pending requests will be removed too.
+                clear();
+                shrinkCaches(25, 50);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                mBitmapCache.evictAll();
+                mBitmapPool.clear();
+                shrinkCaches(25, 50);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                mBitmapCache.evictAll();
+                mBitmapPool.clear();
+                shrinkCaches(25, 100);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                mBitmapPool.clear();
+                shrinkCaches(25, 100);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                // Keep the pending requests, the UI is still showing.
+                mBitmapHolderCache.evictAll();
+                mBitmapCache.evictAll();
+                mBitmapPool.clear();
+                shrinkCaches(25, 50);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mBitmapPool.clear();
+                shrinkCaches(25, 100);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+                mBitmapPool.trimToSize(mBitmapPool.maxSize() / 2);
+                shrinkCaches(50, 100);
+            } else {
+                return;
+            }
+        } finally {
+            mTrimmingMemory = false;
+        }
+        // Tiles are cheap to redraw, only keep some while the UI is running normally.
+        LetterTileDrawable.trimTileCache(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        mMainThreadHandler.removeMessages(MESSAGE_RESTORE_CACHE_SIZES);
+        mMainThreadHandler.sendEmptyMessageDelayed(MESSAGE_RESTORE_CACHE_SIZES,
+                CACHE_RESTORE_DELAY);
+    }
+
+    /**
+     * Reduces the maximum sizes of the caches to the given percentages of their full sizes,
+     * unless they are already smaller. Entries that no longer fit are evicted.
+     */
+    private void shrinkCaches(int bitmapCachePercent, int holderCachePercent) {
+        final int bitmapCacheSize = mBitmapCacheMaxSize / 100 * bitmapCachePercent;
+        if (bitmapCacheSize < mBitmapCache.maxSize()) {
+            mBitmapCache.resize(Math.max(1, bitmapCacheSize));
+        }
+        final int holderCacheSize = mHolderCacheMaxSize / 100 * holderCachePercent;
+        if (holderCacheSize < mBitmapHolderCache.maxSize()) {
+            mBitmapHolderCache.resize(Math.max(1, holderCacheSize));
         }
     }
 
@@ -826,6 +1212,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         if (photoId == 0) {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
+            mDisplayedBitmaps.remove(view);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoId);
@@ -842,6 +1229,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // No photo is needed
             defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme,
                     defaultImageRequest);
+            mDisplayedBitmaps.remove(view);
             mPendingRequests.remove(view);
         } else {
             if (DEBUG) Log.d(TAG, "loadPhoto request: " + photoUri);
@@ -860,10 +1248,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         DefaultImageRequest request = getDefaultImageRequestFromUri(uri);
         request.isCircular = isCircular;
         defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, request);
+        mDisplayedBitmaps.remove(view);
     }
 
     private void loadPhotoByIdOrUri(ImageView view, Request request) {
-        boolean loaded = loadCachedPhoto(view, request, false);
+        boolean loaded = loadCachedPhoto(view, request, false, true /* recordStats */);
         if (loaded) {
             mPendingRequests.remove(view);
         } else {
@@ -878,6 +1267,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @Override
     public void removePhoto(ImageView view) {
         view.setImageDrawable(null);
+        mDisplayedBitmaps.remove(view);
         mPendingRequests.remove(view);
     }
 
@@ -927,36 +1317,67 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     /**
      * Checks if the photo is present in cache.  If so, sets the photo on the view.
      *
+     * @param recordStats whether to count the lookup in the cache statistics, which is only
+     * done the first time a request is looked up
      * @return false if the photo needs to be (re)loaded from the provider.
      */
-    private boolean loadCachedPhoto(ImageView view, Request request, boolean fadeIn) {
+    private boolean loadCachedPhoto(ImageView view, Request request, boolean fadeIn,
+            boolean recordStats) {
         BitmapHolder holder = mBitmapHolderCache.get(request.getKey());
         if (holder == null) {
+            if (recordStats) mStats.recordMiss(ContactPhotoStats.TIER_HOLDER);
             // The bitmap has not been loaded ==> show default avatar
             request.applyDefaultImage(view, request.mIsCircular);
+            mDisplayedBitmaps.remove(view);
             return false;
         }
+        if (recordStats) mStats.recordHit(ContactPhotoStats.TIER_HOLDER);
 
         if (holder.bytes == null || holder.bytes.length == 0) {
             request.applyDefaultImage(view, request.mIsCircular);
+            mDisplayedBitmaps.remove(view);
             return holder.fresh;
         }
 
-        Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        // A circle rendered earlier doesn't need the bitmap it was rendered from.
+        Bitmap circularBitmap = request.mIsCircular
+                ? getCircularBitmap(holder, request.getRequestedExtent()) : null;
+        Bitmap cachedBitmap = circularBitmap != null ? circularBitmap
+                : holder.bitmapRef == null ? null : holder.bitmapRef.get();
+        if (recordStats) {
+            if (cachedBitmap != null) {
+                mStats.recordHit(ContactPhotoStats.TIER_BITMAP);
+            } else {
+                mStats.recordMiss(ContactPhotoStats.TIER_BITMAP);
+            }
+        }
         if (cachedBitmap == null) {
-            if (holder.bytes.length < 8 * 1024) {
+            if (holder.bytes.length < 8 * 1024 && !holder.decoding.get()) {
                 // Small thumbnails are usually quick to inflate. Let's do that on the UI thread
-                inflateBitmap(holder, request.getRequestedExtent());
+                inflateBitmap(holder, request.getRequestedExtent(), request.isUriRequest());
                 cachedBitmap = holder.bitmap;
                 if (cachedBitmap == null) return false;
             } else {
                 // This is bigger data. Let's send that back to the Loader so that we can
                 // inflate this in the background
                 request.applyDefaultImage(view, request.mIsCircular);
+                mDisplayedBitmaps.remove(view);
                 return false;
             }
         }
 
+        Object cacheKey = request.getKey();
+        if (request.mIsCircular) {
+            if (circularBitmap == null) {
+                circularBitmap = renderCircularBitmap(holder, request.getKey(), cachedBitmap);
+            }
+            if (circularBitmap != null) {
+                cachedBitmap = circularBitmap;
+                cacheKey = holder.circular;
+            }
+        }
+        final boolean rounded = request.mIsCircular && circularBitmap == null;
+
         final Drawable previousDrawable = view.getDrawable();
         if (fadeIn && previousDrawable != null) {
             final Drawable[] layers = new Drawable[2];
@@ -969,19 +1390,21 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             } else {
                 layers[0] = previousDrawable;
             }
-            layers[1] = getDrawableForBitmap(mContext.getResources(), cachedBitmap, request);
+            layers[1] = getDrawableForBitmap(mContext.getResources(), cachedBitmap, rounded);
             TransitionDrawable drawable = new TransitionDrawable(layers);
             view.setImageDrawable(drawable);
             drawable.startTransition(FADE_TRANSITION_DURATION);
-        } else {
+        } else if (!isDrawableForBitmap(previousDrawable, cachedBitmap, rounded)) {
+            // When a row is rebound to the photo it already shows, the drawable is kept.
             view.setImageDrawable(
-                    getDrawableForBitmap(mContext.getResources(), cachedBitmap, request));
+                    getDrawableForBitmap(mContext.getResources(), cachedBitmap, rounded));
         }
+        mDisplayedBitmaps.put(view, cachedBitmap);
 
         // Put the bitmap in the LRU cache. But only do this for images that are small enough
         // (we require that at least six of those can be cached at the same time)
         if (cachedBitmap.getByteCount() < mBitmapCache.maxSize() / 6) {
-            mBitmapCache.put(request.getKey(), cachedBitmap);
+            mBitmapCache.put(cacheKey, cachedBitmap);
         }
 
         // Soften the reference
@@ -991,11 +1414,57 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Given a bitmap, returns a drawable that is configured to display the bitmap based on the
-     * specified request.
+     * Returns the circle rendered from the holder's photo at the sample size that the requested
+     * extent calls for, or null if there is none.
      */
-    private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, Request request) {
-        if (request.mIsCircular) {
+    private static Bitmap getCircularBitmap(BitmapHolder holder, int requestedExtent) {
+        final CircularBitmap circular = holder.circular;
+        if (circular == null || circular.sampleSize != BitmapUtil.findOptimalSampleSize(
+                holder.originalSmallerExtent, requestedExtent)) {
+            return null;
+        }
+        return circular.bitmapRef.get();
+    }
+
+    /**
+     * Renders the decoded photo as a circle and remembers it in the holder. Returns null if the
+     * photo isn't square, in which case it is rounded while it is drawn instead.
+     */
+    private Bitmap renderCircularBitmap(BitmapHolder holder, Object photoKey, Bitmap bitmap) {
+        if (bitmap.getWidth() != bitmap.getHeight() || holder.decodedSampleSize == 0) {
+            return null;
+        }
+        final Bitmap circularBitmap;
+        try {
+            circularBitmap = BitmapUtil.renderCircular(bitmap, mBitmapPool);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+        holder.circular = new CircularBitmap(photoKey, holder.decodedSampleSize, circularBitmap);
+        return circularBitmap;
+    }
+
+    /**
+     * Returns whether the drawable is one that {@link #getDrawableForBitmap} would create for
+     * the same arguments, so that the view doesn't need a new one.
+     */
+    private static boolean isDrawableForBitmap(Drawable drawable, Bitmap bitmap,
+            boolean rounded) {
+        if (rounded) {
+            return drawable instanceof RoundedBitmapDrawable
+                    && ((RoundedBitmapDrawable) drawable).getBitmap() == bitmap;
+        }
+        return drawable instanceof BitmapDrawable
+                && ((BitmapDrawable) drawable).getBitmap() == bitmap;
+    }
+
+    /**
+     * Given a bitmap, returns a drawable that is configured to display the bitmap.
+     *
+     * @param rounded whether the bitmap should be drawn as a circle
+     */
+    private Drawable getDrawableForBitmap(Resources resources, Bitmap bitmap, boolean rounded) {
+        if (rounded) {
             final RoundedBitmapDrawable drawable =
                     RoundedBitmapDrawableFactory.create(resources, bitmap);
             drawable.setAntiAlias(true);
@@ -1010,8 +1479,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * If necessary, decodes bytes stored in the holder to Bitmap.  As long as the
      * bitmap is held either by {@link #mBitmapCache} or by a soft reference in
      * the holder, it will not be necessary to decode the bitmap.
+     *
+     * @param uriPhoto whether the holder contains a URI based photo rather than a thumbnail,
+     * for the decode statistics
      */
-    private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
+    private void inflateBitmap(BitmapHolder holder, int requestedExtent, boolean uriPhoto) {
+        // The UI thread and the decode workers may inflate the same holder.
+        synchronized (holder) {
+            inflateBitmapLocked(holder, requestedExtent, uriPhoto);
+        }
+    }
+
+    private void inflateBitmapLocked(BitmapHolder holder, int requestedExtent,
+            boolean uriPhoto) {
         final int sampleSize =
                 BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
         byte[] bytes = holder.bytes;
@@ -1031,7 +1511,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
 
         try {
-            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+            final long startNanos = System.nanoTime();
+            Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize, mBitmapPool);
+            if (bitmap == null) {
+                // Not an image we can decode - the photo will appear to be missing
+                return;
+            }
 
             // TODO: As a temporary workaround while framework support is being added to
             // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -1044,9 +1529,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             // below twice the length of a thumbnail image due to the way we calculate the optimal
             // sample size.
             if (height != width && Math.min(height, width) <= mThumbnailSize * 2) {
-                final int dimension = Math.min(height, width);
-                bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+                bitmap = BitmapUtil.cropToSquare(bitmap, mBitmapPool);
             }
+            mStats.recordLatency(uriPhoto ? ContactPhotoStats.LATENCY_DECODE_URI
+                    : ContactPhotoStats.LATENCY_DECODE_THUMBNAIL, startNanos);
             // make bitmap mutable and draw size onto it
             if (DEBUG_SIZES) {
                 Bitmap original = bitmap;
@@ -1076,11 +1562,148 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    /**
+     * A decode of a holder's bytes on {@link #mDecodeExecutor}. Tasks run by priority, then in
+     * the order they were queued.
+     */
+    private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+        final BitmapHolder holder;
+        final Object key;
+        final int requestedExtent;
+        final long sequence;
+        volatile int priority;
+
+        DecodeTask(BitmapHolder holder, Object key, int requestedExtent, int priority) {
+            this.holder = holder;
+            this.key = key;
+            this.requestedExtent = requestedExtent;
+            this.priority = priority;
+            this.sequence = mDecodeSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            // Skip prefetches of photos that the list has scrolled away from.
+            final boolean skipped =
+                    priority == DECODE_PRIORITY_PREFETCH && !mPrefetchWindow.contains(key);
+            final boolean visible;
+            try {
+                if (!skipped) {
+                    inflateBitmap(holder, requestedExtent, key instanceof Uri);
+                }
+            } finally {
+                // A view may have asked for the photo while this ran, see decodeInBackground().
+                synchronized (holder) {
+                    holder.decodeTask = null;
+                    holder.decoding.set(false);
+                    visible = priority == DECODE_PRIORITY_VISIBLE;
+                }
+            }
+            // Nothing is waiting for prefetched photos.
+            if (visible) {
+                if (skipped) {
+                    decodeInBackground(holder, key, requestedExtent, DECODE_PRIORITY_VISIBLE);
+                } else {
+                    notifyPhotosLoaded();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(DecodeTask another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queues the bytes stored in the holder for decoding on {@link #mDecodeExecutor}, unless a
+     * decode of this holder is already queued. A queued prefetch is moved up if the photo is
+     * now needed for a view, and one that already runs notifies the main thread when it's done,
+     * or decodes again if it was skipped. The main thread is notified once a bitmap needed for a
+     * view is available.
+     *
+     * @param key the cache key of the holder
+     * @param priority {@link #DECODE_PRIORITY_VISIBLE} or {@link #DECODE_PRIORITY_PREFETCH}
+     */
+    private void decodeInBackground(BitmapHolder holder, Object key, int requestedExtent,
+            int priority) {
+        final DecodeTask task;
+        synchronized (holder) {
+            if (!holder.decoding.compareAndSet(false, true)) {
+                final DecodeTask queued = holder.decodeTask;
+                if (queued != null && priority < queued.priority) {
+                    // Requeued, as the queue is ordered by priority. A task that already runs
+                    // reads the raised priority when it finishes.
+                    final boolean wasQueued = mDecodeExecutor.remove(queued);
+                    queued.priority = priority;
+                    if (wasQueued) {
+                        mDecodeExecutor.execute(queued);
+                    }
+                }
+                return;
+            }
+            task = new DecodeTask(holder, key, requestedExtent, priority);
+            holder.decodeTask = task;
+        }
+        mDecodeExecutor.execute(task);
+    }
+
+    /**
+     * Sends {@link #MESSAGE_PHOTOS_LOADED} to the main thread unless one is already queued. Used
+     * by the workers so that a burst of finished photos is processed in a single pass.
+     */
+    private void notifyPhotosLoaded() {
+        if (!mMainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+    }
+
+    /**
+     * Returns a bitmap that has been removed from {@link #mBitmapCache} to {@link #mBitmapPool},
+     * as long as we decoded it ourselves and no view displays it. The holder's references to it
+     * are cleared first, so that it is never handed out again once its memory is reused.
+     */
+    private void recycleBitmap(Object key, Bitmap bitmap) {
+        if (mDisplayedBitmaps.containsValue(bitmap)) {
+            return;
+        }
+        if (key instanceof CircularBitmap) {
+            // Circles are always rendered by us.
+            final BitmapHolder holder = mBitmapHolderCache.get(((CircularBitmap) key).photoKey);
+            if (holder != null && holder.circular == key) {
+                holder.circular = null;
+            }
+            mBitmapPool.put(bitmap);
+            return;
+        }
+        final BitmapHolder holder = mBitmapHolderCache.get(key);
+        if (holder == null) {
+            return;
+        }
+        synchronized (holder) {
+            // Bitmaps passed to cacheBitmap(Uri, Bitmap, byte[]) are not ours to reuse, and
+            // are recognizable by never having gone through inflateBitmap().
+            if (holder.decodedSampleSize == 0 || holder.bitmapRef == null
+                    || holder.bitmapRef.get() != bitmap) {
+                return;
+            }
+            holder.bitmapRef = null;
+            if (holder.bitmap == bitmap) {
+                holder.bitmap = null;
+            }
+        }
+        mBitmapPool.put(bitmap);
+    }
+
     public void clear() {
         if (DEBUG) Log.d(TAG, "clear");
         mPendingRequests.clear();
         mBitmapHolderCache.evictAll();
         mBitmapCache.evictAll();
+        mBitmapPool.clear();
     }
 
     @Override
@@ -1097,6 +1720,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
     }
 
+    @Override
+    public void prefetchThumbnails(long[] photoIds) {
+        final Set<Long> window = Sets.newHashSetWithExpectedSize(photoIds.length);
+        for (long photoId : photoIds) {
+            window.add(photoId);
+        }
+        mPrefetchPhotoIds = photoIds.clone();
+        mPrefetchWindow = window;
+        if (photoIds.length > 0) {
+            ensureLoaderThread();
+            mLoaderThread.requestPrefetching();
+        }
+    }
+
     /**
      * Sends a message to this thread itself to start loading images.  If the current
      * view contains multiple image views, all of those image views will get a chance
@@ -1132,6 +1769,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 if (DEBUG) dumpStats();
                 return true;
             }
+
+            case MESSAGE_RESTORE_CACHE_SIZES: {
+                if (DEBUG) Log.d(TAG, "Restoring cache sizes");
+                mBitmapCache.resize(mBitmapCacheMaxSize);
+                mBitmapHolderCache.resize(mHolderCacheMaxSize);
+                return true;
+            }
         }
         return false;
     }
@@ -1153,7 +1797,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             final Entry<ImageView, Request> entry = iterator.next();
             // TODO: Temporarily disable contact photo fading in, until issues with
             // RoundedBitmapDrawables overlapping the default image drawables are resolved.
-            final boolean loaded = loadCachedPhoto(entry.getKey(), entry.getValue(), false);
+            final boolean loaded = loadCachedPhoto(entry.getKey(), entry.getValue(), false,
+                    false /* recordStats */);
             if (loaded) {
                 iterator.remove();
             }
@@ -1172,7 +1817,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      */
     private void softenCache() {
         for (BitmapHolder holder : mBitmapHolderCache.snapshot().values()) {
-            holder.bitmap = null;
+            if (holder.bitmap != null) {
+                holder.bitmap = null;
+                mStats.recordEviction(ContactPhotoStats.TIER_BITMAP,
+                        ContactPhotoStats.EVICTION_SOFTEN);
+            }
         }
     }
 
@@ -1182,6 +1831,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
      * a successful load but no photo was available.
      */
     private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+        cacheBitmap(key, bytes, preloading, requestedExtent, true, DECODE_PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Stores the supplied bitmap in cache.
+     *
+     * @param fresh false if the bytes may be out of date, e.g. because they come from the disk
+     * cache, in which case the photo is displayed but will be reloaded
+     * @param decodePriority the priority to decode the photo at, unless it is being preloaded
+     */
+    private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent,
+            boolean fresh, int decodePriority) {
         if (DEBUG) {
             BitmapHolder prev = mBitmapHolderCache.get(key);
             if (prev != null && prev.bytes != null) {
@@ -1197,11 +1858,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
         BitmapHolder holder = new BitmapHolder(bytes,
                 bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
+        holder.fresh = fresh;
 
-        // Unless this image is being preloaded, decode it right away while
-        // we are still on the background thread.
-        if (!preloading) {
-            inflateBitmap(holder, requestedExtent);
+        // Unless this image is being preloaded, start decoding it right away. This happens
+        // before the holder is published so that the UI thread sees it as being decoded.
+        if (!preloading && bytes != null && bytes.length > 0) {
+            decodeInBackground(holder, key, requestedExtent, decodePriority);
         }
 
         if (bytes != null) {
@@ -1241,8 +1903,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         photoIdsAsStrings.clear();
         uris.clear();
 
-        boolean jpegsDecoded = false;
-
         /*
          * Since the call is made from the loader thread, the map could be
          * changing during the iteration. That's not really a problem:
@@ -1261,11 +1921,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             if (holder != null && holder.bytes != null && holder.fresh &&
                     (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
                 // This was previously loaded but we don't currently have the inflated Bitmap
-                inflateBitmap(holder, request.getRequestedExtent());
-                jpegsDecoded = true;
+                decodeInBackground(holder, request.getKey(), request.getRequestedExtent(),
+                        DECODE_PRIORITY_VISIBLE);
             } else {
                 if (holder == null || !holder.fresh) {
                     if (request.isUriRequest()) {
+                        if (mUriLoadsInFlight.contains(request.getKey())) {
+                            continue;
+                        }
                         uris.add(request);
                     } else {
                         photoIds.add(request.getId());
@@ -1274,17 +1937,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
         }
-
-        if (jpegsDecoded) mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
 
     /**
      * The thread that performs loading of photos from the database.
      */
     private class LoaderThread extends HandlerThread implements Callback {
-        private static final int BUFFER_SIZE = 1024*16;
         private static final int MESSAGE_PRELOAD_PHOTOS = 0;
         private static final int MESSAGE_LOAD_PHOTOS = 1;
+        private static final int MESSAGE_FLUSH_DISK_CACHE = 2;
+        private static final int MESSAGE_PREFETCH_PHOTOS = 3;
+
+        /**
+         * Delay before the disk cache index is written, so that a burst of loaded photos
+         * results in a single write.
+         */
+        private static final int DISK_CACHE_FLUSH_DELAY = 2000;
 
         /**
          * A pause between preload batches that yields to the UI thread.
@@ -1304,13 +1972,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
         private final ContentResolver mResolver;
         private final StringBuilder mStringBuilder = new StringBuilder();
+        private final List<String> mContactIdArgs = Lists.newArrayList();
+        private final List<String> mProfileIdArgs = Lists.newArrayList();
         private final Set<Long> mPhotoIds = Sets.newHashSet();
         private final Set<String> mPhotoIdsAsStrings = Sets.newHashSet();
         private final Set<Request> mPhotoUris = Sets.newHashSet();
         private final List<Long> mPreloadPhotoIds = Lists.newArrayList();
 
         private Handler mLoaderThreadHandler;
-        private byte mBuffer[];
 
         private static final int PRELOAD_STATUS_NOT_STARTED = 0;
         private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
@@ -1361,6 +2030,28 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
         }
 
+        /**
+         * Sends a message to this thread to load and decode the photos in the prefetch window,
+         * unless one is already queued.
+         */
+        public void requestPrefetching() {
+            ensureHandler();
+            if (!mLoaderThreadHandler.hasMessages(MESSAGE_PREFETCH_PHOTOS)) {
+                mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+            }
+        }
+
+        /**
+         * Schedules a write of the disk cache index, unless one is already scheduled.
+         */
+        public void requestDiskCacheFlush() {
+            ensureHandler();
+            if (!mLoaderThreadHandler.hasMessages(MESSAGE_FLUSH_DISK_CACHE)) {
+                mLoaderThreadHandler.sendEmptyMessageDelayed(
+                        MESSAGE_FLUSH_DISK_CACHE, DISK_CACHE_FLUSH_DELAY);
+            }
+        }
+
         /**
          * Receives the above message, loads photos and then sends a message
          * to the main thread to process them.
@@ -1374,6 +2065,17 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 case MESSAGE_LOAD_PHOTOS:
                     loadPhotosInBackground();
                     break;
+                case MESSAGE_FLUSH_DISK_CACHE:
+                    mDiskCache.flush();
+                    break;
+                case MESSAGE_PREFETCH_PHOTOS:
+                    if (mLoaderThreadHandler.hasMessages(MESSAGE_LOAD_PHOTOS)) {
+                        // Photos needed for views come first.
+                        mLoaderThreadHandler.sendEmptyMessage(MESSAGE_PREFETCH_PHOTOS);
+                    } else {
+                        prefetchPhotosInBackground();
+                    }
+                    break;
             }
             return true;
         }
@@ -1400,7 +2102,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 return;
             }
 
-            if (mBitmapHolderCache.size() > mBitmapHolderCacheRedZoneBytes) {
+            if (mBitmapHolderCache.size()
+                    > mBitmapHolderCache.maxSize() * HOLDER_CACHE_RED_ZONE) {
                 mPreloadStatus = PRELOAD_STATUS_DONE;
                 return;
             }
@@ -1471,8 +2174,41 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             requestPreloading();
         }
 
+        /**
+         * Loads the thumbnails in the prefetch window that aren't cached yet, and decodes the
+         * cached ones that don't have a bitmap, at {@link #DECODE_PRIORITY_PREFETCH}.
+         */
+        private void prefetchPhotosInBackground() {
+            if (!PermissionsUtil.hasPermission(mContext,
+                    android.Manifest.permission.READ_CONTACTS)) {
+                return;
+            }
+            mPhotoIds.clear();
+            mPhotoIdsAsStrings.clear();
+            for (long photoId : mPrefetchPhotoIds) {
+                final BitmapHolder holder = mBitmapHolderCache.get(photoId);
+                if (holder == null || !holder.fresh) {
+                    mPhotoIds.add(photoId);
+                    mPhotoIdsAsStrings.add(String.valueOf(photoId));
+                } else if (holder.bytes != null && holder.bytes.length > 0
+                        && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+                    decodeInBackground(holder, photoId, -1, DECODE_PRIORITY_PREFETCH);
+                }
+            }
+            loadThumbnails(false, DECODE_PRIORITY_PREFETCH);
+        }
+
         /** Loads thumbnail photos with ids */
         private void loadThumbnails(boolean preloading) {
+            loadThumbnails(preloading, DECODE_PRIORITY_VISIBLE);
+        }
+
+        /**
+         * Loads thumbnail photos with ids
+         *
+         * @param decodePriority the priority to decode the loaded photos at
+         */
+        private void loadThumbnails(boolean preloading, int decodePriority) {
             if (mPhotoIds.isEmpty()) {
                 return;
             }
@@ -1488,140 +2224,221 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 }
             }
 
-            mStringBuilder.setLength(0);
-            mStringBuilder.append(Photo._ID + " IN(");
-            for (int i = 0; i < mPhotoIds.size(); i++) {
-                if (i != 0) {
-                    mStringBuilder.append(',');
+            loadThumbnailsFromDiskCache(preloading, decodePriority);
+            if (mPhotoIds.isEmpty()) {
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+                return;
+            }
+
+            if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
+            final long startNanos = System.nanoTime();
+            splitProfileIds(mPhotoIds);
+            loadThumbnailRows(Data.CONTENT_URI, mContactIdArgs, preloading, decodePriority);
+            loadThumbnailRows(PROFILE_DATA_URI, mProfileIdArgs, preloading, decodePriority);
+            mStats.recordLatency(ContactPhotoStats.LATENCY_LOAD_THUMBNAIL, startNanos);
+
+            // Remaining photos were found neither in the contacts database nor in the profile.
+            for (Long id : mPhotoIds) {
+                cacheBitmap(id, null, preloading, -1);
+            }
+
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        }
+
+        /**
+         * Serves the photos in {@link #mPhotoIds} from the disk cache where possible. Photos
+         * found on disk are cached as stale right away so that they can be displayed, and are
+         * then validated by querying the photo row versions, which doesn't transfer any photo
+         * bytes. Photos that are still current are marked fresh and removed from
+         * {@link #mPhotoIds}; the others are dropped from the disk cache and loaded as usual.
+         */
+        private void loadThumbnailsFromDiskCache(boolean preloading, int decodePriority) {
+            final List<Long> cachedIds = Lists.newArrayList();
+            for (Long id : mPhotoIds) {
+                final String diskKey = ContactPhotoDiskCache.keyFor(id, -1);
+                final boolean inMemory = mBitmapHolderCache.get(id) != null;
+                if (mDiskCache.getVersion(diskKey) == ContactPhotoDiskCache.NO_VERSION) {
+                    if (!inMemory) mStats.recordMiss(ContactPhotoStats.TIER_DISK);
+                    continue;
                 }
-                mStringBuilder.append('?');
+                if (!inMemory) {
+                    final byte[] bytes = mDiskCache.get(diskKey);
+                    if (bytes == null) {
+                        mStats.recordMiss(ContactPhotoStats.TIER_DISK);
+                        continue;
+                    }
+                    mStats.recordHit(ContactPhotoStats.TIER_DISK);
+                    cacheBitmap(id, bytes, preloading, -1, false /* fresh */, decodePriority);
+                }
+                cachedIds.add(id);
+            }
+            if (cachedIds.isEmpty()) {
+                return;
             }
-            mStringBuilder.append(')');
 
-            Cursor cursor = null;
-            try {
-                if (DEBUG) Log.d(TAG, "Loading " + TextUtils.join(",", mPhotoIdsAsStrings));
-                cursor = mResolver.query(Data.CONTENT_URI,
-                        COLUMNS,
-                        mStringBuilder.toString(),
-                        mPhotoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
-                        null);
+            // Let the UI show the photos while we make sure they are still current.
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
 
-                if (cursor != null) {
+            splitProfileIds(cachedIds);
+            validateDiskCachedRows(Data.CONTENT_URI, mContactIdArgs);
+            validateDiskCachedRows(PROFILE_DATA_URI, mProfileIdArgs);
+        }
+
+        /**
+         * Compares the versions of the given photo rows with the ones in the disk cache. Photos
+         * that are still current are marked fresh and removed from {@link #mPhotoIds}, the others
+         * are dropped from the disk cache.
+         */
+        private void validateDiskCachedRows(Uri uri, List<String> ids) {
+            for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+                final Cursor cursor = queryIdChunk(uri, VERSION_COLUMNS, ids, start);
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        final Long id = cursor.getLong(0);
+                        final String diskKey = ContactPhotoDiskCache.keyFor(id, -1);
+                        if (cursor.getInt(1) != mDiskCache.getVersion(diskKey)) {
+                            mDiskCache.remove(diskKey);
+                            continue;
+                        }
+                        final BitmapHolder holder = mBitmapHolderCache.get(id);
+                        if (holder != null && holder != BITMAP_UNAVAILABLE) {
+                            holder.fresh = true;
+                            mPhotoIds.remove(id);
+                            mPhotoIdsAsStrings.remove(String.valueOf(id));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        /**
+         * Loads the given thumbnail rows, caches them and removes them from {@link #mPhotoIds}.
+         */
+        private void loadThumbnailRows(Uri uri, List<String> ids, boolean preloading,
+                int decodePriority) {
+            for (int start = 0; start < ids.size(); start += MAX_IDS_PER_QUERY) {
+                final Cursor cursor = queryIdChunk(uri, COLUMNS, ids, start);
+                if (cursor == null) {
+                    continue;
+                }
+                try {
                     while (cursor.moveToNext()) {
                         Long id = cursor.getLong(0);
                         byte[] bytes = cursor.getBlob(1);
                         if (bytes == null) {
                             bytes = new byte[0];
                         }
-                        cacheBitmap(id, bytes, preloading, -1);
+                        cacheBitmap(id, bytes, preloading, -1, true, decodePriority);
+                        cacheThumbnailOnDisk(id, cursor.getInt(2), bytes);
                         mPhotoIds.remove(id);
                     }
-                }
-            } finally {
-                if (cursor != null) {
+                } finally {
                     cursor.close();
                 }
             }
+        }
 
-            // Remaining photos were not found in the contacts database (but might be in profile).
-            for (Long id : mPhotoIds) {
+        /**
+         * Queries the rows for at most {@link #MAX_IDS_PER_QUERY} ids, starting at {@code start}.
+         */
+        private Cursor queryIdChunk(Uri uri, String[] projection, List<String> ids, int start) {
+            final int end = Math.min(ids.size(), start + MAX_IDS_PER_QUERY);
+            return mResolver.query(uri, projection, buildIdSelection(end - start),
+                    ids.subList(start, end).toArray(EMPTY_STRING_ARRAY), null);
+        }
+
+        /**
+         * Fills {@link #mContactIdArgs} and {@link #mProfileIdArgs} with the given ids, as
+         * profile photos live in a separate database and have to be queried separately.
+         */
+        private void splitProfileIds(Collection<Long> ids) {
+            mContactIdArgs.clear();
+            mProfileIdArgs.clear();
+            for (Long id : ids) {
                 if (ContactsContract.isProfileId(id)) {
-                    Cursor profileCursor = null;
-                    try {
-                        profileCursor = mResolver.query(
-                                ContentUris.withAppendedId(Data.CONTENT_URI, id),
-                                COLUMNS, null, null, null);
-                        if (profileCursor != null && profileCursor.moveToFirst()) {
-                            byte[] bytes = profileCursor.getBlob(1);
-                            if (bytes == null) {
-                                bytes = new byte[0];
-                            }
-                            cacheBitmap(profileCursor.getLong(0), bytes, preloading, -1);
-                        } else {
-                            // Couldn't load a photo this way either.
-                            cacheBitmap(id, null, preloading, -1);
-                        }
-                    } finally {
-                        if (profileCursor != null) {
-                            profileCursor.close();
-                        }
-                    }
+                    mProfileIdArgs.add(String.valueOf(id));
                 } else {
-                    // Not a profile photo and not found - mark the cache accordingly
-                    cacheBitmap(id, null, preloading, -1);
+                    mContactIdArgs.add(String.valueOf(id));
                 }
             }
+        }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        private void cacheThumbnailOnDisk(long id, int photoVersion, byte[] bytes) {
+            if (bytes.length > 0) {
+                mDiskCache.put(ContactPhotoDiskCache.keyFor(id, -1), photoVersion, bytes);
+                requestDiskCacheFlush();
+            }
+        }
+
+        /**
+         * Returns a selection matching the photo ids bound to {@code count} arguments.
+         */
+        private String buildIdSelection(int count) {
+            mStringBuilder.setLength(0);
+            mStringBuilder.append(Photo._ID + " IN(");
+            for (int i = 0; i < count; i++) {
+                if (i != 0) {
+                    mStringBuilder.append(',');
+                }
+                mStringBuilder.append('?');
+            }
+            mStringBuilder.append(')');
+            return mStringBuilder.toString();
         }
 
         /**
          * Loads photos referenced with Uris. Those can be remote thumbnails
-         * (from directory searches), display photos etc
+         * (from directory searches), display photos etc. The reads are handed to
+         * {@link #mFetcher} so that they don't hold up thumbnail queries.
          */
         private void loadUriBasedPhotos() {
             for (Request uriRequest : mPhotoUris) {
                 // Keep the original URI and use this to key into the cache.  Failure to do so will
                 // result in an image being continually reloaded into cache if the original URI
                 // has a contact type encodedFragment (eg nearby places business photo URLs).
-                Uri originalUri = uriRequest.getUri();
-
-                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-                // a business photo -- there is no need to pass this on to the server.
-                Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-                if (mBuffer == null) {
-                    mBuffer = new byte[BUFFER_SIZE];
+                final Uri originalUri = uriRequest.getUri();
+                if (!mUriLoadsInFlight.add(originalUri)) {
+                    continue;
                 }
-                try {
-                    if (DEBUG) Log.d(TAG, "Loading " + uri);
-                    final String scheme = uri.getScheme();
-                    InputStream is = null;
-                    if (scheme.equals("http") || scheme.equals("https")) {
-                        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-                        final HttpURLConnection connection =
-                                (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-                        // Include the user agent if it is specified.
-                        if (!TextUtils.isEmpty(mUserAgent)) {
-                            connection.setRequestProperty("User-Agent", mUserAgent);
-                        }
-                        try {
-                            is = connection.getInputStream();
-                        } catch (IOException e) {
-                            connection.disconnect();
-                            is = null;
-                        }
-                        TrafficStats.clearThreadStatsTag();
+                final int requestedExtent = uriRequest.getRequestedExtent();
+                final String diskKey = ContactPhotoDiskCache.keyFor(originalUri, requestedExtent);
+
+                // Show what we have on disk while the photo is being read. There is no version to
+                // validate it against, so it is kept stale and replaced once the read completes.
+                if (mBitmapHolderCache.get(originalUri) == null) {
+                    final byte[] cachedBytes = mDiskCache.get(diskKey);
+                    if (cachedBytes == null) {
+                        mStats.recordMiss(ContactPhotoStats.TIER_DISK);
                     } else {
-                        is = mResolver.openInputStream(uri);
+                        mStats.recordHit(ContactPhotoStats.TIER_DISK);
+                        cacheBitmap(originalUri, cachedBytes, false, requestedExtent,
+                                false /* fresh */, DECODE_PRIORITY_VISIBLE);
+                        notifyPhotosLoaded();
                     }
-                    if (is != null) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        try {
-                            int size;
-                            while ((size = is.read(mBuffer)) != -1) {
-                                baos.write(mBuffer, 0, size);
-                            }
-                        } finally {
-                            is.close();
-                        }
-                        cacheBitmap(originalUri, baos.toByteArray(), false,
-                                uriRequest.getRequestedExtent());
-                        mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-                    } else {
-                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                            Log.v(TAG, "Cannot load photo " + uri);
+                }
+
+                // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+                // a business photo -- there is no need to pass this on to the server.
+                final Uri uri = ContactPhotoManager.removeContactType(originalUri);
+                final long startNanos = System.nanoTime();
+                mFetcher.fetch(uri, new ContactPhotoFetcher.Callback() {
+                    @Override
+                    public void onPhotoFetched(Uri uri, byte[] bytes) {
+                        mStats.recordLatency(ContactPhotoStats.LATENCY_LOAD_URI, startNanos);
+                        cacheBitmap(originalUri, bytes, false, requestedExtent);
+                        if (bytes != null) {
+                            mDiskCache.put(diskKey, 0, bytes);
+                            requestDiskCacheFlush();
                         }
-                        cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+                        mUriLoadsInFlight.remove(originalUri);
+                        notifyPhotosLoaded();
                     }
-                } catch (final Exception | OutOfMemoryError ex) {
-                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                        Log.v(TAG, "Cannot load photo " + uri, ex);
-                    }
-                    cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
-                }
+                });
             }
         }
     }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for {@link ContactPhotoManagerImpl}: hits and misses per
+ * cache tier, evictions by reason, and decode and load latencies for thumbnails and URI based
+ * photos. All methods are thread-safe.
+ */
+final class ContactPhotoStats {
+    /** Decoded bitmaps, either in the bitmap LRU or softly referenced by a holder. */
+    public static final int TIER_BITMAP = 0;
+    /** Compressed photo bytes held in memory. */
+    public static final int TIER_HOLDER = 1;
+    /** Compressed photo bytes on disk. */
+    public static final int TIER_DISK = 2;
+    private static final String[] TIER_NAMES = { "bitmap", "holder", "disk" };
+
+    /** Dropped to make room for newer entries. */
+    public static final int EVICTION_LRU = 0;
+    /** Dropped in response to {@link android.content.ComponentCallbacks2#onTrimMemory}. */
+    public static final int EVICTION_TRIM_MEMORY = 1;
+    /** Strong reference dropped after display, leaving the bitmap to the garbage collector. */
+    public static final int EVICTION_SOFTEN = 2;
+    private static final String[] EVICTION_NAMES = { "lru", "trimMemory", "soften" };
+
+    public static final int LATENCY_DECODE_THUMBNAIL = 0;
+    public static final int LATENCY_DECODE_URI = 1;
+    /** Provider queries for a batch of thumbnails. */
+    public static final int LATENCY_LOAD_THUMBNAIL = 2;
+    /** Reads of a single URI based photo, including the time spent waiting for a fetch slot. */
+    public static final int LATENCY_LOAD_URI = 3;
+    private static final String[] LATENCY_NAMES =
+            { "decodeThumbnail", "decodeUri", "loadThumbnail", "loadUri" };
+
+    /**
+     * A histogram of durations in buckets that double in size: [0, 1ms), [1, 2ms), [2, 4ms) and
+     * so on, with the last bucket holding everything longer.
+     */
+    static final class Histogram {
+        static final int BUCKET_COUNT = 12;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            final long micros = Math.max(0, nanos / 1000);
+            mBuckets.incrementAndGet(bucketFor(micros / 1000));
+            mCount.incrementAndGet();
+            mTotalMicros.addAndGet(micros);
+            long max;
+            while ((max = mMaxMicros.get()) < micros && !mMaxMicros.compareAndSet(max, micros)) {
+            }
+        }
+
+        long count() {
+            return mCount.get();
+        }
+
+        long bucket(int index) {
+            return mBuckets.get(index);
+        }
+
+        /**
+         * Returns the upper bound in milliseconds of the bucket that holds the given percentile,
+         * or -1 if nothing was recorded. The last bucket is open ended and reports its lower bound.
+         */
+        long percentileMillis(int percentile) {
+            final long count = mCount.get();
+            if (count == 0) {
+                return -1;
+            }
+            final long target = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= target) {
+                    return upperBoundMillis(i);
+                }
+            }
+            return upperBoundMillis(BUCKET_COUNT - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotalMicros.set(0);
+            mMaxMicros.set(0);
+        }
+
+        static int bucketFor(long millis) {
+            if (millis <= 0) {
+                return 0;
+            }
+            return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(millis));
+        }
+
+        /** Bucket {@code i > 0} holds durations in [2^(i-1), 2^i) milliseconds. */
+        static long upperBoundMillis(int bucket) {
+            return bucket == BUCKET_COUNT - 1 ? 1L << (bucket - 1) : 1L << bucket;
+        }
+
+        void dump(PrintWriter writer) {
+            final long count = mCount.get();
+            writer.print("count=" + count);
+            if (count == 0) {
+                writer.println();
+                return;
+            }
+            writer.print(" avg=" + (mTotalMicros.get() / count / 1000f) + "ms");
+            writer.print(" p50<=" + percentileMillis(50) + "ms");
+            writer.print(" p90<=" + percentileMillis(90) + "ms");
+            writer.print(" p99<=" + percentileMillis(99) + "ms");
+            writer.print(" max=" + (mMaxMicros.get() / 1000f) + "ms [");
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                writer.print((i == 0 ? "" : " ") + mBuckets.get(i));
+            }
+            writer.println("]");
+        }
+
+        void addTo(Bundle bundle, String prefix) {
+            final long count = mCount.get();
+            bundle.putLong(prefix + ".count", count);
+            bundle.putLong(prefix + ".totalMicros", mTotalMicros.get());
+            bundle.putLong(prefix + ".maxMicros", mMaxMicros.get());
+            bundle.putLong(prefix + ".p50Millis", percentileMillis(50));
+            bundle.putLong(prefix + ".p90Millis", percentileMillis(90));
+            bundle.putLong(prefix + ".p99Millis", percentileMillis(99));
+            final long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            bundle.putLongArray(prefix + ".buckets", buckets);
+        }
+    }
+
+    private final AtomicLongArray mHits = new AtomicLongArray(TIER_NAMES.length);
+    private final AtomicLongArray mMisses = new AtomicLongArray(TIER_NAMES.length);
+    private final AtomicLongArray mEvictions =
+            new AtomicLongArray(TIER_NAMES.length * EVICTION_NAMES.length);
+    private final Histogram[] mLatencies = new Histogram[LATENCY_NAMES.length];
+
+    public ContactPhotoStats() {
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new Histogram();
+        }
+    }
+
+    public void recordHit(int tier) {
+        mHits.incrementAndGet(tier);
+    }
+
+    public void recordMiss(int tier) {
+        mMisses.incrementAndGet(tier);
+    }
+
+    public void recordEviction(int tier, int reason) {
+        mEvictions.incrementAndGet(tier * EVICTION_NAMES.length + reason);
+    }
+
+    /**
+     * @param startNanos the start of the operation, from {@link System#nanoTime}
+     */
+    public void recordLatency(int latency, long startNanos) {
+        mLatencies[latency].record(System.nanoTime() - startNanos);
+    }
+
+    public long getHitCount(int tier) {
+        return mHits.get(tier);
+    }
+
+    public long getMissCount(int tier) {
+        return mMisses.get(tier);
+    }
+
+    public long getEvictionCount(int tier, int reason) {
+        return mEvictions.get(tier * EVICTION_NAMES.length + reason);
+    }
+
+    public Histogram getLatency(int latency) {
+        return mLatencies[latency];
+    }
+
+    public void reset() {
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            mHits.set(i, 0);
+            mMisses.set(i, 0);
+        }
+        for (int i = 0; i < mEvictions.length(); i++) {
+            mEvictions.set(i, 0);
+        }
+        for (Histogram histogram : mLatencies) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            final long hits = mHits.get(tier);
+            final long lookups = hits + mMisses.get(tier);
+            writer.print(prefix + TIER_NAMES[tier] + ": hits=" + hits + " misses="
+                    + mMisses.get(tier) + " hitRate="
+                    + (lookups == 0 ? 0 : 100 * hits / lookups) + "% evictions:");
+            for (int reason = 0; reason < EVICTION_NAMES.length; reason++) {
+                writer.print(" " + EVICTION_NAMES[reason] + "="
+                        + getEvictionCount(tier, reason));
+            }
+            writer.println();
+        }
+        for (int i = 0; i < LATENCY_NAMES.length; i++) {
+            writer.print(prefix + LATENCY_NAMES[i] + ": ");
+            mLatencies[i].dump(writer);
+        }
+    }
+
+    /**
+     * Adds all counters to the bundle, with keys such as {@code bitmap.hits},
+     * {@code holder.evictions.trimMemory} or {@code decodeThumbnail.p90Millis}.
+     */
+    public void addTo(Bundle bundle) {
+        for (int tier = 0; tier < TIER_NAMES.length; tier++) {
+            bundle.putLong(TIER_NAMES[tier] + ".hits", mHits.get(tier));
+            bundle.putLong(TIER_NAMES[tier] + ".misses", mMisses.get(tier));
+            for (int reason = 0; reason < EVICTION_NAMES.length; reason++) {
+                bundle.putLong(TIER_NAMES[tier] + ".evictions." + EVICTION_NAMES[reason],
+                        getEvictionCount(tier, reason));
+            }
+        }
+        for (int i = 0; i < LATENCY_NAMES.length; i++) {
+            mLatencies[i].addTo(bundle, LATENCY_NAMES[i]);
+        }
+    }
+}
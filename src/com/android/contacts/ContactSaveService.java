@@ -35,6 +35,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.OperationCanceledException;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
@@ -70,14 +71,26 @@ import com.android.contacts.util.ContactPhotoUtils;
 import com.android.contacts.util.PermissionsUtil;
 import com.android.contactsbind.FeedbackHelper;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A service responsible for saving changes to the content provider.
@@ -105,6 +118,8 @@ public class ContactSaveService extends IntentService {
     public static final String EXTRA_SAVE_IS_PROFILE = "saveIsProfile";
     public static final String EXTRA_SAVE_SUCCEEDED = "saveSucceeded";
     public static final String EXTRA_UPDATED_PHOTOS = "updatedPhotos";
+    /** Identifies a save, so that it isn't applied twice if the intent is redelivered. */
+    public static final String EXTRA_SAVE_ID = "saveId";
 
     public static final String ACTION_CREATE_GROUP = "createGroup";
     public static final String ACTION_RENAME_GROUP = "renameGroup";
@@ -123,6 +138,8 @@ public class ContactSaveService extends IntentService {
     public static final String EXTRA_STARRED_FLAG = "starred";
     public static final String EXTRA_DISPLAY_NAME = "extraDisplayName";
     public static final String EXTRA_DISPLAY_NAME_ARRAY = "extraDisplayNameArray";
+    public static final String EXTRA_DELETED_COUNT = "deletedCount";
+    public static final String EXTRA_APPLIED_COUNT = "appliedCount";
 
     public static final String ACTION_SET_SUPER_PRIMARY = "setSuperPrimary";
     public static final String ACTION_CLEAR_PRIMARY = "clearPrimary";
@@ -148,6 +165,9 @@ public class ContactSaveService extends IntentService {
 
     // For debugging and testing what happens when requests are queued up.
     public static final String ACTION_SLEEP = "sleep";
+
+    /** Rolls forward the saves that were cut short, before any other action runs. */
+    private static final String ACTION_RECOVER_SAVES = "recoverSaves";
     public static final String EXTRA_SLEEP_DURATION = "sleepDuration";
 
     public static final String BROADCAST_GROUP_DELETED = "groupDeleted";
@@ -163,6 +183,9 @@ public class ContactSaveService extends IntentService {
     public static final int CONTACTS_LINKED = 1;
     public static final int CONTACTS_SPLIT = 2;
     public static final int BAD_ARGUMENTS = 3;
+    /** Sent between the transactions of a large join or split, with the number of operations. */
+    public static final int AGGREGATION_PROGRESS = 4;
+    public static final int AGGREGATION_CANCELLED = 5;
     public static final int RESULT_UNKNOWN = 0;
     public static final int RESULT_SUCCESS = 1;
     public static final int RESULT_FAILURE = 2;
@@ -191,19 +214,49 @@ public class ContactSaveService extends IntentService {
 
     private static final int MAX_CONTACTS_PROVIDER_BATCH_SIZE = 499;
 
+    /**
+     * The number of contacts to delete between points where the provider may let others access
+     * the database. Deleting a contact deletes all its raw contacts and data.
+     */
+    private static final int DELETE_YIELD_INTERVAL = 100;
+
+    /** The number of actions that may run at the same time. */
+    private static final int MAX_CONCURRENT_ACTIONS = 3;
+
     public interface Listener {
         public void onServiceCompleted(Intent callbackIntent);
     }
 
+    /** Receives the progress of operations that are applied in several transactions. */
+    @VisibleForTesting
+    interface BatchProgressListener {
+        void onBatchApplied(int appliedCount, int totalCount);
+    }
+
     private static final CopyOnWriteArrayList<Listener> sListeners =
             new CopyOnWriteArrayList<Listener>();
 
     // Holds the current state of the service
     private static final State sState = new State();
 
+    /** Whether a join or split is being applied, and whether it should stop. */
+    private static volatile boolean sAggregating;
+    private static volatile boolean sAggregationCancelled;
+
     private Handler mMainHandler;
     private GroupsDao mGroupsDao;
     private SimContactDao mSimContactDao;
+    private ThreadPoolExecutor mExecutor;
+    private SaveActionScheduler mScheduler;
+    private SaveJournal mSaveJournal;
+    /**
+     * The saves that the journal found applied, or rolled forward, since the process started,
+     * mapped to the id of the raw contact they inserted, or -1.
+     */
+    private final Map<String, Long> mCompletedSaves =
+            Collections.synchronizedMap(new HashMap<String, Long>());
+    /** Mirrors {@link IntentService#setIntentRedelivery}, which decides the start mode. */
+    private boolean mRedelivery;
 
     public ContactSaveService() {
         super(TAG);
@@ -216,6 +269,47 @@ public class ContactSaveService extends IntentService {
         super.onCreate();
         mGroupsDao = new GroupsDaoImpl(this);
         mSimContactDao = SimContactDao.create(this);
+        mExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_ACTIONS, MAX_CONCURRENT_ACTIONS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mSaveJournal = new SaveJournal(new File(getFilesDir(), SaveJournal.FILE_NAME));
+        mScheduler = new SaveActionScheduler(mExecutor, new SaveActionScheduler.Callback() {
+            @Override
+            public void runAction(Intent intent) {
+                if (intent != null && ACTION_RECOVER_SAVES.equals(intent.getAction())) {
+                    recoverSaves();
+                } else {
+                    onHandleIntent(intent);
+                }
+            }
+
+            @Override
+            public void onActionSuperseded(Intent intent) {
+                sState.onFinish(intent);
+                notifyStateChanged();
+            }
+
+            @Override
+            public void onFinishedThrough(int startId) {
+                // Acknowledges the intents up to this one, and stops the service if it was the
+                // last one.
+                stopSelf(startId);
+            }
+        });
+        // Start id 0 is never delivered, so acknowledging it doesn't stop the service.
+        mScheduler.submit(new Intent(ACTION_RECOVER_SAVES), 0);
+    }
+
+    @Override
+    public void onDestroy() {
+        mExecutor.shutdown();
+        mSaveJournal.close();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mScheduler.dump("", writer);
     }
 
     public static void registerListener(Listener listener) {
@@ -292,13 +386,23 @@ public class ContactSaveService extends IntentService {
         return getApplicationContext().getSystemService(name);
     }
 
-    // Parent classes Javadoc says not to override this method but we're doing it just to update
-    // our state which should be OK since we're still doing the work in onHandleIntent
+    @Override
+    public void setIntentRedelivery(boolean enabled) {
+        super.setIntentRedelivery(enabled);
+        mRedelivery = enabled;
+    }
+
+    // Parent classes Javadoc says not to override this method. We do to run the intents on our
+    // own scheduler instead of the single worker thread, still doing the work in onHandleIntent.
+    // The start mode is the one IntentService would return.
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        sState.onStart(intent);
-        notifyStateChanged();
-        return super.onStartCommand(intent, flags, startId);
+        if (intent != null) {
+            sState.onStart(intent);
+            notifyStateChanged();
+        }
+        mScheduler.submit(intent, startId);
+        return mRedelivery ? START_REDELIVER_INTENT : START_NOT_STICKY;
     }
 
     @Override
@@ -466,6 +570,7 @@ public class ContactSaveService extends IntentService {
         serviceIntent.putExtra(EXTRA_CONTACT_STATE, (Parcelable) state);
         serviceIntent.putExtra(EXTRA_SAVE_IS_PROFILE, isProfile);
         serviceIntent.putExtra(EXTRA_SAVE_MODE, saveMode);
+        serviceIntent.putExtra(EXTRA_SAVE_ID, UUID.randomUUID().toString());
 
         if (updatedPhotos != null) {
             serviceIntent.putExtra(EXTRA_UPDATED_PHOTOS, (Parcelable) updatedPhotos);
@@ -490,11 +595,15 @@ public class ContactSaveService extends IntentService {
         RawContactDeltaList state = intent.getParcelableExtra(EXTRA_CONTACT_STATE);
         boolean isProfile = intent.getBooleanExtra(EXTRA_SAVE_IS_PROFILE, false);
         Bundle updatedPhotos = intent.getParcelableExtra(EXTRA_UPDATED_PHOTOS);
+        String saveId = intent.getStringExtra(EXTRA_SAVE_ID);
 
         if (state == null) {
             Log.e(TAG, "Invalid arguments for saveContact request");
             return;
         }
+        if (saveId == null) {
+            saveId = UUID.randomUUID().toString();
+        }
 
         int saveMode = intent.getIntExtra(EXTRA_SAVE_MODE, -1);
         // Trim any empty fields, and RawContacts, before persisting
@@ -510,9 +619,25 @@ public class ContactSaveService extends IntentService {
         // Keep track of the id of a newly raw-contact (if any... there can be at most one).
         long insertedRawContactId = -1;
 
+        final Long completedInsertedRawContactId = mCompletedSaves.get(saveId);
+        if (completedInsertedRawContactId != null) {
+            // The save was applied before the process died, and the intent redelivered. A new
+            // contact is only known by the raw contact id that the journal recorded.
+            insertedRawContactId = completedInsertedRawContactId;
+            long rawContactId = state.findRawContactId();
+            if (rawContactId == -1) {
+                rawContactId = insertedRawContactId;
+            }
+            if (rawContactId != -1 && !isProfile) {
+                lookupUri = RawContacts.getContactLookupUri(resolver,
+                        ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId));
+            }
+            succeeded = true;
+        }
+
         // Attempt to persist changes
         int tries = 0;
-        while (tries++ < PERSIST_TRIES) {
+        while (!succeeded && tries++ < PERSIST_TRIES) {
             try {
                 // Build operations and try applying
                 final ArrayList<CPOWrapper> diffWrapper = state.buildDiffWrapper();
@@ -523,6 +648,12 @@ public class ContactSaveService extends IntentService {
                     diff.add(cpoWrapper.getOperation());
                 }
 
+                // A save that takes several transactions is journaled so that it can be rolled
+                // forward if the process dies before the last one. Any other save only records
+                // whether its transaction committed.
+                final boolean resumable = diff.size() > MAX_CONTACTS_PROVIDER_BATCH_SIZE;
+                mSaveJournal.begin(saveId, diff, resumable);
+
                 if (DEBUG) {
                     Log.v(TAG, "Content Provider Operations:");
                     for (ContentProviderOperation operation : diff) {
@@ -540,6 +671,9 @@ public class ContactSaveService extends IntentService {
                         batchFailed = true;
                         break;
                     } else {
+                        mSaveJournal.onBatchApplied(saveId, numberProcessed + subsetCount,
+                                findInsertedRawContactId(results, numberProcessed,
+                                        numberProcessed + subsetCount));
                         numberProcessed += subsetCount;
                     }
                 }
@@ -637,6 +771,7 @@ public class ContactSaveService extends IntentService {
                 }
             }
         }
+        mSaveJournal.end(saveId);
 
         // Now save any updated photos.  We do this at the end to ensure that
         // the ContactProvider already knows about newly-created contacts.
@@ -694,6 +829,60 @@ public class ContactSaveService extends IntentService {
         return subsetResult.length;
     }
 
+    /**
+     * Rolls forward the saves in the journal that the process didn't finish, from the last
+     * batch that was applied, and remembers the saves that are done so that redelivered intents
+     * don't apply them again.
+     */
+    private void recoverSaves() {
+        final ContentResolver resolver = getContentResolver();
+        for (SaveJournal.Entry entry : mSaveJournal.recover()) {
+            if (entry.finished) {
+                mCompletedSaves.put(entry.saveId, entry.insertedRawContactId);
+                continue;
+            }
+            if (entry.operations == null) {
+                // A single transaction either committed or not. If it didn't, the redelivered
+                // intent retries it.
+                if (entry.appliedCount > 0) {
+                    mCompletedSaves.put(entry.saveId, entry.insertedRawContactId);
+                }
+                mSaveJournal.end(entry.saveId);
+                continue;
+            }
+            final ArrayList<ContentProviderOperation> diff = entry.operations;
+            final ContentProviderResult[] results = new ContentProviderResult[diff.size()];
+            int numberProcessed = entry.appliedCount;
+            long insertedRawContactId = entry.insertedRawContactId;
+            Log.i(TAG, "Rolling forward save " + entry.saveId + " from operation "
+                    + numberProcessed + " of " + diff.size());
+            try {
+                while (numberProcessed < diff.size()) {
+                    final int subsetCount =
+                            applyDiffSubset(diff, numberProcessed, results, resolver);
+                    if (subsetCount == -1) {
+                        Log.w(TAG, "Resolver.applyBatch failed in recoverSaves");
+                        break;
+                    }
+                    final long batchInsertedRawContactId = findInsertedRawContactId(results,
+                            numberProcessed, numberProcessed + subsetCount);
+                    if (batchInsertedRawContactId != -1) {
+                        insertedRawContactId = batchInsertedRawContactId;
+                    }
+                    numberProcessed += subsetCount;
+                    mSaveJournal.onBatchApplied(entry.saveId, numberProcessed,
+                            batchInsertedRawContactId);
+                }
+            } catch (RemoteException | OperationApplicationException
+                    | IllegalArgumentException e) {
+                FeedbackHelper.sendFeedback(this, TAG, "Problem rolling forward user edits", e);
+            }
+            // Whether or not it could be completed, the save isn't applied again.
+            mCompletedSaves.put(entry.saveId, insertedRawContactId);
+            mSaveJournal.end(entry.saveId);
+        }
+    }
+
     /**
      * Save updated photo for the specified raw-contact.
      * @return true for success, false for failure
@@ -741,6 +930,26 @@ public class ContactSaveService extends IntentService {
         return -1;
     }
 
+    /**
+     * Find the ID of the raw-contact inserted by the operations from {@code start} to
+     * {@code end}, by the uris of their results. If none was inserted, return -1.
+     */
+    private static long findInsertedRawContactId(ContentProviderResult[] results, int start,
+            int end) {
+        final String rawContactsPath = RawContacts.CONTENT_URI.getEncodedPath();
+        for (int i = start; i < end; i++) {
+            final Uri uri = results[i] == null ? null : results[i].uri;
+            if (uri != null && uri.getEncodedPath().contains(rawContactsPath)) {
+                try {
+                    return ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    // Not a raw contact itself, e.g. a row below one.
+                }
+            }
+        }
+        return -1;
+    }
+
     /**
      * Creates an intent that can be sent to this service to create a new group as
      * well as add new members at the same time.
@@ -793,7 +1002,7 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        updateGroupMembers(resolver, ContentUris.parseId(groupUri), rawContactsToAdd, null);
 
         ContentValues values = new ContentValues();
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
@@ -947,82 +1156,220 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        updateGroupMembers(resolver, groupId, rawContactsToAdd, rawContactsToRemove);
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
         deliverCallback(callbackIntent);
     }
 
-    private void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
-            long groupId) {
-        if (rawContactsToAdd == null) {
-            return;
+    private void updateGroupMembers(ContentResolver resolver, long groupId,
+            long[] rawContactsToAdd, long[] rawContactsToRemove) {
+        try {
+            applyGroupMembershipChanges(resolver, groupId, rawContactsToAdd,
+                    rawContactsToRemove);
+        } catch (RemoteException e) {
+            // Something went wrong, bail without success
+            FeedbackHelper.sendFeedback(this, TAG,
+                    "Problem updating members of group " + String.valueOf(groupId), e);
         }
-        for (long rawContactId : rawContactsToAdd) {
-            try {
-                final ArrayList<ContentProviderOperation> rawContactOperations =
-                        new ArrayList<ContentProviderOperation>();
-
-                // Build an assert operation to ensure the contact is not already in the group
-                final ContentProviderOperation.Builder assertBuilder = ContentProviderOperation
-                        .newAssertQuery(Data.CONTENT_URI);
-                assertBuilder.withSelection(Data.RAW_CONTACT_ID + "=? AND " +
-                        Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                        new String[] { String.valueOf(rawContactId),
-                        GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
-                assertBuilder.withExpectedCount(0);
-                rawContactOperations.add(assertBuilder.build());
-
-                // Build an insert operation to add the contact to the group
-                final ContentProviderOperation.Builder insertBuilder = ContentProviderOperation
-                        .newInsert(Data.CONTENT_URI);
-                insertBuilder.withValue(Data.RAW_CONTACT_ID, rawContactId);
-                insertBuilder.withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-                insertBuilder.withValue(GroupMembership.GROUP_ROW_ID, groupId);
-                rawContactOperations.add(insertBuilder.build());
+    }
 
-                if (DEBUG) {
-                    for (ContentProviderOperation operation : rawContactOperations) {
-                        Log.v(TAG, operation.toString());
-                    }
+    /**
+     * Adds raw contacts to a group and removes others from it. Raw contacts that are already
+     * members aren't added again, and raw contacts that are to be both added and removed end up
+     * removed. Only the memberships that change are written, in as few transactions as possible.
+     * Raw contacts that no longer exist aren't added. A transaction that still fails, for
+     * instance because a raw contact was deleted after that check, is retried without the bad
+     * changes so that the others in it are still written.
+     *
+     * @return the number of memberships inserted and deleted
+     */
+    @VisibleForTesting
+    static int applyGroupMembershipChanges(ContentResolver resolver, long groupId,
+            long[] rawContactsToAdd, long[] rawContactsToRemove) throws RemoteException {
+        if ((rawContactsToAdd == null || rawContactsToAdd.length == 0)
+                && (rawContactsToRemove == null || rawContactsToRemove.length == 0)) {
+            return 0;
+        }
+        final HashSet<Long> toRemove = new HashSet<>();
+        if (rawContactsToRemove != null) {
+            for (long rawContactId : rawContactsToRemove) {
+                toRemove.add(rawContactId);
+            }
+        }
+
+        // Look up the current members of the group once instead of asserting that each new
+        // member isn't one yet.
+        final HashSet<Long> members = new HashSet<>();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // The raw contact each operation adds to the group, or -1 for removals.
+        final ArrayList<Long> addedRawContactIds = new ArrayList<>();
+        final Cursor cursor = resolver.query(Data.CONTENT_URI,
+                new String[] { Data._ID, Data.RAW_CONTACT_ID },
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId) },
+                null);
+        if (cursor == null) {
+            Log.e(TAG, "Failed to query members of group " + groupId);
+            return 0;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long rawContactId = cursor.getLong(1);
+                members.add(rawContactId);
+                if (toRemove.contains(rawContactId)) {
+                    operations.add(ContentProviderOperation.newDelete(
+                            ContentUris.withAppendedId(Data.CONTENT_URI, cursor.getLong(0)))
+                            .build());
+                    addedRawContactIds.add(-1L);
                 }
+            }
+        } finally {
+            cursor.close();
+        }
 
-                // Apply batch
-                if (!rawContactOperations.isEmpty()) {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
+        final ArrayList<Long> candidates = new ArrayList<>();
+        if (rawContactsToAdd != null) {
+            for (long rawContactId : rawContactsToAdd) {
+                candidates.add(rawContactId);
+            }
+        }
+        final Set<Long> existing = queryExistingRawContacts(resolver, candidates);
+        if (rawContactsToAdd != null) {
+            for (long rawContactId : rawContactsToAdd) {
+                // Adding the raw contact also marks it as a member, in case it is listed twice.
+                if (toRemove.contains(rawContactId) || !existing.contains(rawContactId)
+                        || !members.add(rawContactId)) {
+                    continue;
                 }
-            } catch (RemoteException e) {
-                // Something went wrong, bail without success
-                FeedbackHelper.sendFeedback(this, TAG,
-                        "Problem persisting user edits for raw contact ID " +
-                                String.valueOf(rawContactId), e);
+                operations.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                        .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                        .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
+                        .withValue(GroupMembership.GROUP_ROW_ID, groupId)
+                        .build());
+                addedRawContactIds.add(rawContactId);
+            }
+        }
+
+        if (DEBUG) {
+            for (ContentProviderOperation operation : operations) {
+                Log.v(TAG, operation.toString());
+            }
+        }
+        int applied = 0;
+        for (int offset = 0; offset < operations.size();
+                offset += MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+            final int end = Math.min(offset + MAX_CONTACTS_PROVIDER_BATCH_SIZE,
+                    operations.size());
+            applied += applyMembershipChunk(resolver, operations.subList(offset, end),
+                    addedRawContactIds.subList(offset, end));
+        }
+        return applied;
+    }
+
+    /**
+     * Applies a chunk of membership changes in one transaction. If it fails, the additions of
+     * raw contacts that were deleted in the meantime are dropped and the rest is tried again
+     * once. If that fails too, the changes are split in halves until the bad ones are found, so
+     * that a bad change costs a few transactions rather than one per change.
+     *
+     * @param addedRawContactIds the raw contact each operation adds, or -1 for removals
+     * @return the number of operations applied
+     */
+    private static int applyMembershipChunk(ContentResolver resolver,
+            List<ContentProviderOperation> operations, List<Long> addedRawContactIds)
+            throws RemoteException {
+        try {
+            resolver.applyBatch(ContactsContract.AUTHORITY, new ArrayList<>(operations));
+            return operations.size();
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Group membership changes failed, checking the raw contacts", e);
+        }
+        final Set<Long> existing = queryExistingRawContacts(resolver, addedRawContactIds);
+        final ArrayList<ContentProviderOperation> remaining = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            final long rawContactId = addedRawContactIds.get(i);
+            if (rawContactId == -1 || existing.contains(rawContactId)) {
+                remaining.add(operations.get(i));
+            }
+        }
+        if (remaining.size() < operations.size()) {
+            try {
+                resolver.applyBatch(ContactsContract.AUTHORITY, new ArrayList<>(remaining));
+                return remaining.size();
             } catch (OperationApplicationException e) {
-                // The assert could have failed because the contact is already in the group,
-                // just continue to the next contact
-                FeedbackHelper.sendFeedback(this, TAG,
-                        "Assert failed in adding raw contact ID " +
-                                String.valueOf(rawContactId) + ". Already exists in group " +
-                                String.valueOf(groupId), e);
+                Log.w(TAG, "Group membership changes failed again", e);
             }
         }
+        return applyInHalves(resolver, remaining);
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
-            long groupId) {
-        if (rawContactsToRemove == null) {
-            return;
+    /**
+     * Applies the two halves of operations that failed together, each in a transaction of its
+     * own. A single operation that fails is skipped.
+     *
+     * @return the number of operations applied
+     */
+    private static int applyInHalves(ContentResolver resolver,
+            List<ContentProviderOperation> operations) throws RemoteException {
+        if (operations.size() == 1) {
+            Log.w(TAG, "Skipping group membership change " + operations.get(0));
         }
-        for (long rawContactId : rawContactsToRemove) {
-            // Apply the delete operation on the data row for the given raw contact's
-            // membership in the given group. If no contact matches the provided selection, then
-            // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
-                    Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
-                    new String[] { String.valueOf(rawContactId),
-                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
+        if (operations.size() <= 1) {
+            return 0;
         }
+        final int middle = operations.size() / 2;
+        return applyOrSplit(resolver, operations.subList(0, middle))
+                + applyOrSplit(resolver, operations.subList(middle, operations.size()));
+    }
+
+    /**
+     * Applies operations in one transaction, or in halves if that fails.
+     *
+     * @return the number of operations applied
+     */
+    private static int applyOrSplit(ContentResolver resolver,
+            List<ContentProviderOperation> operations) throws RemoteException {
+        try {
+            resolver.applyBatch(ContactsContract.AUTHORITY, new ArrayList<>(operations));
+            return operations.size();
+        } catch (OperationApplicationException e) {
+            return applyInHalves(resolver, operations);
+        }
+    }
+
+    /**
+     * Returns which of the given raw contacts exist and aren't deleted, so that a raw contact
+     * deleted since it was picked doesn't fail the transaction that adds it to a group.
+     */
+    private static Set<Long> queryExistingRawContacts(ContentResolver resolver,
+            Collection<Long> rawContactIds) {
+        final HashSet<Long> existing = new HashSet<>();
+        if (rawContactIds.isEmpty()) {
+            return existing;
+        }
+        // The ids are inlined rather than bound so that the selection isn't limited by the
+        // number of arguments SQLite accepts.
+        final StringBuilder selection = new StringBuilder(RawContacts.DELETED)
+                .append("=0 AND ").append(RawContacts._ID).append(" IN (");
+        for (long rawContactId : rawContactIds) {
+            selection.append(rawContactId).append(',');
+        }
+        selection.setCharAt(selection.length() - 1, ')');
+        final Cursor cursor = resolver.query(RawContacts.CONTENT_URI,
+                new String[] { RawContacts._ID }, selection.toString(), null, null);
+        if (cursor == null) {
+            return existing;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
     }
 
     /**
@@ -1190,6 +1537,25 @@ public class ContactSaveService extends IntentService {
         return serviceIntent;
     }
 
+    /**
+     * Creates an intent that can be sent to this service to delete multiple contacts. The
+     * callback intent is delivered with {@link #EXTRA_DELETED_COUNT} and
+     * {@link #EXTRA_RESULT_COUNT} after each transaction, and once more with
+     * {@link #EXTRA_RESULT_CODE} when all contacts are deleted or the request failed. The
+     * contacts of the transactions before a failure stay deleted, and are counted in
+     * {@link #EXTRA_DELETED_COUNT}.
+     */
+    public static Intent createDeleteMultipleContactsIntent(Context context,
+            long[] contactIds, final String[] names, Class<? extends Activity> callbackActivity,
+            String callbackAction) {
+        final Intent serviceIntent = createDeleteMultipleContactsIntent(context, contactIds,
+                names);
+        final Intent callbackIntent = new Intent(context, callbackActivity);
+        callbackIntent.setAction(callbackAction);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_CALLBACK_INTENT, callbackIntent);
+        return serviceIntent;
+    }
+
     private void deleteContact(Intent intent) {
         Uri contactUri = intent.getParcelableExtra(EXTRA_CONTACT_URI);
         if (contactUri == null) {
@@ -1206,9 +1572,54 @@ public class ContactSaveService extends IntentService {
             Log.e(TAG, "Invalid arguments for deleteMultipleContacts request");
             return;
         }
-        for (long contactId : contactIds) {
-            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-            getContentResolver().delete(contactUri, null, null);
+        final Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
+        // The contacts deleted by the transactions that were committed.
+        final int[] deletedCount = new int[1];
+        final BatchProgressListener progressListener = new BatchProgressListener() {
+            @Override
+            public void onBatchApplied(int appliedCount, int totalCount) {
+                deletedCount[0] = appliedCount;
+                if (callbackIntent != null && appliedCount < totalCount) {
+                    deliverCallback(new Intent(callbackIntent)
+                            .putExtra(EXTRA_DELETED_COUNT, appliedCount)
+                            .putExtra(EXTRA_RESULT_COUNT, totalCount));
+                }
+            }
+        };
+        // One transaction per batch rather than per contact, so the provider notifies its
+        // observers once per batch.
+        boolean succeeded;
+        try {
+            applyInBatches(getContentResolver(), buildDeleteContactsOperations(contactIds),
+                    progressListener);
+            succeeded = true;
+        } catch (RemoteException | OperationApplicationException e) {
+            FeedbackHelper.sendFeedback(this, TAG, "Failed to delete contacts", e);
+            succeeded = false;
+        }
+        if (callbackIntent != null) {
+            // A failed request may still have deleted the contacts of its earlier batches.
+            deliverCallback(new Intent(callbackIntent)
+                    .putExtra(EXTRA_DELETED_COUNT, deletedCount[0])
+                    .putExtra(EXTRA_RESULT_COUNT, contactIds.length)
+                    .putExtra(EXTRA_RESULT_CODE, succeeded ? RESULT_SUCCESS : RESULT_FAILURE));
+        }
+        if (!succeeded) {
+            if (deletedCount[0] == 0) {
+                showToast(R.string.contactGenericErrorToast);
+                return;
+            }
+            final String partialToastMessage = getResources().getQuantityString(
+                    R.plurals.contacts_partially_deleted_toast, deletedCount[0],
+                    deletedCount[0], contactIds.length);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(ContactSaveService.this, partialToastMessage,
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+            return;
         }
         final String[] names = intent.getStringArrayExtra(
                 ContactSaveService.EXTRA_DISPLAY_NAME_ARRAY);
@@ -1236,6 +1647,53 @@ public class ContactSaveService extends IntentService {
         });
     }
 
+    /**
+     * Builds the operations that delete the given contacts, with a yield point every
+     * {@link #DELETE_YIELD_INTERVAL} contacts.
+     */
+    @VisibleForTesting
+    static ArrayList<ContentProviderOperation> buildDeleteContactsOperations(long[] contactIds) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<>(contactIds.length);
+        for (int i = 0; i < contactIds.length; i++) {
+            operations.add(ContentProviderOperation.newDelete(
+                    ContentUris.withAppendedId(Contacts.CONTENT_URI, contactIds[i]))
+                    .withYieldAllowed(i > 0 && i % DELETE_YIELD_INTERVAL == 0)
+                    .build());
+        }
+        return operations;
+    }
+
+    /**
+     * Applies the operations in transactions of at most
+     * {@link #MAX_CONTACTS_PROVIDER_BATCH_SIZE} operations each, reporting progress after each
+     * transaction.
+     *
+     * @return the number of rows the operations affected
+     */
+    @VisibleForTesting
+    static int applyInBatches(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations, BatchProgressListener listener)
+            throws RemoteException, OperationApplicationException {
+        int count = 0;
+        for (int offset = 0; offset < operations.size();
+                offset += MAX_CONTACTS_PROVIDER_BATCH_SIZE) {
+            final int end = Math.min(offset + MAX_CONTACTS_PROVIDER_BATCH_SIZE,
+                    operations.size());
+            final ContentProviderResult[] results = resolver.applyBatch(
+                    ContactsContract.AUTHORITY, new ArrayList<>(operations.subList(offset, end)));
+            for (ContentProviderResult result : results) {
+                if (result.count != null) {
+                    count += result.count;
+                }
+            }
+            if (listener != null) {
+                listener.onBatchApplied(end, operations.size());
+            }
+        }
+        return count;
+    }
+
     /**
      * Creates an intent that can be sent to this service to split a contact into it's constituent
      * pieces. This will set the raw contact ids to {@link AggregationExceptions#TYPE_AUTOMATIC} so
@@ -1256,10 +1714,21 @@ public class ContactSaveService extends IntentService {
      * {@link AggregationExceptions#TYPE_KEEP_SEPARATE}.
      */
     public static Intent createHardSplitContactIntent(Context context, long[][] rawContactIds) {
+        return createHardSplitContactIntent(context, rawContactIds, /* receiver = */ null);
+    }
+
+    /**
+     * Creates an intent like {@link #createHardSplitContactIntent(Context, long[][])} whose
+     * progress and result are sent to the receiver, e.g. an
+     * {@link AggregationProgressReceiver}.
+     */
+    public static Intent createHardSplitContactIntent(Context context, long[][] rawContactIds,
+            ResultReceiver receiver) {
         final Intent serviceIntent = new Intent(context, ContactSaveService.class);
         serviceIntent.setAction(ContactSaveService.ACTION_SPLIT_CONTACT);
         serviceIntent.putExtra(ContactSaveService.EXTRA_RAW_CONTACT_IDS, rawContactIds);
         serviceIntent.putExtra(ContactSaveService.EXTRA_HARD_SPLIT, true);
+        serviceIntent.putExtra(ContactSaveService.EXTRA_RESULT_RECEIVER, receiver);
         return serviceIntent;
     }
 
@@ -1275,26 +1744,17 @@ public class ContactSaveService extends IntentService {
             }
             return;
         }
-        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        final ContentResolver resolver = getContentResolver();
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    if (!buildSplitTwoContacts(operations, rawContactIds[i], rawContactIds[j],
-                            hardSplit)) {
-                        if (receiver != null) {
-                            receiver.send(CP2_ERROR, new Bundle());
-                            return;
-                        }
-                    }
+        for (long[] group : rawContactIds) {
+            if (group == null) {
+                Log.e(TAG, "Invalid arguments for splitContact request");
+                if (receiver != null) {
+                    receiver.send(CP2_ERROR, new Bundle());
                 }
+                return;
             }
         }
-        if (operations.size() > 0 && !applyOperations(resolver, operations)) {
-            if (receiver != null) {
-                receiver.send(CP2_ERROR, new Bundle());
-            }
+        if (!applyAggregationOperations(AggregationPlanner.planSplit(rawContactIds, hardSplit),
+                receiver)) {
             return;
         }
         LocalBroadcastManager.getInstance(this)
@@ -1306,36 +1766,6 @@ public class ContactSaveService extends IntentService {
         }
     }
 
-    /**
-     * Insert aggregation exception ContentProviderOperations between {@param rawContactIds1}
-     * and {@param rawContactIds2} to {@param operations}.
-     * @return false if an error occurred, true otherwise.
-     */
-    private boolean buildSplitTwoContacts(ArrayList<ContentProviderOperation> operations,
-            long[] rawContactIds1, long[] rawContactIds2, boolean hardSplit) {
-        if (rawContactIds1 == null || rawContactIds2 == null) {
-            Log.e(TAG, "Invalid arguments for splitContact request");
-            return false;
-        }
-        // For each pair of raw contacts, insert an aggregation exception
-        final ContentResolver resolver = getContentResolver();
-        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
-        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        for (int i = 0; i < rawContactIds1.length; i++) {
-            for (int j = 0; j < rawContactIds2.length; j++) {
-                buildSplitContactDiff(operations, rawContactIds1[i], rawContactIds2[j], hardSplit);
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyOperations(resolver, operations)) {
-                        return false;
-                    }
-                    operations.clear();
-                }
-            }
-        }
-        return true;
-    }
-
     /**
      * Creates an intent that can be sent to this service to join two contacts.
      * The resulting contact uses the name from {@param contactId1} if possible.
@@ -1420,36 +1850,12 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        // For each pair of raw contacts, insert an aggregation exception
-        final ContentResolver resolver = getContentResolver();
-        // The maximum number of operations per batch (aka yield point) is 500. See b/22480225
-        final int batchSize = MAX_CONTACTS_PROVIDER_BATCH_SIZE;
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(batchSize);
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-                // Before we get to 500 we need to flush the operations list
-                if (operations.size() > 0 && operations.size() % batchSize == 0) {
-                    if (!applyOperations(resolver, operations)) {
-                        if (receiver != null) {
-                            receiver.send(CP2_ERROR, new Bundle());
-                        }
-                        return;
-                    }
-                    operations.clear();
-                }
-            }
-        }
-        if (operations.size() > 0 && !applyOperations(resolver, operations)) {
-            if (receiver != null) {
-                receiver.send(CP2_ERROR, new Bundle());
-            }
+        // Keep the raw contacts together, overriding any exceptions that keep them apart
+        if (!applyAggregationOperations(AggregationPlanner.planJoin(rawContactIds,
+                queryKeepSeparatePairs(rawContactIds)), receiver)) {
             return;
         }
 
-
         final String name = queryNameOfLinkedContacts(contactIds);
         if (name != null) {
             if (receiver != null) {
@@ -1546,16 +1952,9 @@ public class ContactSaveService extends IntentService {
             return;
         }
 
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
-
-        // For each pair of raw contacts, insert an aggregation exception
-        for (int i = 0; i < rawContactIds.length; i++) {
-            for (int j = 0; j < rawContactIds.length; j++) {
-                if (i != j) {
-                    buildJoinContactDiff(operations, rawContactIds[i], rawContactIds[j]);
-                }
-            }
-        }
+        // Keep the raw contacts together, overriding any exceptions that keep them apart
+        final ArrayList<ContentProviderOperation> operations = AggregationPlanner.planJoin(
+                rawContactIds, queryKeepSeparatePairs(rawContactIds));
 
         final ContentResolver resolver = getContentResolver();
 
@@ -1712,34 +2111,101 @@ public class ContactSaveService extends IntentService {
     }
 
     /**
-     * Construct a {@link AggregationExceptions#TYPE_KEEP_TOGETHER} ContentProviderOperation.
+     * Returns the pairs of the raw contacts that are explicitly kept separate, or null if they
+     * couldn't be queried.
      */
-    private void buildJoinContactDiff(ArrayList<ContentProviderOperation> operations,
-            long rawContactId1, long rawContactId2) {
-        Builder builder =
-                ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI);
-        builder.withValue(AggregationExceptions.TYPE, AggregationExceptions.TYPE_KEEP_TOGETHER);
-        builder.withValue(AggregationExceptions.RAW_CONTACT_ID1, rawContactId1);
-        builder.withValue(AggregationExceptions.RAW_CONTACT_ID2, rawContactId2);
-        operations.add(builder.build());
+    private List<long[]> queryKeepSeparatePairs(long[] rawContactIds) {
+        final StringBuilder ids = new StringBuilder();
+        for (long rawContactId : rawContactIds) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(rawContactId);
+        }
+        final Cursor c = getContentResolver().query(AggregationExceptions.CONTENT_URI,
+                new String[] {
+                        AggregationExceptions.RAW_CONTACT_ID1,
+                        AggregationExceptions.RAW_CONTACT_ID2 },
+                AggregationExceptions.TYPE + "=" + AggregationExceptions.TYPE_KEEP_SEPARATE
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID1 + " IN (" + ids + ")"
+                        + " AND " + AggregationExceptions.RAW_CONTACT_ID2 + " IN (" + ids + ")",
+                null, null);
+        if (c == null) {
+            Log.e(TAG, "Unable to query aggregation exceptions");
+            return null;
+        }
+        try {
+            final List<long[]> pairs = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                pairs.add(new long[] { c.getLong(0), c.getLong(1) });
+            }
+            return pairs;
+        } finally {
+            c.close();
+        }
     }
 
     /**
-     * Construct a {@link AggregationExceptions#TYPE_AUTOMATIC} or a
-     * {@link AggregationExceptions#TYPE_KEEP_SEPARATE} ContentProviderOperation if a hard split is
-     * requested.
+     * Stops the join or split that is being applied before its next transaction. Transactions
+     * that were already applied stay applied, and the receiver of the request gets
+     * {@link #AGGREGATION_CANCELLED}.
      */
-    private void buildSplitContactDiff(ArrayList<ContentProviderOperation> operations,
-            long rawContactId1, long rawContactId2, boolean hardSplit) {
-        final Builder builder =
-                ContentProviderOperation.newUpdate(AggregationExceptions.CONTENT_URI);
-        builder.withValue(AggregationExceptions.TYPE,
-                hardSplit
-                        ? AggregationExceptions.TYPE_KEEP_SEPARATE
-                        : AggregationExceptions.TYPE_AUTOMATIC);
-        builder.withValue(AggregationExceptions.RAW_CONTACT_ID1, rawContactId1);
-        builder.withValue(AggregationExceptions.RAW_CONTACT_ID2, rawContactId2);
-        operations.add(builder.build());
+    public static void cancelAggregation() {
+        if (sAggregating) {
+            sAggregationCancelled = true;
+        }
+    }
+
+    /**
+     * Applies the aggregation exceptions of a join or split, sending
+     * {@link #AGGREGATION_PROGRESS} to the receiver between transactions.
+     *
+     * @return true if all operations were applied. Otherwise the receiver got the error.
+     */
+    private boolean applyAggregationOperations(ArrayList<ContentProviderOperation> operations,
+            final ResultReceiver receiver) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        sAggregationCancelled = false;
+        sAggregating = true;
+        try {
+            applyInBatches(getContentResolver(), operations, new BatchProgressListener() {
+                @Override
+                public void onBatchApplied(int appliedCount, int totalCount) {
+                    if (appliedCount == totalCount) {
+                        return;
+                    }
+                    if (sAggregationCancelled) {
+                        throw new OperationCanceledException();
+                    }
+                    if (receiver != null) {
+                        final Bundle progress = new Bundle();
+                        progress.putInt(EXTRA_APPLIED_COUNT, appliedCount);
+                        progress.putInt(EXTRA_RESULT_COUNT, totalCount);
+                        receiver.send(AGGREGATION_PROGRESS, progress);
+                    }
+                }
+            });
+            return true;
+        } catch (OperationCanceledException e) {
+            Log.i(TAG, "Aggregation cancelled");
+            if (receiver != null) {
+                receiver.send(AGGREGATION_CANCELLED, new Bundle());
+            }
+            return false;
+        } catch (RemoteException | OperationApplicationException e) {
+            FeedbackHelper.sendFeedback(this, TAG,
+                    "Failed to apply aggregation exception batch", e);
+            showToast(R.string.contactSavedErrorToast);
+            if (receiver != null) {
+                receiver.send(CP2_ERROR, new Bundle());
+            }
+            return false;
+        } finally {
+            sAggregating = false;
+            sAggregationCancelled = false;
+        }
     }
 
     /**
@@ -1799,11 +2265,17 @@ public class ContactSaveService extends IntentService {
     }
 
     private void deliverCallback(final Intent callbackIntent) {
-        mMainHandler.post(new Runnable() {
-
+        // Actions may run concurrently, but their callbacks arrive in the order of the actions.
+        mScheduler.deliverInOrder(new Runnable() {
             @Override
             public void run() {
-                deliverCallbackOnUiThread(callbackIntent);
+                mMainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        deliverCallbackOnUiThread(callbackIntent);
+                    }
+                });
             }
         });
     }
@@ -1967,6 +2439,10 @@ public class ContactSaveService extends IntentService {
             if (mPending.isEmpty()) {
                 return;
             }
+            // Actions may finish out of order.
+            if (mPending.remove(intent)) {
+                return;
+            }
             final String action = mPending.get(0).getAction();
             if (action.equals(intent.getAction())) {
                 mPending.remove(0);
@@ -426,6 +426,13 @@ public class DynamicShortcuts {
         }
         final Drawable avatar = ContactPhotoManager.getDefaultAvatarDrawableForContact(
                 mContext.getResources(), true, request);
+        if (avatar instanceof LetterTileDrawable) {
+            // Shortcut icons are parceled, never drawn into, so the shared tile can be used.
+            final Bitmap tile = ((LetterTileDrawable) avatar).getTileBitmap(mIconSize, mIconSize);
+            if (tile != null) {
+                return tile;
+            }
+        }
         final Bitmap result = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
         // The avatar won't draw unless it thinks it is visible
         avatar.setVisible(true, true);
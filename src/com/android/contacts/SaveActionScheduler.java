@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.android.contacts.model.RawContactDelta;
+import com.android.contacts.model.RawContactDeltaList;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the actions of {@link ContactSaveService} concurrently where they can't interfere.
+ *
+ * <p>Each action touches a set of keys, e.g. the contact it updates. Actions run in the order
+ * they were submitted with respect to earlier actions that share a key with them, and
+ * concurrently with the others. Actions whose effects can't be told in advance, such as joins,
+ * deletes and group changes, touch everything: they wait for all earlier actions, and all later
+ * ones wait for them. So do primary changes, since making one data row primary clears the flag
+ * on the other rows of its kind, and actions on a contact uri without an id, since saves key
+ * contacts by id.</p>
+ *
+ * <p>An action that sets a field of a contact, e.g. starred, supersedes an earlier one that
+ * sets the same field and didn't start yet, which is then dropped. Callbacks that actions
+ * deliver through {@link #deliverInOrder} arrive in the order the actions were submitted.</p>
+ */
+final class SaveActionScheduler {
+    private static final String TAG = "SaveActionScheduler";
+
+    /** Runs the actions and learns about their progress. */
+    interface Callback {
+        /** Runs an action, on a thread of the executor. */
+        void runAction(Intent intent);
+
+        /** The action was dropped because a later one supersedes it. */
+        void onActionSuperseded(Intent intent);
+
+        /**
+         * All actions up to the one that was started with {@code startId} finished, or were
+         * superseded.
+         */
+        void onFinishedThrough(int startId);
+    }
+
+    private final class Action implements Runnable {
+        final long sequence;
+        final Intent intent;
+        /** The keys this action touches, or null if it touches everything. */
+        final Set<String> keys;
+        /** The field this action sets, or null if it doesn't supersede earlier actions. */
+        final String field;
+        final long submitTime;
+        /** Callbacks held back until all earlier actions finished. */
+        final List<Runnable> callbacks = new ArrayList<>();
+
+        Action(long sequence, Intent intent) {
+            this.sequence = sequence;
+            this.intent = intent;
+            this.keys = getKeys(intent);
+            this.field = getField(intent);
+            this.submitTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean conflictsWith(Set<String> otherKeys) {
+            return keys == null || !Collections.disjoint(keys, otherKeys);
+        }
+
+        @Override
+        public void run() {
+            runAction(this);
+        }
+    }
+
+    private static final String KEY_SAVE = "save";
+    /** The path segment of lookup uris, see {@code Contacts.CONTENT_LOOKUP_URI}. */
+    private static final String LOOKUP_SEGMENT = "lookup";
+
+    private static final ThreadLocal<Action> sCurrentAction = new ThreadLocal<>();
+
+    private final Executor mExecutor;
+    private final Callback mCallback;
+
+    private final Object mLock = new Object();
+    /** Actions that didn't start yet, in the order they were submitted. */
+    private final List<Action> mPending = new ArrayList<>();
+    /** Actions that didn't finish yet, including pending ones, by sequence. */
+    private final TreeMap<Long, Action> mUnfinished = new TreeMap<>();
+    /** Finished actions whose callbacks wait for earlier actions, by sequence. */
+    private final TreeMap<Long, Action> mFinished = new TreeMap<>();
+    /** The start ids of the actions, by sequence, until all actions up to them finished. */
+    private final TreeMap<Long, Integer> mStartIds = new TreeMap<>();
+    private final Set<String> mRunningKeys = new HashSet<>();
+    private int mRunningCount;
+    private boolean mRunningEverything;
+    private long mNextSequence;
+    /** The last action up to which all actions finished and were reported. */
+    private long mLastReportedSequence = -1;
+
+    // Stats, guarded by mLock.
+    private long mSubmittedCount;
+    private long mSupersededCount;
+    private int mMaxQueueDepth;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+    private long mStartedCount;
+
+    SaveActionScheduler(Executor executor, Callback callback) {
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules an action.
+     */
+    public void submit(Intent intent, int startId) {
+        final List<Action> superseded = new ArrayList<>();
+        synchronized (mLock) {
+            final Action action = new Action(mNextSequence++, intent);
+            mStartIds.put(action.sequence, startId);
+            mSubmittedCount++;
+            if (action.field != null) {
+                // Drop earlier actions that set the same field, as long as nothing in between
+                // depends on them.
+                for (int i = mPending.size() - 1; i >= 0; i--) {
+                    final Action earlier = mPending.get(i);
+                    if (action.field.equals(earlier.field)) {
+                        mPending.remove(i);
+                        superseded.add(earlier);
+                    } else if (earlier.conflictsWith(action.keys)) {
+                        break;
+                    }
+                }
+            }
+            mPending.add(action);
+            mUnfinished.put(action.sequence, action);
+            for (Action earlier : superseded) {
+                mSupersededCount++;
+                mUnfinished.remove(earlier.sequence);
+            }
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+            scheduleLocked();
+        }
+        for (Action earlier : superseded) {
+            mCallback.onActionSuperseded(earlier.intent);
+        }
+        if (!superseded.isEmpty()) {
+            onActionsFinished();
+        }
+    }
+
+    /**
+     * Runs the callback of the action that is running on this thread once all actions that were
+     * submitted before it finished. Runs it right away if there are none, or if it isn't called
+     * from an action.
+     */
+    public void deliverInOrder(Runnable callback) {
+        final Action action = sCurrentAction.get();
+        synchronized (mLock) {
+            if (action != null && mUnfinished.firstKey() != action.sequence) {
+                action.callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /** Returns the number of actions that didn't start yet. */
+    @VisibleForTesting
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println(prefix + "SaveActionScheduler: submitted=" + mSubmittedCount
+                    + " superseded=" + mSupersededCount + " queueDepth=" + mPending.size()
+                    + " maxQueueDepth=" + mMaxQueueDepth + " running=" + mRunningCount
+                    + " averageWaitMillis="
+                    + (mStartedCount == 0 ? 0 : mTotalWaitMillis / mStartedCount)
+                    + " maxWaitMillis=" + mMaxWaitMillis);
+        }
+    }
+
+    private void scheduleLocked() {
+        if (mRunningEverything) {
+            return;
+        }
+        // Keys of running actions, and of pending ones that later actions have to wait for.
+        final Set<String> blockedKeys = new HashSet<>(mRunningKeys);
+        final Iterator<Action> iterator = mPending.iterator();
+        while (iterator.hasNext()) {
+            final Action action = iterator.next();
+            if (action.keys == null) {
+                if (mRunningCount == 0 && action == mPending.get(0)) {
+                    iterator.remove();
+                    mRunningEverything = true;
+                    startLocked(action);
+                }
+                // Nothing after it may start before it finished.
+                return;
+            }
+            if (action.conflictsWith(blockedKeys)) {
+                blockedKeys.addAll(action.keys);
+                continue;
+            }
+            iterator.remove();
+            blockedKeys.addAll(action.keys);
+            mRunningKeys.addAll(action.keys);
+            startLocked(action);
+        }
+    }
+
+    private void startLocked(Action action) {
+        mRunningCount++;
+        mStartedCount++;
+        final long waitMillis = SystemClock.elapsedRealtime() - action.submitTime;
+        mTotalWaitMillis += waitMillis;
+        mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Starting " + action.intent.getAction() + " after " + waitMillis
+                    + "ms, " + mPending.size() + " queued");
+        }
+        mExecutor.execute(action);
+    }
+
+    private void runAction(Action action) {
+        sCurrentAction.set(action);
+        try {
+            mCallback.runAction(action.intent);
+        } finally {
+            sCurrentAction.remove();
+            synchronized (mLock) {
+                mRunningCount--;
+                if (action.keys == null) {
+                    mRunningEverything = false;
+                } else {
+                    mRunningKeys.removeAll(action.keys);
+                }
+                mUnfinished.remove(action.sequence);
+                if (!action.callbacks.isEmpty()) {
+                    mFinished.put(action.sequence, action);
+                }
+                scheduleLocked();
+            }
+            onActionsFinished();
+        }
+    }
+
+    /**
+     * Delivers the callbacks that no longer wait for earlier actions and reports how far the
+     * actions finished.
+     */
+    private void onActionsFinished() {
+        final List<Runnable> callbacks = new ArrayList<>();
+        int finishedThroughStartId = -1;
+        synchronized (mLock) {
+            final long oldestUnfinished =
+                    mUnfinished.isEmpty() ? Long.MAX_VALUE : mUnfinished.firstKey();
+            final Iterator<Map.Entry<Long, Action>> iterator = mFinished.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Action action = iterator.next().getValue();
+                if (action.sequence > oldestUnfinished) {
+                    break;
+                }
+                callbacks.addAll(action.callbacks);
+                action.callbacks.clear();
+                iterator.remove();
+            }
+            // The oldest action may be running, its callbacks don't have to wait any longer.
+            final Action oldest = mUnfinished.get(oldestUnfinished);
+            if (oldest != null) {
+                callbacks.addAll(oldest.callbacks);
+                oldest.callbacks.clear();
+            }
+            finishedThroughStartId = getFinishedThroughStartIdLocked(oldestUnfinished);
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        if (finishedThroughStartId >= 0) {
+            mCallback.onFinishedThrough(finishedThroughStartId);
+        }
+    }
+
+    /**
+     * Returns the start id of the last action before the oldest unfinished one, or -1 if it was
+     * reported already.
+     */
+    private int getFinishedThroughStartIdLocked(long oldestUnfinished) {
+        // Start ids are reported in the order of the actions, once all earlier ones finished,
+        // so that the service isn't stopped, or an intent acknowledged, while one still runs.
+        final long lastFinished = oldestUnfinished == Long.MAX_VALUE
+                ? mNextSequence - 1 : oldestUnfinished - 1;
+        if (lastFinished <= mLastReportedSequence) {
+            return -1;
+        }
+        mLastReportedSequence = lastFinished;
+        final Map.Entry<Long, Integer> entry = mStartIds.floorEntry(lastFinished);
+        if (entry == null) {
+            return -1;
+        }
+        mStartIds.headMap(lastFinished, true).clear();
+        return entry.getValue();
+    }
+
+    /**
+     * Returns the keys of everything the action touches, or null if that can't be told from
+     * the intent.
+     */
+    @VisibleForTesting
+    static Set<String> getKeys(Intent intent) {
+        final String action = intent == null ? null : intent.getAction();
+        if (action == null) {
+            return null;
+        }
+        final Set<String> keys = new HashSet<>();
+        switch (action) {
+            case ContactSaveService.ACTION_SET_STARRED:
+            case ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL:
+            case ContactSaveService.ACTION_SET_RINGTONE: {
+                final String contactKey = getContactKey(
+                        (Uri) intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI));
+                if (contactKey == null) {
+                    // A save of the same contact is keyed by its id, so this can't tell
+                    // whether the two overlap.
+                    return null;
+                }
+                keys.add(contactKey);
+                return keys;
+            }
+            case ContactSaveService.ACTION_SAVE_CONTACT: {
+                // Saves stay in order among themselves, and with the other actions on the
+                // contacts they save.
+                keys.add(KEY_SAVE);
+                final RawContactDeltaList state =
+                        intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_STATE);
+                if (state != null) {
+                    for (RawContactDelta delta : state) {
+                        final Long contactId =
+                                delta.getValues().getAsLong(RawContacts.CONTACT_ID);
+                        if (contactId != null) {
+                            keys.add("contact:" + contactId);
+                        }
+                    }
+                }
+                return keys;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the field the action sets, or null if it doesn't just set one field and so can't
+     * be superseded.
+     */
+    @VisibleForTesting
+    static String getField(Intent intent) {
+        final String action = intent == null ? null : intent.getAction();
+        if (action == null) {
+            return null;
+        }
+        switch (action) {
+            case ContactSaveService.ACTION_SET_STARRED:
+            case ContactSaveService.ACTION_SET_SEND_TO_VOICEMAIL:
+            case ContactSaveService.ACTION_SET_RINGTONE: {
+                final String contactKey = getContactKey(
+                        (Uri) intent.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI));
+                return contactKey == null ? null : action + ":" + contactKey;
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Identifies a contact by id, so lookup and id uris match. Returns null if the uri has no
+     * id, e.g. a lookup uri without one, since resolving it would take a query.
+     */
+    private static String getContactKey(Uri contactUri) {
+        if (contactUri == null) {
+            return null;
+        }
+        final List<String> segments = contactUri.getPathSegments();
+        final boolean hasId = segments.size() == 2
+                || (segments.size() == 4 && LOOKUP_SEGMENT.equals(segments.get(1)));
+        if (!hasId) {
+            return null;
+        }
+        try {
+            return "contact:" + Long.parseLong(contactUri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
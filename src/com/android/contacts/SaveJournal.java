@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.os.Build;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the contact saves of {@link ContactSaveService}, so that a save that
+ * takes several provider transactions can be rolled forward after the process died half way.
+ *
+ * <p>The journal is an append-only file:
+ * <pre>
+ *   int MAGIC, int FORMAT_VERSION, String buildFingerprint,
+ *   records: int bodyLength, byte[bodyLength] body, long crc32(body)
+ * </pre>
+ * A body is a byte type and the save id, followed by the operations of the save as a parcel
+ * for {@link #RECORD_BEGIN}, or the number of applied operations and the id of the raw contact
+ * the batch inserted, or -1, for {@link #RECORD_BATCH}.
+ * Saves that take a single transaction record no operations, their batch record only tells
+ * whether that transaction committed and what it inserted.
+ * Reading stops at the first torn record. Parcels are only read back by the build that wrote
+ * them, a journal of another build is discarded.</p>
+ *
+ * <p>Only what a power loss must not lose is synced: the start of a resumable save before its
+ * first transaction, and each applied batch before the next one. All other records reach the
+ * file system right away, which is enough to survive the process, and are synced along with
+ * the next record that needs it. A batch that was applied but not yet recorded when the device
+ * went down is applied again. Intents aren't redelivered after a reboot, so a single transaction
+ * save only needs to be known to have committed when the process died.</p>
+ */
+final class SaveJournal {
+    private static final String TAG = "SaveJournal";
+
+    public static final String FILE_NAME = "save_journal";
+
+    private static final int MAGIC = 0x43534a4c; // "CSJL"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte RECORD_BEGIN = 1;
+    private static final byte RECORD_BATCH = 2;
+    private static final byte RECORD_END = 3;
+
+    /** The journal is compacted once it is this long and no save is open. */
+    private static final long MAX_IDLE_LENGTH = 256 * 1024;
+
+    /** A save found in the journal. */
+    static final class Entry {
+        final String saveId;
+        /** The operations of the save, or null if it can't be resumed. */
+        final ArrayList<ContentProviderOperation> operations;
+        /** The number of operations that were applied. */
+        int appliedCount;
+        /** The id of the raw contact that the applied operations inserted, or -1. */
+        long insertedRawContactId = -1;
+        boolean finished;
+
+        Entry(String saveId, ArrayList<ContentProviderOperation> operations) {
+            this.saveId = saveId;
+            this.operations = operations;
+        }
+    }
+
+    private final File mFile;
+    private final String mFingerprint;
+
+    private DataOutputStream mOutput;
+    private FileOutputStream mFileOutput;
+    /** Whether records were written since the last sync. */
+    private boolean mDirty;
+    private final Set<String> mOpenSaveIds = new HashSet<>();
+    /** The open saves whose operations are recorded. */
+    private final Set<String> mResumableSaveIds = new HashSet<>();
+
+    SaveJournal(File file) {
+        this(file, Build.FINGERPRINT);
+    }
+
+    @VisibleForTesting
+    SaveJournal(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint == null ? "" : fingerprint;
+    }
+
+    /**
+     * Reads the saves in the journal, oldest first. The unfinished ones stay open until they
+     * are {@link #end ended}.
+     */
+    public synchronized List<Entry> recover() {
+        closeLocked();
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        long validLength = 0;
+        if (mFile.exists()) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)))) {
+                validLength = readLocked(input, entries);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read save journal", e);
+            }
+        }
+        mOpenSaveIds.clear();
+        mResumableSaveIds.clear();
+        for (Entry entry : entries.values()) {
+            if (!entry.finished) {
+                mOpenSaveIds.add(entry.saveId);
+                if (entry.operations != null) {
+                    mResumableSaveIds.add(entry.saveId);
+                }
+            }
+        }
+        try {
+            openLocked(validLength);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open save journal", e);
+            closeLocked();
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Records the start of a save. Its operations are only recorded if it's resumable, i.e.
+     * it takes more than one transaction.
+     */
+    public synchronized void begin(String saveId, List<ContentProviderOperation> operations,
+            boolean resumable) {
+        if (mOpenSaveIds.isEmpty() && mFile.length() > MAX_IDLE_LENGTH) {
+            try {
+                closeLocked();
+                openLocked(0);
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot compact save journal", e);
+            }
+        }
+        mOpenSaveIds.add(saveId);
+        if (resumable) {
+            mResumableSaveIds.add(saveId);
+        } else {
+            // A retried save may no longer be resumable.
+            mResumableSaveIds.remove(saveId);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        try {
+            body.writeByte(RECORD_BEGIN);
+            body.writeUTF(saveId);
+            body.writeBoolean(resumable);
+            if (resumable) {
+                final byte[] parcel = marshall(operations);
+                body.writeInt(parcel.length);
+                body.write(parcel);
+            }
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream.
+            throw new IllegalStateException(e);
+        }
+        writeLocked(bytes.toByteArray(), resumable);
+    }
+
+    /**
+     * Records that the first {@code appliedCount} operations of a save applied, and the raw
+     * contact that the batch inserted, if any. The record is only synced for a resumable save.
+     *
+     * @param insertedRawContactId the id of the inserted raw contact, or -1
+     */
+    public synchronized void onBatchApplied(String saveId, int appliedCount,
+            long insertedRawContactId) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        try {
+            body.writeByte(RECORD_BATCH);
+            body.writeUTF(saveId);
+            body.writeInt(appliedCount);
+            body.writeLong(insertedRawContactId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        writeLocked(bytes.toByteArray(), mResumableSaveIds.contains(saveId));
+    }
+
+    /** Records that a save finished, or failed for good. */
+    public synchronized void end(String saveId) {
+        mResumableSaveIds.remove(saveId);
+        if (!mOpenSaveIds.remove(saveId)) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream body = new DataOutputStream(bytes);
+        try {
+            body.writeByte(RECORD_END);
+            body.writeUTF(saveId);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        writeLocked(bytes.toByteArray(), false);
+    }
+
+    public synchronized void close() {
+        closeLocked();
+    }
+
+    private long readLocked(DataInputStream input, Map<String, Entry> entries)
+            throws IOException {
+        final long fileLength = mFile.length();
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Discarding save journal of unknown format");
+                return 0;
+            }
+            if (!mFingerprint.equals(input.readUTF())) {
+                Log.w(TAG, "Discarding save journal of another build");
+                return 0;
+            }
+        } catch (EOFException e) {
+            return 0;
+        }
+        long validLength = getHeaderLength();
+        final CRC32 crc = new CRC32();
+        while (true) {
+            final byte[] body;
+            try {
+                final int bodyLength = input.readInt();
+                if (bodyLength <= 0 || bodyLength > fileLength - validLength) {
+                    break;
+                }
+                body = new byte[bodyLength];
+                input.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if (input.readLong() != crc.getValue()) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            validLength += 4 + body.length + 8;
+            readRecord(body, entries);
+        }
+        if (validLength < fileLength) {
+            Log.w(TAG, "Ignoring " + (fileLength - validLength) + " torn bytes of save journal");
+        }
+        return validLength;
+    }
+
+    private static void readRecord(byte[] body, Map<String, Entry> entries) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        final byte type = input.readByte();
+        final String saveId = input.readUTF();
+        switch (type) {
+            case RECORD_BEGIN: {
+                ArrayList<ContentProviderOperation> operations = null;
+                if (input.readBoolean()) {
+                    final byte[] parcel = new byte[input.readInt()];
+                    input.readFully(parcel);
+                    operations = unmarshall(parcel);
+                }
+                // A retried save starts over.
+                entries.remove(saveId);
+                entries.put(saveId, new Entry(saveId, operations));
+                break;
+            }
+            case RECORD_BATCH: {
+                final Entry entry = entries.get(saveId);
+                if (entry != null) {
+                    entry.appliedCount = input.readInt();
+                    final long insertedRawContactId = input.readLong();
+                    // Later batches of the save don't insert the raw contact again.
+                    if (insertedRawContactId != -1) {
+                        entry.insertedRawContactId = insertedRawContactId;
+                    }
+                }
+                break;
+            }
+            case RECORD_END: {
+                final Entry entry = entries.get(saveId);
+                if (entry != null) {
+                    entry.finished = true;
+                }
+                break;
+            }
+            default:
+                Log.w(TAG, "Skipping record of unknown type " + type);
+        }
+    }
+
+    /**
+     * Opens the journal for appending after the first {@code validLength} bytes, or starts a
+     * new one if there are none.
+     */
+    private void openLocked(long validLength) throws IOException {
+        final File directory = mFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        if (validLength > 0) {
+            // Drop a torn record, so that new ones aren't appended after it.
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(validLength);
+            }
+            mFileOutput = new FileOutputStream(mFile, true);
+            mOutput = new DataOutputStream(new BufferedOutputStream(mFileOutput));
+        } else {
+            mFileOutput = new FileOutputStream(mFile, false);
+            mOutput = new DataOutputStream(new BufferedOutputStream(mFileOutput));
+            mOutput.writeInt(MAGIC);
+            mOutput.writeInt(FORMAT_VERSION);
+            mOutput.writeUTF(mFingerprint);
+            mOutput.flush();
+            mDirty = true;
+        }
+    }
+
+    private void writeLocked(byte[] body, boolean sync) {
+        try {
+            if (mOutput == null) {
+                openLocked(mFile.exists() && mFile.length() >= getHeaderLength()
+                        ? mFile.length() : 0);
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            mOutput.writeInt(body.length);
+            mOutput.write(body);
+            mOutput.writeLong(crc.getValue());
+            // The file system keeps the record if the process dies.
+            mOutput.flush();
+            mDirty = true;
+            if (sync) {
+                // Also syncs the records that didn't need it on their own.
+                mFileOutput.getFD().sync();
+                mDirty = false;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write save journal", e);
+            closeLocked();
+        }
+    }
+
+    private void closeLocked() {
+        if (mOutput == null) {
+            return;
+        }
+        try {
+            if (mDirty) {
+                mOutput.flush();
+                mFileOutput.getFD().sync();
+            }
+            mOutput.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close save journal", e);
+        }
+        mOutput = null;
+        mFileOutput = null;
+        mDirty = false;
+    }
+
+    private int getHeaderLength() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(mFingerprint);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return 4 + 4 + bytes.size();
+    }
+
+    private static byte[] marshall(List<ContentProviderOperation> operations) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(operations);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static ArrayList<ContentProviderOperation> unmarshall(byte[] bytes) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArrayList(ContentProviderOperation.CREATOR);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot read journaled operations", e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.LoaderManager;
 import android.content.ContentUris;
+import android.content.Context;
 import android.content.Intent;
 import android.content.Loader;
 import android.net.Uri;
@@ -13,6 +14,7 @@ import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
 import android.widget.Toast;
 
+import com.android.contacts.AggregationProgressReceiver;
 import com.android.contacts.AppCompatContactsActivity;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
@@ -41,6 +43,7 @@ public class ContactEditorSpringBoardActivity extends AppCompatContactsActivity
     private static final String TAG = "EditorSpringBoard";
     private static final String TAG_RAW_CONTACTS_DIALOG = "rawContactsDialog";
     private static final String KEY_RAW_CONTACTS_METADATA = "rawContactsMetadata";
+    private static final String KEY_SPLITTING = "splitting";
     private static final int LOADER_RAW_CONTACTS = 1;
 
     public static final String EXTRA_SHOW_READ_ONLY = "showReadOnly";
@@ -51,6 +54,8 @@ public class ContactEditorSpringBoardActivity extends AppCompatContactsActivity
     private boolean mHasWritableAccount;
     private boolean mShowReadOnly;
     private int mWritableAccountPosition;
+    /** Receives the progress of the split the user confirmed, if any. */
+    private AggregationProgressReceiver mSplitProgress;
 
     /**
      * The contact data loader listener.
@@ -84,6 +89,12 @@ public class ContactEditorSpringBoardActivity extends AppCompatContactsActivity
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // The split goes on without us; its progress is now only shown by QuickContactActivity.
+        if (savedInstanceState != null && savedInstanceState.getBoolean(KEY_SPLITTING)) {
+            finish();
+            return;
+        }
+
         if (RequestPermissionsActivity.startPermissionActivityIfNeeded(this)) {
             return;
         }
@@ -260,9 +271,35 @@ public class ContactEditorSpringBoardActivity extends AppCompatContactsActivity
     @Override
     public void onSplitContactConfirmed(boolean hasPendingChanges) {
         final long[][] rawContactIds = getRawContactIds();
-        final Intent intent = ContactSaveService.createHardSplitContactIntent(this, rawContactIds);
+        final Context applicationContext = getApplicationContext();
+        // Stay until the split finished, so that the progress of a split that takes several
+        // transactions can be shown and the split cancelled. With a receiver, the service
+        // leaves the toasts to it.
+        mSplitProgress = new AggregationProgressReceiver(this,
+                R.string.contacts_unlinking_progress_bar) {
+            @Override
+            protected void onFinished(int resultCode, Bundle resultData) {
+                if (resultCode == ContactSaveService.CONTACTS_SPLIT) {
+                    Toast.makeText(applicationContext, R.string.contactUnlinkedToast,
+                            Toast.LENGTH_LONG).show();
+                } else if (resultCode == ContactSaveService.AGGREGATION_CANCELLED) {
+                    Toast.makeText(applicationContext, R.string.contacts_unlinking_cancelled,
+                            Toast.LENGTH_LONG).show();
+                }
+                finish();
+            }
+        };
+        final Intent intent = ContactSaveService.createHardSplitContactIntent(this, rawContactIds,
+                mSplitProgress);
         startService(intent);
-        finish();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mSplitProgress != null) {
+            mSplitProgress.detach();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -274,6 +311,7 @@ public class ContactEditorSpringBoardActivity extends AppCompatContactsActivity
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putParcelable(KEY_RAW_CONTACTS_METADATA, mResult);
+        outState.putBoolean(KEY_SPLITTING, mSplitProgress != null);
     }
 
     @Override
@@ -58,6 +58,7 @@ import android.widget.ImageButton;
 import android.widget.Toast;
 
 import com.android.contacts.AppCompatContactsActivity;
+import com.android.contacts.ContactPhotoManager;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
 import com.android.contacts.compat.CompatUtils;
@@ -77,6 +78,7 @@ import com.android.contacts.list.ContactsIntentResolver;
 import com.android.contacts.list.ContactsRequest;
 import com.android.contacts.list.ContactsUnavailableFragment;
 import com.android.contacts.list.DefaultContactBrowseListFragment;
+import com.android.contacts.list.ListQueryStats;
 import com.android.contacts.list.MultiSelectContactsListFragment;
 import com.android.contacts.list.ProviderStatusWatcher;
 import com.android.contacts.list.ProviderStatusWatcher.ProviderStatusListener;
@@ -100,6 +102,8 @@ import com.android.contactsbind.ObjectFactory;
 
 import com.google.common.util.concurrent.Futures;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -655,6 +659,17 @@ public class PeopleActivity extends AppCompatContactsActivity implements
         super.onDestroy();
     }
 
+    /**
+     * Adds the photo cache statistics to
+     * {@code adb shell dumpsys activity com.android.contacts/.activities.PeopleActivity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ContactPhotoManager.getInstance(this).dump(prefix, writer);
+        ListQueryStats.dump(prefix, writer);
+    }
+
     private void initializeFabVisibility() {
         mFloatingActionButtonContainer.setVisibility(shouldHideFab() ? View.GONE : View.VISIBLE);
         mFloatingActionButtonController.resetIn();
@@ -139,14 +139,22 @@ public class FormatUtils {
      * @param prefix the text to find, in upper case letters
      */
     public static int indexOfWordPrefix(CharSequence text, String prefix) {
+        return prefix == null ? -1 : indexOfWordPrefix(text, prefix, 0);
+    }
+
+    /**
+     * Like {@link #indexOfWordPrefix(CharSequence, String)}, for the part of the prefix that
+     * starts at {@code prefixStart}.
+     */
+    public static int indexOfWordPrefix(CharSequence text, String prefix, int prefixStart) {
         if (prefix == null || text == null) {
             return -1;
         }
 
         int textLength = text.length();
-        int prefixLength = prefix.length();
+        int prefixLength = prefix.length() - prefixStart;
 
-        if (prefixLength == 0 || textLength < prefixLength) {
+        if (prefixLength <= 0 || textLength < prefixLength) {
             return -1;
         }
 
@@ -164,7 +172,8 @@ public class FormatUtils {
             // Compare the prefixes
             int j;
             for (j = 0; j < prefixLength; j++) {
-                if (Character.toUpperCase(text.charAt(i + j)) != prefix.charAt(j)) {
+                if (Character.toUpperCase(text.charAt(i + j))
+                        != prefix.charAt(prefixStart + j)) {
                     break;
                 }
             }
@@ -29,11 +29,15 @@ import android.graphics.Typeface;
 import android.graphics.drawable.AdaptiveIconDrawable;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.contacts.R;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 
+import java.io.PrintWriter;
+
 /**
  * A drawable that encapsulates all the functionality needed to display a letter tile to
  * represent a contact image.
@@ -67,6 +71,28 @@ public class LetterTileDrawable extends Drawable {
     /** 54% opacity */
     private static final int ALPHA = 138;
 
+    /**
+     * Rasterised tiles shared by all instances, so that a tile is drawn once per letter, color,
+     * size and style rather than on every draw. Access is synchronized on the cache, which also
+     * serializes the use of the shared paint while rendering.
+     */
+    private static final LruCache<TileKey, Bitmap> sTileCache =
+            new LruCache<TileKey, Bitmap>(getTileCacheSize()) {
+                @Override
+                protected int sizeOf(TileKey key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+
+    /** Reused for lookups so that a cache hit doesn't allocate. Guarded by the cache. */
+    private static final TileKey sLookupKey = new TileKey();
+
+    /**
+     * Tiles larger than this fraction of the cache, such as contact card headers, are drawn
+     * directly instead of evicting all the list sized tiles.
+     */
+    private static final int MAX_CACHED_TILE_FRACTION = 8;
+
     private int mContactType = TYPE_DEFAULT;
     private float mScale = 1.0f;
     private float mOffset = 0.0f;
@@ -104,18 +130,52 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
-        // Draw letter tile.
-        drawLetterTile(canvas);
+        final Bitmap tile = getTileBitmap(bounds.width(), bounds.height());
+        if (tile != null) {
+            canvas.drawBitmap(tile, bounds.left, bounds.top, null);
+        } else {
+            synchronized (sTileCache) {
+                // Draw letter tile.
+                drawLetterTile(canvas, bounds);
+            }
+        }
+    }
+
+    /**
+     * Returns the tile rasterised at the given size from the shared tile cache, rendering it if
+     * needed, or null if the tile is too large to be cached. The bitmap is shared and must not be
+     * modified.
+     */
+    public Bitmap getTileBitmap(int width, int height) {
+        if (width <= 0 || height <= 0
+                || width * height * 4 > sTileCache.maxSize() / MAX_CACHED_TILE_FRACTION) {
+            return null;
+        }
+        synchronized (sTileCache) {
+            sLookupKey.set(this, width, height);
+            Bitmap tile = sTileCache.get(sLookupKey);
+            if (tile == null) {
+                tile = renderTile(width, height);
+                sTileCache.put(sLookupKey.copy(), tile);
+            }
+            return tile;
+        }
+    }
+
+    private Bitmap renderTile(int width, int height) {
+        final Bitmap tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        drawLetterTile(new Canvas(tile), new Rect(0, 0, width, height));
+        return tile;
     }
 
     /**
      * Draw the bitmap onto the canvas at the current bounds taking into account the current scale.
      */
     private void drawBitmap(final Bitmap bitmap, final int width, final int height,
-            final Canvas canvas) {
+            final Canvas canvas, final Rect bounds) {
         // The bitmap should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
 
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
@@ -135,12 +195,11 @@ public class LetterTileDrawable extends Drawable {
         canvas.drawBitmap(bitmap, sRect, destRect, sPaint);
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private void drawLetterTile(final Canvas canvas, final Rect bounds) {
         // Draw background color.
         sPaint.setColor(mColor);
 
         sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
@@ -171,7 +230,7 @@ public class LetterTileDrawable extends Drawable {
             // Draw the default image if there is no letter/digit to be drawn
             final Bitmap bitmap = getBitmapForContactType(mContactType);
             drawBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight(),
-                    canvas);
+                    canvas, bounds);
         }
     }
 
@@ -292,4 +351,115 @@ public class LetterTileDrawable extends Drawable {
     public static float getAdaptiveIconScale() {
         return 1 / (1 + (2 * AdaptiveIconDrawable.getExtraInsetFraction()));
     }
+
+    /**
+     * Evicts the cached tiles, all of them when {@code complete} is set, otherwise the least
+     * recently used half.
+     */
+    public static void trimTileCache(boolean complete) {
+        synchronized (sTileCache) {
+            if (complete) {
+                sTileCache.evictAll();
+            } else {
+                sTileCache.trimToSize(sTileCache.maxSize() / 2);
+            }
+        }
+    }
+
+    public static void dumpTileCache(String prefix, PrintWriter writer) {
+        synchronized (sTileCache) {
+            writer.println(prefix + "letter tiles: " + sTileCache.size() + "/"
+                    + sTileCache.maxSize() + " bytes, " + sTileCache.hitCount() + " hits, "
+                    + sTileCache.missCount() + " misses");
+        }
+    }
+
+    @VisibleForTesting
+    static int getTileCacheCount() {
+        synchronized (sTileCache) {
+            return sTileCache.snapshot().size();
+        }
+    }
+
+    /**
+     * A sixty-fourth of the heap, which holds a few screens of list sized tiles.
+     */
+    private static int getTileCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 64, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Everything that affects the pixels of a tile.
+     */
+    private static final class TileKey {
+        private char mLetter;
+        private boolean mHasLetter;
+        private int mColor;
+        private int mAlpha;
+        private int mWidth;
+        private int mHeight;
+        private boolean mIsCircle;
+        private float mScale;
+        private float mOffset;
+        private int mContactType;
+
+        void set(LetterTileDrawable drawable, int width, int height) {
+            mHasLetter = drawable.mLetter != null;
+            mLetter = mHasLetter ? drawable.mLetter : 0;
+            mColor = drawable.mColor;
+            mAlpha = drawable.mPaint.getAlpha();
+            mWidth = width;
+            mHeight = height;
+            mIsCircle = drawable.mIsCircle;
+            mScale = drawable.mScale;
+            mOffset = drawable.mOffset;
+            // The contact type only matters for the avatar drawn in place of a letter.
+            mContactType = mHasLetter ? 0 : drawable.mContactType;
+        }
+
+        TileKey copy() {
+            final TileKey copy = new TileKey();
+            copy.mLetter = mLetter;
+            copy.mHasLetter = mHasLetter;
+            copy.mColor = mColor;
+            copy.mAlpha = mAlpha;
+            copy.mWidth = mWidth;
+            copy.mHeight = mHeight;
+            copy.mIsCircle = mIsCircle;
+            copy.mScale = mScale;
+            copy.mOffset = mOffset;
+            copy.mContactType = mContactType;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return mLetter == other.mLetter && mHasLetter == other.mHasLetter
+                    && mColor == other.mColor && mAlpha == other.mAlpha
+                    && mWidth == other.mWidth && mHeight == other.mHeight
+                    && mIsCircle == other.mIsCircle
+                    && Float.compare(mScale, other.mScale) == 0
+                    && Float.compare(mOffset, other.mOffset) == 0
+                    && mContactType == other.mContactType;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mLetter;
+            result = 31 * result + (mHasLetter ? 1 : 0);
+            result = 31 * result + mColor;
+            result = 31 * result + mAlpha;
+            result = 31 * result + mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mIsCircle ? 1 : 0);
+            result = 31 * result + Float.floatToIntBits(mScale);
+            result = 31 * result + Float.floatToIntBits(mOffset);
+            result = 31 * result + mContactType;
+            return result;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.text.GetChars;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils.TruncateAt;
+import android.text.style.CharacterStyle;
+import android.text.style.StyleSpan;
+import android.widget.TextView;
+
+import com.android.contacts.format.FormatUtils;
+
+import java.util.ArrayList;
+
+/**
+ * The text of a {@link TextView} in a list item, rebuilt in place on every bind instead of
+ * allocated.
+ *
+ * <p>Two builders are used in turn, so the one the view displays is never modified, and the
+ * view is made to display them as they are instead of copies. Highlight spans come from a pool,
+ * so once the builders have grown to fit the longest text, binding allocates nothing.</p>
+ */
+final class BindTextBuffer {
+    /** Makes a text view display the spannable it is given instead of a copy. */
+    private static final Spannable.Factory SPANNABLE_FACTORY = new Spannable.Factory() {
+        @Override
+        public Spannable newSpannable(CharSequence source) {
+            return source instanceof Spannable ? (Spannable) source : super.newSpannable(source);
+        }
+    };
+
+    /** Chars of a {@link android.database.CharArrayBuffer}, appended without a String. */
+    private static final class CharArraySequence implements CharSequence, GetChars {
+        private char[] mChars;
+        private int mLength;
+
+        void set(char[] chars, int length) {
+            mChars = chars;
+            mLength = length;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mChars, start, end - start);
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dest, int destOffset) {
+            System.arraycopy(mChars, start, dest, destOffset, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mChars, 0, mLength);
+        }
+    }
+
+    private final TextView mView;
+    private final int mHighlightStyle;
+    private final SpannableStringBuilder[] mBuilders = new SpannableStringBuilder[] {
+            new SpannableStringBuilder(), new SpannableStringBuilder() };
+    private final ArrayList<CharacterStyle> mHighlightSpans = new ArrayList<>();
+    private final CharArraySequence mChars = new CharArraySequence();
+    private int mCurrent;
+    private int mHighlightCount;
+
+    /**
+     * @param highlightStyle the {@link android.graphics.Typeface} style of highlights
+     */
+    public BindTextBuffer(TextView view, int highlightStyle) {
+        mView = view;
+        mHighlightStyle = highlightStyle;
+        view.setSpannableFactory(SPANNABLE_FACTORY);
+    }
+
+    /**
+     * Starts the next text of the view.
+     */
+    public BindTextBuffer set(CharSequence text) {
+        final SpannableStringBuilder builder = next();
+        if (text != null) {
+            builder.append(text);
+        }
+        return this;
+    }
+
+    /**
+     * Starts the next text of the view, from the first {@code length} chars of the array.
+     */
+    public BindTextBuffer set(char[] text, int length) {
+        mChars.set(text, length);
+        set(mChars);
+        mChars.set(null, 0);
+        return this;
+    }
+
+    /**
+     * Highlights the given range of the text.
+     */
+    public BindTextBuffer highlight(int start, int end) {
+        final SpannableStringBuilder builder = mBuilders[mCurrent];
+        start = Math.max(0, Math.min(start, builder.length()));
+        end = Math.max(start, Math.min(end, builder.length()));
+        if (mHighlightCount == mHighlightSpans.size()) {
+            mHighlightSpans.add(new StyleSpan(mHighlightStyle));
+        }
+        builder.setSpan(mHighlightSpans.get(mHighlightCount++), start, end, 0 /* flags */);
+        return this;
+    }
+
+    /**
+     * Highlights the first word that starts with the prefix, ignoring non-word characters at
+     * the start of the prefix, like {@link com.android.contacts.format.TextHighlighter}.
+     *
+     * @param upperCasePrefix the prefix in upper case letters, or null
+     * @return whether the prefix was found
+     */
+    public boolean highlightPrefix(String upperCasePrefix) {
+        if (upperCasePrefix == null) {
+            return false;
+        }
+        final int prefixStart = getPrefixStart(upperCasePrefix);
+        final int index = FormatUtils.indexOfWordPrefix(getText(), upperCasePrefix, prefixStart);
+        if (index < 0) {
+            return false;
+        }
+        highlight(index, index + upperCasePrefix.length() - prefixStart);
+        return true;
+    }
+
+    /**
+     * Returns the index of the first word character of the prefix, where matching starts.
+     */
+    static int getPrefixStart(String upperCasePrefix) {
+        int prefixStart = 0;
+        while (prefixStart < upperCasePrefix.length()
+                && !Character.isLetterOrDigit(upperCasePrefix.charAt(prefixStart))) {
+            prefixStart++;
+        }
+        return prefixStart;
+    }
+
+    /**
+     * Returns the text being built. The buffer reuses it, and changes it once the text after
+     * the next one is started, so callers must not keep it. Copy it with {@code toString()} to
+     * keep it longer.
+     */
+    public CharSequence getText() {
+        return mBuilders[mCurrent];
+    }
+
+    /**
+     * Shows the text in the view.
+     *
+     * @param marquee whether to mark the text for {@link TruncateAt#MARQUEE}, so that it is
+     *         ellipsized at the end while not scrolling
+     */
+    public void apply(boolean marquee) {
+        final SpannableStringBuilder builder = mBuilders[mCurrent];
+        if (marquee) {
+            builder.setSpan(TruncateAt.MARQUEE, 0, builder.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        mView.setText(builder, TextView.BufferType.SPANNABLE);
+    }
+
+    private SpannableStringBuilder next() {
+        mCurrent = 1 - mCurrent;
+        mHighlightCount = 0;
+        final SpannableStringBuilder builder = mBuilders[mCurrent];
+        // Also drops the watchers the view attached while it displayed this builder, so that
+        // changing it doesn't notify the view.
+        builder.clearSpans();
+        builder.clear();
+        return builder;
+    }
+}
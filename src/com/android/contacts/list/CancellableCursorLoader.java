@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+/**
+ * A {@link CursorLoader} whose queries are cancelled as soon as the loader is superseded.
+ *
+ * <p>{@link android.app.LoaderManager#restartLoader} only abandons the loader it replaces, which
+ * lets its query run to completion and compete with the new one. This loader cancels its load
+ * when abandoned, which cancels the provider query through a {@link CancellationSignal} and
+ * closes the cursor if it still comes back. Subclasses that run queries of their own should do
+ * so through {@link #query} so that they are cancelled too.</p>
+ */
+public class CancellableCursorLoader extends CursorLoader {
+    /** Cancels the queries of the current load, guarded by this. */
+    private CancellationSignal mCancellationSignal;
+
+    public CancellableCursorLoader(Context context) {
+        super(context);
+    }
+
+    public CancellableCursorLoader(Context context, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    @Override
+    protected Cursor onLoadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            return super.onLoadInBackground();
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Queries the content resolver, cancelling the query along with the load. Throws
+     * {@link OperationCanceledException} if the load was cancelled.
+     */
+    protected Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        final CancellationSignal signal;
+        synchronized (this) {
+            signal = mCancellationSignal;
+        }
+        return getContext().getContentResolver().query(
+                uri, projection, selection, selectionArgs, sortOrder, signal);
+    }
+
+    @Override
+    protected void onAbandon() {
+        super.onAbandon();
+        // A newer loader replaces this one, stop competing with it.
+        cancelLoad();
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isStarted() && !isAbandoned()) {
+            ListQueryStats.recordDelivered();
+        }
+        super.deliverResult(cursor);
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        // A null cursor means that the provider stopped the query early.
+        ListQueryStats.recordWasted(cursor != null);
+        super.onCanceled(cursor);
+    }
+}
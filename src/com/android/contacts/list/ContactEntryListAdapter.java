@@ -41,8 +41,12 @@ import com.android.contacts.R;
 import com.android.contacts.compat.CompatUtils;
 import com.android.contacts.compat.DirectoryCompat;
 import com.android.contacts.util.SearchUtil;
+import com.android.contacts.util.concurrent.ContactsExecutors;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Common base class for various contact-related lists, e.g. contact list, phone number list
@@ -96,6 +100,15 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
     /** Resource used to provide header-text for default filter. */
     private CharSequence mDefaultFilterHeaderText;
 
+    private final DirectoryResultCache mDirectoryResultCache = new DirectoryResultCache();
+    // The address book index the indexer was built from, kept so that an update of the list
+    // that doesn't change the index keeps its indexer.
+    private String[] mIndexTitles;
+    private int[] mIndexCounts;
+
+    private final RowTextPrecomputer mRowTextPrecomputer =
+            new RowTextPrecomputer(ContactsExecutors.getDefaultThreadPoolExecutor());
+
     public ContactEntryListAdapter(Context context) {
         super(context);
         setDefaultFilterHeaderText(R.string.local_search_label);
@@ -120,6 +133,7 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         final ContactListItemView view = new ContactListItemView(context, null);
         view.setIsSectionHeaderEnabled(isSectionHeaderDisplayEnabled());
         view.setAdjustSelectionBoundsEnabled(isAdjustSelectionBoundsEnabled());
+        view.setRowTextPrecomputer(mRowTextPrecomputer);
         return view;
     }
 
@@ -266,6 +280,38 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         return mUpperCaseQueryString;
     }
 
+    /**
+     * Returns the results of the current query in the default directory if they can be
+     * computed without querying the provider, or null otherwise.
+     */
+    public Cursor getLocalSearchResults() {
+        return null;
+    }
+
+    /**
+     * Returns the cached results of the current query in a remote directory, or null if there
+     * are none. The results were filtered from those of a broader query unless
+     * {@link DirectoryResultCache.CachedResultCursor#isExact()}.
+     */
+    DirectoryResultCache.CachedResultCursor getCachedDirectoryResults(long directoryId) {
+        if (!isSearchMode() || !DirectoryCompat.isRemoteDirectoryId(directoryId)) {
+            return null;
+        }
+        return mDirectoryResultCache.get(directoryId, mQueryString);
+    }
+
+    /**
+     * Called when the list is started, before its data is loaded.
+     */
+    public void onStart() {
+    }
+
+    /**
+     * Called when the list is stopped.
+     */
+    public void onStop() {
+    }
+
     public int getDirectorySearchMode() {
         return mDirectorySearchMode;
     }
@@ -292,6 +338,9 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
     }
 
     public void setContactNameDisplayOrder(int displayOrder) {
+        if (mDisplayOrder != displayOrder) {
+            mDirectoryResultCache.clear();
+        }
         mDisplayOrder = displayOrder;
     }
 
@@ -300,6 +349,9 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
     }
 
     public void setSortOrder(int sortOrder) {
+        if (mSortOrder != sortOrder) {
+            mDirectoryResultCache.clear();
+        }
         mSortOrder = sortOrder;
     }
 
@@ -464,7 +516,13 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
 
         Partition partition = getPartition(partitionIndex);
         if (partition instanceof DirectoryPartition) {
-            ((DirectoryPartition)partition).setStatus(DirectoryPartition.STATUS_LOADED);
+            final DirectoryPartition directoryPartition = (DirectoryPartition) partition;
+            directoryPartition.setStatus(DirectoryPartition.STATUS_LOADED);
+            if (isSearchMode()
+                    && DirectoryCompat.isRemoteDirectoryId(directoryPartition.getDirectoryId())) {
+                mDirectoryResultCache.put(directoryPartition.getDirectoryId(), mQueryString,
+                        cursor);
+            }
         }
 
         if (mDisplayPhotos && mPhotoLoader != null && isPhotoSupported(partitionIndex)) {
@@ -491,6 +549,8 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
     private void updateIndexer(Cursor cursor) {
         if (cursor == null || cursor.isClosed()) {
             setIndexer(null);
+            mIndexTitles = null;
+            mIndexCounts = null;
             return;
         }
 
@@ -501,6 +561,12 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
                     bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
             int counts[] = bundle.getIntArray(
                     Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+            if (getIndexer() != null && Arrays.equals(sections, mIndexTitles)
+                    && Arrays.equals(counts, mIndexCounts)) {
+                return;
+            }
+            mIndexTitles = sections;
+            mIndexCounts = counts;
 
             if (getExtraStartingSection()) {
                 // Insert an additional unnamed section at the top of the list.
@@ -518,6 +584,8 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
             }
         } else {
             setIndexer(null);
+            mIndexTitles = null;
+            mIndexCounts = null;
         }
     }
 
@@ -674,6 +742,15 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         }
     }
 
+    /**
+     * Returns the list position of the item at the given offset in the partition, the inverse
+     * of {@link #getOffsetInPartition}.
+     */
+    public int getPositionForOffsetInPartition(int partitionIndex, int offset) {
+        final int position = getPositionForPartition(partitionIndex) + offset;
+        return hasHeader(partitionIndex) ? position + 1 : position;
+    }
+
     public boolean isPhotoSupported(int partitionIndex) {
         Partition partition = getPartition(partitionIndex);
         if (partition instanceof DirectoryPartition) {
@@ -682,6 +759,73 @@ public abstract class ContactEntryListAdapter extends IndexerListAdapter {
         return true;
     }
 
+    /**
+     * Returns the thumbnail ids of up to {@code count} items starting at {@code position} and
+     * going forward or backward, in that order. Items without a thumbnail are skipped.
+     */
+    public long[] getPhotoIdsForPrefetch(int position, int count, boolean forward) {
+        if (!getDisplayPhotos()) {
+            return new long[0];
+        }
+        final long[] photoIds = new long[count];
+        int photoIdCount = 0;
+        final int itemCount = getCount();
+        for (int i = 0; i < count; i++) {
+            final int itemPosition = forward ? position + i : position - i;
+            if (itemPosition < 0 || itemPosition >= itemCount) {
+                break;
+            }
+            final int partition = getPartitionForPosition(itemPosition);
+            if (partition < 0 || !isPhotoSupported(partition)) {
+                continue;
+            }
+            final Cursor cursor = (Cursor) getItem(itemPosition);
+            if (cursor == null) {
+                continue;
+            }
+            final long photoId = getPhotoId(cursor);
+            if (photoId != 0) {
+                photoIds[photoIdCount++] = photoId;
+            }
+        }
+        return Arrays.copyOf(photoIds, photoIdCount);
+    }
+
+    /**
+     * Measures the names of a screenful of items on each side of the visible ones in the
+     * background, so that binding them doesn't have to.
+     */
+    public void prefetchRowText(int firstVisibleItem, int visibleItemCount) {
+        final int start = Math.max(0, firstVisibleItem - visibleItemCount);
+        final int end = Math.min(getCount(), firstVisibleItem + 2 * visibleItemCount);
+        final List<String> names = new ArrayList<>(Math.max(0, end - start));
+        for (int position = start; position < end; position++) {
+            if (getItem(position) == null) {
+                continue;
+            }
+            final String name = getContactDisplayName(position);
+            if (!TextUtils.isEmpty(name)) {
+                names.add(name);
+            }
+        }
+        mRowTextPrecomputer.prefetch(names, isSearchMode() ? getUpperCaseQueryString() : null);
+    }
+
+    /**
+     * Drops the measured names, which are only valid for the current configuration.
+     */
+    public void clearRowTextCache() {
+        mRowTextPrecomputer.clear();
+    }
+
+    /**
+     * Returns the thumbnail id of the item the cursor is positioned on, or 0 if it doesn't
+     * have one.
+     */
+    protected long getPhotoId(Cursor cursor) {
+        return 0;
+    }
+
     /**
      * Returns the currently selected filter.
      */
@@ -20,14 +20,18 @@ import android.app.Activity;
 import android.app.Fragment;
 import android.app.LoaderManager;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.res.Configuration;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Message;
+import android.os.OperationCanceledException;
 import android.os.Parcelable;
 import android.provider.ContactsContract.Directory;
 import android.text.TextUtils;
@@ -51,6 +55,7 @@ import com.android.contacts.ContactPhotoManager;
 import com.android.contacts.logging.ListEvent.ActionType;
 import com.android.contacts.logging.Logger;
 import com.android.contacts.preference.ContactsPreferences;
+import com.android.contacts.util.concurrent.ContactsExecutors;
 
 import java.util.Locale;
 
@@ -91,7 +96,6 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
 
     private static final int DIRECTORY_LOADER_ID = -1;
 
-    private static final int DIRECTORY_SEARCH_DELAY_MILLIS = 300;
     private static final int DIRECTORY_SEARCH_MESSAGE = 1;
 
     private static final int DEFAULT_DIRECTORY_RESULT_LIMIT = 20;
@@ -143,6 +147,9 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     private int mDirectoryResultLimit = DEFAULT_DIRECTORY_RESULT_LIMIT;
 
     private ContactPhotoManager mPhotoManager;
+    private PhotoPrefetcher mPhotoPrefetcher;
+    /** The first visible item the row text was last prefetched for. */
+    private int mRowTextPrefetchPosition = -1;
     private ContactsPreferences mContactsPrefs;
 
     private boolean mForceLoad;
@@ -173,6 +180,30 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
             }
         }
     };
+
+    /**
+     * Delivers the results of remote directory searches to their partitions, or an empty
+     * partition if the directory didn't answer in time.
+     */
+    private final DirectorySearchCoordinator.Listener mDirectorySearchListener =
+            new DirectorySearchCoordinator.Listener() {
+        @Override
+        public void onDirectoryLoaded(long directoryId, Cursor cursor) {
+            onDirectoryPartitionLoaded(directoryId, cursor);
+        }
+
+        @Override
+        public void onDirectoryTimedOut(long directoryId) {
+            Log.w(TAG, "Directory search timed out: " + directoryId);
+            onDirectoryPartitionLoaded(directoryId, null);
+        }
+    };
+
+    private final DirectorySearchCoordinator mDirectorySearchCoordinator =
+            new DirectorySearchCoordinator(mDirectorySearchListener,
+                    ContactsExecutors.getDefaultThreadPoolExecutor(),
+                    mDelayedDirectorySearchHandler);
+
     private int defaultVerticalScrollbarPosition;
 
     protected abstract View inflateView(LayoutInflater inflater, ViewGroup container);
@@ -319,6 +350,9 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         mDirectoryListStatus = STATUS_NOT_LOADED;
         mLoadPriorityDirectoriesOnly = true;
 
+        if (mAdapter != null) {
+            mAdapter.onStart();
+        }
         startLoading();
     }
 
@@ -367,11 +401,14 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     }
 
     public CursorLoader createCursorLoader(Context context) {
-        return new CursorLoader(context, null, null, null, null, null) {
+        return new CancellableCursorLoader(context, null, null, null, null, null) {
             @Override
             protected Cursor onLoadInBackground() {
                 try {
                     return super.onLoadInBackground();
+                } catch (OperationCanceledException e) {
+                    // Superseded by a newer query.
+                    throw e;
                 } catch (RuntimeException e) {
                     // We don't even know what the projection should be, so no point trying to
                     // return an empty MatrixCursor with the correct projection here.
@@ -388,9 +425,15 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         long directoryId = partition.getDirectoryId();
         if (mForceLoad) {
             if (directoryId == Directory.DEFAULT) {
-                loadDirectoryPartition(partitionIndex, partition);
-            } else {
-                loadDirectoryPartitionDelayed(partitionIndex, partition);
+                if (!loadDefaultPartitionLocally(partitionIndex, partition)) {
+                    loadDirectoryPartition(partitionIndex, partition);
+                }
+            } else if (!loadDirectoryPartitionFromCache(partitionIndex, partition)) {
+                searchDirectory(partition, true);
+            }
+        } else if (directoryId != Directory.DEFAULT && isSearchMode()) {
+            if (!loadDirectoryPartitionFromCache(partitionIndex, partition)) {
+                searchDirectory(partition, false);
             }
         } else {
             Bundle args = new Bundle();
@@ -399,6 +442,45 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         }
     }
 
+    /**
+     * Shows the search results for the default directory from the adapter's local index, if it
+     * has them. The provider query, which also matches the fields the index doesn't cover, is
+     * then only sent once the user pauses typing, like a remote directory search.
+     */
+    private boolean loadDefaultPartitionLocally(int partitionIndex, DirectoryPartition partition) {
+        if (!isSearchMode()) {
+            return false;
+        }
+        final Cursor cursor = mAdapter.getLocalSearchResults();
+        if (cursor == null) {
+            return false;
+        }
+        onPartitionLoaded(partitionIndex, cursor);
+        // A provider query still running for an older query must not replace these results.
+        getLoaderManager().destroyLoader(partitionIndex);
+        loadDirectoryPartitionDelayed(partitionIndex, partition);
+        return true;
+    }
+
+    /**
+     * Shows the cached results of a remote directory for the current query, if there are any.
+     * Results filtered from those of a broader query are refreshed from the directory once the
+     * user pauses typing.
+     */
+    private boolean loadDirectoryPartitionFromCache(int partitionIndex,
+            DirectoryPartition partition) {
+        final DirectoryResultCache.CachedResultCursor cursor =
+                mAdapter.getCachedDirectoryResults(partition.getDirectoryId());
+        if (cursor == null) {
+            return false;
+        }
+        onPartitionLoaded(partitionIndex, cursor);
+        if (!cursor.isExact()) {
+            searchDirectory(partition, true);
+        }
+        return true;
+    }
+
     /**
      * Queues up a delayed request to search the specified directory. Since
      * directory search will likely introduce a lot of network traffic, we want
@@ -408,7 +490,40 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         mDelayedDirectorySearchHandler.removeMessages(DIRECTORY_SEARCH_MESSAGE, partition);
         Message msg = mDelayedDirectorySearchHandler.obtainMessage(
                 DIRECTORY_SEARCH_MESSAGE, partitionIndex, 0, partition);
-        mDelayedDirectorySearchHandler.sendMessageDelayed(msg, DIRECTORY_SEARCH_DELAY_MILLIS);
+        mDelayedDirectorySearchHandler.sendMessageDelayed(msg,
+                mDirectorySearchCoordinator.getDebounceMillis(Directory.DEFAULT));
+    }
+
+    /**
+     * Searches a remote directory through the {@link DirectorySearchCoordinator}, which queries
+     * all directories concurrently and gives up on those that don't answer in time.
+     */
+    private void searchDirectory(DirectoryPartition partition, boolean debounce) {
+        // The adapter is configured here, on the main thread, for the current query.
+        final CursorLoader spec = new CursorLoader(mContext);
+        mAdapter.configureLoader(spec, partition.getDirectoryId());
+        final ContentResolver resolver = mContext.getContentResolver();
+        mDirectorySearchCoordinator.search(partition.getDirectoryId(),
+                new DirectorySearchCoordinator.DirectoryQuery() {
+                    @Override
+                    public Cursor query(CancellationSignal signal) {
+                        return resolver.query(spec.getUri(), spec.getProjection(),
+                                spec.getSelection(), spec.getSelectionArgs(),
+                                spec.getSortOrder(), signal);
+                    }
+                }, debounce);
+    }
+
+    private void onDirectoryPartitionLoaded(long directoryId, Cursor cursor) {
+        final int partitionIndex = mAdapter == null ? -1
+                : mAdapter.getPartitionByDirectoryId(directoryId);
+        if (!mEnabled || !isSearchMode() || partitionIndex < 0) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        onPartitionLoaded(partitionIndex, cursor);
     }
 
     /**
@@ -425,6 +540,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
      */
     private void removePendingDirectorySearchRequests() {
         mDelayedDirectorySearchHandler.removeMessages(DIRECTORY_SEARCH_MESSAGE);
+        mDirectorySearchCoordinator.cancel();
     }
 
     @Override
@@ -481,6 +597,8 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         }
 
         mAdapter.changeCursor(partitionIndex, data);
+        // Prefetch the new rows on the next layout.
+        mRowTextPrefetchPosition = -1;
         setListHeader();
 
         if (!isLoading()) {
@@ -510,9 +628,20 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     public void onStop() {
         super.onStop();
         mContactsPrefs.unregisterChangeListener();
+        mAdapter.onStop();
+        mDirectorySearchCoordinator.cancel();
         mAdapter.clearPartitions();
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (mAdapter != null) {
+            mAdapter.clearRowTextCache();
+        }
+        mRowTextPrefetchPosition = -1;
+    }
+
     protected void reloadData() {
         removePendingDirectorySearchRequests();
         mAdapter.onDataReload();
@@ -683,6 +812,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
             }
 
             mQueryString = queryString;
+            mDirectorySearchCoordinator.onQueryChanged();
             setSearchMode(!TextUtils.isEmpty(mQueryString) || mShowEmptyListForEmptyQuery);
 
             if (mAdapter != null) {
@@ -800,6 +930,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         mListView.setOnItemLongClickListener(this);
         mListView.setOnFocusChangeListener(this);
         mListView.setOnTouchListener(this);
+        mListView.setOnScrollListener(this);
         mListView.setFastScrollEnabled(!isSearchMode());
 
         // Tell list view to not show dividers. We'll do it ourself so that we can *not* show
@@ -819,6 +950,7 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
         if (isPhotoLoaderEnabled() && mContext != null) {
             if (mPhotoManager == null) {
                 mPhotoManager = ContactPhotoManager.getInstance(mContext);
+                mPhotoPrefetcher = new PhotoPrefetcher(mPhotoManager);
             }
             if (mListView != null) {
                 mListView.setOnScrollListener(this);
@@ -851,10 +983,28 @@ public abstract class ContactEntryListFragment<T extends ContactEntryListAdapter
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
             int totalItemCount) {
+        if (mAdapter == null || mListView == null) {
+            return;
+        }
+        final int firstVisiblePosition = firstVisibleItem - mListView.getHeaderViewsCount();
+        if (mPhotoPrefetcher != null) {
+            mPhotoPrefetcher.onScroll(mAdapter, firstVisiblePosition, visibleItemCount);
+        }
+        // onScroll is also called on every layout, only prefetch when the list moved.
+        if (firstVisiblePosition != mRowTextPrefetchPosition) {
+            mRowTextPrefetchPosition = firstVisiblePosition;
+            mAdapter.prefetchRowText(firstVisiblePosition, visibleItemCount);
+        }
     }
 
     @Override
     public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (mPhotoPrefetcher != null) {
+            mPhotoPrefetcher.onScrollStateChanged(scrollState);
+        }
+        if (mPhotoManager == null) {
+            return;
+        }
         if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
             mPhotoManager.pause();
         } else if (isPhotoLoaderEnabled()) {
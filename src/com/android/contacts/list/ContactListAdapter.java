@@ -163,7 +163,7 @@ public abstract class ContactListAdapter extends MultiSelectEntryContactListAdap
     public Uri getContactUri(int position) {
         int partitionIndex = getPartitionForPosition(position);
         Cursor item = (Cursor)getItem(position);
-        return item != null ? getContactUri(partitionIndex, item) : null;
+        return item != null && !isPlaceholder(item) ? getContactUri(partitionIndex, item) : null;
     }
 
     public Uri getContactUri(int partitionIndex, Cursor cursor) {
@@ -183,7 +183,15 @@ public abstract class ContactListAdapter extends MultiSelectEntryContactListAdap
      */
     public long getContactId(int position) {
         final Cursor cursor = (Cursor) getItem(position);
-        return cursor == null ? -1 : cursor.getLong(ContactQuery.CONTACT_ID);
+        return cursor == null || isPlaceholder(cursor)
+                ? -1 : cursor.getLong(ContactQuery.CONTACT_ID);
+    }
+
+    /**
+     * Returns whether the cursor is on a row that isn't loaded yet, see {@link FirstPageCursor}.
+     */
+    protected static boolean isPlaceholder(Cursor cursor) {
+        return cursor.isNull(ContactQuery.CONTACT_ID);
     }
 
     public boolean isEnterpriseContact(int position) {
@@ -241,6 +249,12 @@ public abstract class ContactListAdapter extends MultiSelectEntryContactListAdap
         }
     }
 
+    @Override
+    protected long getPhotoId(Cursor cursor) {
+        return cursor.isNull(ContactQuery.CONTACT_PHOTO_ID)
+                ? 0 : cursor.getLong(ContactQuery.CONTACT_PHOTO_ID);
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
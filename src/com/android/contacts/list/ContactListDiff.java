@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The difference between two results of a contact list query, by contact id and row content.
+ *
+ * <p>Contacts have no version column, so the version of a row is the hash of all its values:
+ * a row changes when anything the list shows of it does. A contact may have more than one row,
+ * e.g. in the favorites and again in the full list, so its rows are told apart by their order
+ * of occurrence.</p>
+ */
+final class ContactListDiff {
+
+    /** The contact ids and content hashes of the rows of a result, in order. */
+    static final class Snapshot {
+        final long[] ids;
+        final int[] hashes;
+        /** The hash of the address book index extras. */
+        final int indexHash;
+
+        Snapshot(long[] ids, int[] hashes, int indexHash) {
+            this.ids = ids;
+            this.hashes = hashes;
+            this.indexHash = indexHash;
+        }
+
+        /**
+         * Reads all rows of the cursor, leaving its position unchanged. Returns null if the
+         * cursor has no contact id column.
+         */
+        static Snapshot of(Cursor cursor) {
+            final int idColumn = cursor.getColumnIndex(Contacts._ID);
+            if (idColumn < 0) {
+                return null;
+            }
+            final int count = cursor.getCount();
+            final long[] ids = new long[count];
+            final int[] hashes = new int[count];
+            final int position = cursor.getPosition();
+            cursor.moveToPosition(-1);
+            for (int i = 0; i < count && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(idColumn);
+                hashes[i] = hashRow(cursor);
+            }
+            cursor.moveToPosition(position);
+            return new Snapshot(ids, hashes, hashIndex(cursor.getExtras()));
+        }
+
+        /**
+         * Returns the number of rows before the given one that belong to the same contact.
+         */
+        int getOccurrence(int position) {
+            int occurrence = 0;
+            for (int i = 0; i < position; i++) {
+                if (ids[i] == ids[position]) {
+                    occurrence++;
+                }
+            }
+            return occurrence;
+        }
+
+        /**
+         * Returns the position of the given row of the contact, or -1 if there is none.
+         */
+        int indexOf(long id, int occurrence) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id && occurrence-- == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** A row of a contact, by occurrence. */
+    private static final class RowKey {
+        final long id;
+        final int occurrence;
+
+        RowKey(long id, int occurrence) {
+            this.id = id;
+            this.occurrence = occurrence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RowKey && ((RowKey) o).id == id
+                    && ((RowKey) o).occurrence == occurrence;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (id ^ (id >>> 32)) + occurrence;
+        }
+    }
+
+    private final Snapshot mOld;
+    private final Snapshot mNew;
+    private final int mChangedRowCount;
+    private final boolean mSameOrder;
+
+    private ContactListDiff(Snapshot oldSnapshot, Snapshot newSnapshot, int changedRowCount,
+            boolean sameOrder) {
+        mOld = oldSnapshot;
+        mNew = newSnapshot;
+        mChangedRowCount = changedRowCount;
+        mSameOrder = sameOrder;
+    }
+
+    /**
+     * Compares two results. Without an old result, all new rows count as changed.
+     */
+    static ContactListDiff compute(Snapshot oldSnapshot, Snapshot newSnapshot) {
+        if (oldSnapshot == null) {
+            return new ContactListDiff(null, newSnapshot, newSnapshot.ids.length, false);
+        }
+        if (Arrays.equals(oldSnapshot.ids, newSnapshot.ids)) {
+            int changed = 0;
+            for (int i = 0; i < newSnapshot.hashes.length; i++) {
+                if (oldSnapshot.hashes[i] != newSnapshot.hashes[i]) {
+                    changed++;
+                }
+            }
+            return new ContactListDiff(oldSnapshot, newSnapshot, changed, true);
+        }
+
+        final Map<RowKey, Integer> oldHashes = getRowHashes(oldSnapshot);
+        final Map<RowKey, Integer> newHashes = getRowHashes(newSnapshot);
+        // Rows that were inserted or changed, then the ones that were removed.
+        int changed = 0;
+        for (Map.Entry<RowKey, Integer> row : newHashes.entrySet()) {
+            if (!row.getValue().equals(oldHashes.get(row.getKey()))) {
+                changed++;
+            }
+        }
+        for (RowKey row : oldHashes.keySet()) {
+            if (!newHashes.containsKey(row)) {
+                changed++;
+            }
+        }
+        return new ContactListDiff(oldSnapshot, newSnapshot, changed, false);
+    }
+
+    /**
+     * Returns the number of rows that were inserted, removed or changed.
+     */
+    public int getChangedRowCount() {
+        return mChangedRowCount;
+    }
+
+    /**
+     * Returns whether the new result shows exactly what the old one did.
+     */
+    public boolean isUnchanged() {
+        return mSameOrder && mChangedRowCount == 0 && mOld.indexHash == mNew.indexHash;
+    }
+
+    /**
+     * Returns whether rows moved, i.e. whether the same position may now show another contact.
+     */
+    public boolean hasMovedRows() {
+        return mOld != null && !mSameOrder;
+    }
+
+    /**
+     * Returns the new position of the row at the given old position, or -1 if it was removed.
+     */
+    public int getNewPosition(int oldPosition) {
+        if (mOld == null || oldPosition < 0 || oldPosition >= mOld.ids.length) {
+            return -1;
+        }
+        if (mSameOrder) {
+            return oldPosition;
+        }
+        return mNew.indexOf(mOld.ids[oldPosition], mOld.getOccurrence(oldPosition));
+    }
+
+    Snapshot getSnapshot() {
+        return mNew;
+    }
+
+    private static Map<RowKey, Integer> getRowHashes(Snapshot snapshot) {
+        final Map<RowKey, Integer> rows = new HashMap<>(snapshot.ids.length * 2);
+        final Map<Long, Integer> occurrences = new HashMap<>(snapshot.ids.length * 2);
+        for (int i = 0; i < snapshot.ids.length; i++) {
+            final Integer previous = occurrences.get(snapshot.ids[i]);
+            final int occurrence = previous == null ? 0 : previous + 1;
+            occurrences.put(snapshot.ids[i], occurrence);
+            rows.put(new RowKey(snapshot.ids[i], occurrence), snapshot.hashes[i]);
+        }
+        return rows;
+    }
+
+    private static int hashRow(Cursor cursor) {
+        int hash = 1;
+        for (int column = 0; column < cursor.getColumnCount(); column++) {
+            final int value;
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    final long longValue = cursor.getLong(column);
+                    value = (int) (longValue ^ (longValue >>> 32));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    final long bits = Double.doubleToLongBits(cursor.getDouble(column));
+                    value = (int) (bits ^ (bits >>> 32));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    value = cursor.getString(column).hashCode();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    value = Arrays.hashCode(cursor.getBlob(column));
+                    break;
+                default:
+                    value = 0;
+                    break;
+            }
+            hash = 31 * hash + value;
+        }
+        return hash;
+    }
+
+    private static int hashIndex(Bundle extras) {
+        if (extras == null) {
+            return 0;
+        }
+        return 31 * Arrays.hashCode(extras.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES))
+                + Arrays.hashCode(extras.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS));
+    }
+}
@@ -18,6 +18,7 @@ package com.android.contacts.list;
 
 import android.content.Context;
 import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.database.CharArrayBuffer;
 import android.database.Cursor;
@@ -30,8 +31,6 @@ import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.SearchSnippets;
-import android.text.Spannable;
-import android.text.SpannableString;
 import android.text.TextUtils;
 import android.text.TextUtils.TruncateAt;
 import android.util.AttributeSet;
@@ -39,7 +38,10 @@ import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.View.AccessibilityDelegate;
 import android.view.ViewGroup;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.AbsListView.SelectionBoundsAdjuster;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
@@ -50,12 +52,13 @@ import androidx.appcompat.widget.AppCompatImageButton;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.res.ResourcesCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import com.android.contacts.ContactPresenceIconUtil;
 import com.android.contacts.ContactStatusUtil;
 import com.android.contacts.R;
 import com.android.contacts.compat.CompatUtils;
 import com.android.contacts.compat.PhoneNumberUtilsCompat;
-import com.android.contacts.format.TextHighlighter;
 import com.android.contacts.util.ContactDisplayUtils;
 import com.android.contacts.util.SearchUtil;
 import com.android.contacts.util.ViewUtil;
@@ -118,8 +121,8 @@ public class ContactListItemView extends ViewGroup
     private int mDataViewWidthWeight = 5;
 
     protected static class HighlightSequence {
-        private final int start;
-        private final int end;
+        private int start;
+        private int end;
 
         HighlightSequence(int start, int end) {
             this.start = start;
@@ -127,8 +130,11 @@ public class ContactListItemView extends ViewGroup
         }
     }
 
+    /** Highlight sequences, of which the first {@code mName/NumberHighlightCount} are used. */
     private ArrayList<HighlightSequence> mNameHighlightSequence;
     private ArrayList<HighlightSequence> mNumberHighlightSequence;
+    private int mNameHighlightCount;
+    private int mNumberHighlightCount;
 
     // Highlighting prefix for names.
     private String mHighlightedPrefix;
@@ -238,29 +244,61 @@ public class ContactListItemView extends ViewGroup
     // same row.
     private int mLabelAndDataViewMaxHeight;
 
-    // TODO: some TextView fields are using CharArrayBuffer while some are not. Determine which is
-    // more efficient for each case or in general, and simplify the whole implementation.
-    // Note: if we're sure MARQUEE will be used every time, there's no reason to use
-    // CharArrayBuffer, since MARQUEE requires Span and thus we need to copy characters inside the
-    // buffer to Spannable once, while CharArrayBuffer is for directly applying char array to
-    // TextView without any modification.
+    // Cursor values are copied into these buffers and from there into the reused text of their
+    // view, so binding a row doesn't allocate a String for them.
     private final CharArrayBuffer mDataBuffer = new CharArrayBuffer(128);
     private final CharArrayBuffer mPhoneticNameBuffer = new CharArrayBuffer(128);
+    private final CharArrayBuffer mNameBuffer = new CharArrayBuffer(128);
+
+    // The texts of the text views, rebuilt in place on every bind. Created with their views.
+    private BindTextBuffer mHeaderText;
+    private BindTextBuffer mNameText;
+    private BindTextBuffer mPhoneticNameText;
+    private BindTextBuffer mLabelText;
+    private BindTextBuffer mDataText;
+    private BindTextBuffer mSnippetText;
+    private BindTextBuffer mStatusText;
+
+    // Measures names ahead of binding. The appearance of the name view is cached for its
+    // lookups until the view or the configuration changes.
+    private RowTextPrecomputer mRowTextPrecomputer;
+    private PrecomputedTextCompat.Params mNameTextParams;
+
+    /**
+     * Provides the content descriptions of the name, the snippet and the quick contact badge
+     * when an accessibility service asks for them, rather than building them on every bind.
+     */
+    private final AccessibilityDelegate mContentDescriptionDelegate = new AccessibilityDelegate() {
+        @Override
+        public void onInitializeAccessibilityNodeInfo(View host, AccessibilityNodeInfo info) {
+            super.onInitializeAccessibilityNodeInfo(host, info);
+            final CharSequence description = getChildContentDescription(host);
+            if (description != null) {
+                info.setContentDescription(description);
+            }
+        }
+
+        @Override
+        public void onInitializeAccessibilityEvent(View host, AccessibilityEvent event) {
+            super.onInitializeAccessibilityEvent(host, event);
+            final CharSequence description = getChildContentDescription(host);
+            if (description != null) {
+                event.setContentDescription(description);
+            }
+        }
+    };
 
     private boolean mActivatedStateSupported;
     private boolean mAdjustSelectionBoundsEnabled = true;
 
     private Rect mBoundsWithoutHeader = new Rect();
 
-    /** A helper used to highlight a prefix in a text field. */
-    private final TextHighlighter mTextHighlighter;
     private CharSequence mUnknownNameText;
     private int mPosition;
 
     public ContactListItemView(Context context) {
         super(context);
 
-        mTextHighlighter = new TextHighlighter(Typeface.BOLD);
         mNameHighlightSequence = new ArrayList<HighlightSequence>();
         mNumberHighlightSequence = new ArrayList<HighlightSequence>();
     }
@@ -340,8 +378,6 @@ public class ContactListItemView extends ViewGroup
             a.recycle();
         }
 
-        mTextHighlighter = new TextHighlighter(Typeface.BOLD);
-
         if (R.styleable.Theme != null) {
             a = getContext().obtainStyledAttributes(R.styleable.Theme);
             mSecondaryTextColor = a.getColorStateList(R.styleable.Theme_android_textColorSecondary);
@@ -1009,13 +1045,14 @@ public class ContactListItemView extends ViewGroup
         final TextView headerTextView = (TextView) mHeaderView;
         headerTextView.setTextAppearance(getContext(), R.style.SectionHeaderStyle);
         headerTextView.setGravity(Gravity.CENTER_HORIZONTAL);
+        headerTextView.setAllCaps(true);
+        mHeaderText = new BindTextBuffer(headerTextView, Typeface.BOLD);
         updateHeaderText(headerTextView, title);
         addView(headerTextView);
     }
 
     private void updateHeaderText(TextView headerTextView, String title) {
-        setMarqueeText(headerTextView, title);
-        headerTextView.setAllCaps(true);
+        setMarqueeText(mHeaderText.set(title));
         if (ContactsSectionIndexer.BLANK_HEADER_STRING.equals(title)) {
             headerTextView.setContentDescription(
                     getContext().getString(R.string.description_no_name_header));
@@ -1056,10 +1093,7 @@ public class ContactListItemView extends ViewGroup
                 mQuickContact.setOverlay(null);
             }
             mQuickContact.setLayoutParams(getDefaultPhotoLayoutParams());
-            if (mNameTextView != null) {
-                mQuickContact.setContentDescription(getContext().getString(
-                        R.string.description_quick_contact_for, mNameTextView.getText()));
-            }
+            mQuickContact.setAccessibilityDelegate(mContentDescriptionDelegate);
 
             addView(mQuickContact);
             mPhotoViewWidthAndHeightAreReady = false;
@@ -1125,8 +1159,8 @@ public class ContactListItemView extends ViewGroup
      * Clears previously set highlight sequences for the view.
      */
     public void clearHighlightSequences() {
-        mNameHighlightSequence.clear();
-        mNumberHighlightSequence.clear();
+        mNameHighlightCount = 0;
+        mNumberHighlightCount = 0;
         mHighlightedPrefix = null;
     }
 
@@ -1136,7 +1170,8 @@ public class ContactListItemView extends ViewGroup
      * @param end The end position of the highlight sequence.
      */
     public void addNameHighlightSequence(int start, int end) {
-        mNameHighlightSequence.add(new HighlightSequence(start, end));
+        mNameHighlightCount = addHighlightSequence(mNameHighlightSequence, mNameHighlightCount,
+                start, end);
     }
 
     /**
@@ -1145,7 +1180,23 @@ public class ContactListItemView extends ViewGroup
      * @param end The end position of the highlight sequence.
      */
     public void addNumberHighlightSequence(int start, int end) {
-        mNumberHighlightSequence.add(new HighlightSequence(start, end));
+        mNumberHighlightCount = addHighlightSequence(mNumberHighlightSequence,
+                mNumberHighlightCount, start, end);
+    }
+
+    /**
+     * Reuses the sequence after the used ones if there is one, and returns the new count.
+     */
+    private static int addHighlightSequence(ArrayList<HighlightSequence> sequences, int count,
+            int start, int end) {
+        if (count < sequences.size()) {
+            final HighlightSequence sequence = sequences.get(count);
+            sequence.start = start;
+            sequence.end = end;
+        } else {
+            sequences.add(new HighlightSequence(start, end));
+        }
+        return count + 1;
     }
 
     /**
@@ -1168,6 +1219,8 @@ public class ContactListItemView extends ViewGroup
             if (CompatUtils.isLollipopCompatible()) {
                 mNameTextView.setElegantTextHeight(false);
             }
+            mNameTextView.setAccessibilityDelegate(mContentDescriptionDelegate);
+            mNameText = new BindTextBuffer(mNameTextView, Typeface.BOLD);
             addView(mNameTextView);
         }
         return mNameTextView;
@@ -1183,7 +1236,7 @@ public class ContactListItemView extends ViewGroup
             }
         } else {
             getPhoneticNameTextView();
-            setMarqueeText(mPhoneticNameTextView, text, size);
+            setMarqueeText(mPhoneticNameText.set(text, size));
             mPhoneticNameTextView.setVisibility(VISIBLE);
         }
     }
@@ -1201,6 +1254,7 @@ public class ContactListItemView extends ViewGroup
             mPhoneticNameTextView.setTypeface(mPhoneticNameTextView.getTypeface(), Typeface.BOLD);
             mPhoneticNameTextView.setActivated(isActivated());
             mPhoneticNameTextView.setId(R.id.cliv_phoneticname_textview);
+            mPhoneticNameText = new BindTextBuffer(mPhoneticNameTextView, Typeface.BOLD);
             addView(mPhoneticNameTextView);
         }
         return mPhoneticNameTextView;
@@ -1216,7 +1270,7 @@ public class ContactListItemView extends ViewGroup
             }
         } else {
             getLabelView();
-            setMarqueeText(mLabelView, text);
+            setMarqueeText(mLabelText.set(text));
             mLabelView.setVisibility(VISIBLE);
         }
     }
@@ -1240,6 +1294,7 @@ public class ContactListItemView extends ViewGroup
             }
             mLabelView.setActivated(isActivated());
             mLabelView.setId(R.id.cliv_label_textview);
+            mLabelText = new BindTextBuffer(mLabelView, Typeface.BOLD);
             addView(mLabelView);
         }
         return mLabelView;
@@ -1255,7 +1310,7 @@ public class ContactListItemView extends ViewGroup
             }
         } else {
             getDataView();
-            setMarqueeText(mDataView, text, size);
+            setMarqueeText(mDataText.set(text, size));
             mDataView.setVisibility(VISIBLE);
         }
     }
@@ -1277,16 +1332,13 @@ public class ContactListItemView extends ViewGroup
             // after number formatting.
 
             // Sets phone number texts for display after highlighting it, if applicable.
-            // CharSequence textToSet = text;
-            final SpannableString textToSet = new SpannableString(text);
-
-            if (mNumberHighlightSequence.size() != 0) {
+            mDataText.set(text);
+            if (mNumberHighlightCount != 0) {
                 final HighlightSequence highlightSequence = mNumberHighlightSequence.get(0);
-                mTextHighlighter.applyMaskingHighlight(textToSet, highlightSequence.start,
-                        highlightSequence.end);
+                mDataText.highlight(highlightSequence.start, highlightSequence.end);
             }
 
-            setMarqueeText(mDataView, textToSet);
+            setMarqueeText(mDataText);
             mDataView.setVisibility(VISIBLE);
 
             // We have a phone number as "mDataView" so make it always LTR and VIEW_START
@@ -1295,25 +1347,10 @@ public class ContactListItemView extends ViewGroup
         }
     }
 
-    private void setMarqueeText(TextView textView, char[] text, int size) {
-        if (getTextEllipsis() == TruncateAt.MARQUEE) {
-            setMarqueeText(textView, new String(text, 0, size));
-        } else {
-            textView.setText(text, 0, size);
-        }
-    }
-
-    private void setMarqueeText(TextView textView, CharSequence text) {
-        if (getTextEllipsis() == TruncateAt.MARQUEE) {
-            // To show MARQUEE correctly (with END effect during non-active state), we need
-            // to build Spanned with MARQUEE in addition to TextView's ellipsize setting.
-            final SpannableString spannable = new SpannableString(text);
-            spannable.setSpan(TruncateAt.MARQUEE, 0, spannable.length(),
-                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            textView.setText(spannable);
-        } else {
-            textView.setText(text);
-        }
+    private void setMarqueeText(BindTextBuffer text) {
+        // To show MARQUEE correctly (with END effect during non-active state), we need
+        // to build Spanned with MARQUEE in addition to TextView's ellipsize setting.
+        text.apply(getTextEllipsis() == TruncateAt.MARQUEE);
     }
 
     /**
@@ -1378,6 +1415,7 @@ public class ContactListItemView extends ViewGroup
             if (CompatUtils.isLollipopCompatible()) {
                 mDataView.setElegantTextHeight(false);
             }
+            mDataText = new BindTextBuffer(mDataView, Typeface.BOLD);
             addView(mDataView);
         }
         return mDataView;
@@ -1392,15 +1430,10 @@ public class ContactListItemView extends ViewGroup
                 mSnippetView.setVisibility(View.GONE);
             }
         } else {
-            mTextHighlighter.setPrefixText(getSnippetView(), text, mHighlightedPrefix);
+            getSnippetView();
+            mSnippetText.set(text).highlightPrefix(mHighlightedPrefix);
+            mSnippetText.apply(false);
             mSnippetView.setVisibility(VISIBLE);
-            if (ContactDisplayUtils.isPossiblePhoneNumber(text)) {
-                // Give the text-to-speech engine a hint that it's a phone number
-                mSnippetView.setContentDescription(
-                        PhoneNumberUtilsCompat.createTtsSpannable(text));
-            } else {
-                mSnippetView.setContentDescription(null);
-            }
         }
     }
 
@@ -1415,6 +1448,8 @@ public class ContactListItemView extends ViewGroup
             mSnippetView.setTextAppearance(getContext(), android.R.style.TextAppearance_Small);
             mSnippetView.setTextAlignment(View.TEXT_ALIGNMENT_VIEW_START);
             mSnippetView.setActivated(isActivated());
+            mSnippetView.setAccessibilityDelegate(mContentDescriptionDelegate);
+            mSnippetText = new BindTextBuffer(mSnippetView, Typeface.BOLD);
             addView(mSnippetView);
         }
         return mSnippetView;
@@ -1432,6 +1467,7 @@ public class ContactListItemView extends ViewGroup
             mStatusView.setTextColor(mSecondaryTextColor);
             mStatusView.setActivated(isActivated());
             mStatusView.setTextAlignment(View.TEXT_ALIGNMENT_VIEW_START);
+            mStatusText = new BindTextBuffer(mStatusView, Typeface.BOLD);
             addView(mStatusView);
         }
         return mStatusView;
@@ -1447,7 +1483,7 @@ public class ContactListItemView extends ViewGroup
             }
         } else {
             getStatusView();
-            setMarqueeText(mStatusView, text);
+            setMarqueeText(mStatusText.set(text));
             mStatusView.setVisibility(VISIBLE);
         }
     }
@@ -1493,16 +1529,15 @@ public class ContactListItemView extends ViewGroup
     }
 
     public void showDisplayName(Cursor cursor, int nameColumnIndex, int displayOrder) {
-        CharSequence name = cursor.getString(nameColumnIndex);
-        setDisplayName(name);
-
-        // Since the quick contact content description is derived from the display name and there is
-        // no guarantee that when the quick contact is initialized the display name is already set,
-        // do it here too.
-        if (mQuickContact != null) {
-            mQuickContact.setContentDescription(getContext().getString(
-                    R.string.description_quick_contact_for, mNameTextView.getText()));
+        cursor.copyStringToBuffer(nameColumnIndex, mNameBuffer);
+        getNameTextView();
+        if (mNameBuffer.sizeCopied == 0) {
+            mNameText.set(mUnknownNameText);
+        } else {
+            mNameText.set(mNameBuffer.data, mNameBuffer.sizeCopied);
+            highlightDisplayName();
         }
+        applyDisplayName();
     }
 
     public void setDisplayName(CharSequence name, boolean highlight) {
@@ -1514,33 +1549,109 @@ public class ContactListItemView extends ViewGroup
     }
 
     public void setDisplayName(CharSequence name) {
-        if (!TextUtils.isEmpty(name)) {
-            // Chooses the available highlighting method for highlighting.
-            if (mHighlightedPrefix != null) {
-                name = mTextHighlighter.applyPrefixHighlight(name, mHighlightedPrefix);
-            } else if (mNameHighlightSequence.size() != 0) {
-                final SpannableString spannableName = new SpannableString(name);
-                for (HighlightSequence highlightSequence : mNameHighlightSequence) {
-                    mTextHighlighter.applyMaskingHighlight(spannableName, highlightSequence.start,
-                            highlightSequence.end);
-                }
-                name = spannableName;
-            }
+        getNameTextView();
+        if (TextUtils.isEmpty(name)) {
+            mNameText.set(mUnknownNameText);
+        } else {
+            mNameText.set(name);
+            highlightDisplayName();
+        }
+        applyDisplayName();
+    }
+
+    /**
+     * Chooses the available highlighting method for highlighting.
+     */
+    private void highlightDisplayName() {
+        if (mHighlightedPrefix != null) {
+            mNameText.highlightPrefix(mHighlightedPrefix);
         } else {
-            name = mUnknownNameText;
+            for (int i = 0; i < mNameHighlightCount; i++) {
+                final HighlightSequence highlightSequence = mNameHighlightSequence.get(i);
+                mNameText.highlight(highlightSequence.start, highlightSequence.end);
+            }
         }
-        setMarqueeText(getNameTextView(), name);
+    }
 
-        if (ContactDisplayUtils.isPossiblePhoneNumber(name)) {
-            // Give the text-to-speech engine a hint that it's a phone number
+    private void applyDisplayName() {
+        if (applyPrecomputedDisplayName()) {
+            return;
+        }
+        setMarqueeText(mNameText);
+        if (ContactDisplayUtils.isPossiblePhoneNumber(mNameText.getText())) {
             mNameTextView.setTextDirection(View.TEXT_DIRECTION_LTR);
-            mNameTextView.setContentDescription(
-                    PhoneNumberUtilsCompat.createTtsSpannable(name.toString()));
-        } else {
-            // Remove span tags of highlighting for talkback to avoid reading highlighting and rest
-            // of the name into two separate parts.
-            mNameTextView.setContentDescription(name.toString());
+            mNameTextParams = null;
+        }
+    }
+
+    /**
+     * Shows the name measured by the {@link RowTextPrecomputer}, if it has it.
+     *
+     * @return whether the name was shown
+     */
+    private boolean applyPrecomputedDisplayName() {
+        if (mRowTextPrecomputer == null
+                || (mHighlightedPrefix == null && mNameHighlightCount > 0)) {
+            return false;
+        }
+        final CharSequence name = mNameText.getText();
+        // Phone numbers change the text direction, and with it the appearance.
+        if (name.length() == 0 || ContactDisplayUtils.isPossiblePhoneNumber(name)) {
+            return false;
         }
+        if (mNameTextParams == null) {
+            mNameTextParams = TextViewCompat.getTextMetricsParams(mNameTextView);
+        }
+        final PrecomputedTextCompat text = mRowTextPrecomputer.get(name, mHighlightedPrefix,
+                getTextEllipsis() == TruncateAt.MARQUEE, mNameTextParams);
+        if (text == null) {
+            return false;
+        }
+        try {
+            TextViewCompat.setPrecomputedText(mNameTextView, text);
+        } catch (IllegalArgumentException e) {
+            // The appearance changed since the text was measured.
+            mNameTextParams = null;
+            mRowTextPrecomputer.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets where to take measured names from, or null to measure them while binding.
+     */
+    void setRowTextPrecomputer(RowTextPrecomputer precomputer) {
+        mRowTextPrecomputer = precomputer;
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        mNameTextParams = null;
+    }
+
+    /**
+     * Returns the content description of one of the views that use
+     * {@link #mContentDescriptionDelegate}, or null to keep the default.
+     */
+    private CharSequence getChildContentDescription(View host) {
+        if (host == mNameTextView) {
+            // Remove span tags of highlighting for talkback to avoid reading highlighting and
+            // rest of the name into two separate parts.
+            final String name = mNameTextView.getText().toString();
+            return ContactDisplayUtils.isPossiblePhoneNumber(name)
+                    // Give the text-to-speech engine a hint that it's a phone number
+                    ? PhoneNumberUtilsCompat.createTtsSpannable(name) : name;
+        } else if (host == mSnippetView) {
+            final String snippet = mSnippetView.getText().toString();
+            return ContactDisplayUtils.isPossiblePhoneNumber(snippet)
+                    ? PhoneNumberUtilsCompat.createTtsSpannable(snippet) : null;
+        } else if (host == mQuickContact && mNameTextView != null) {
+            return getContext().getString(R.string.description_quick_contact_for,
+                    mNameTextView.getText().toString());
+        }
+        return null;
     }
 
     public void hideCheckBox() {
@@ -1561,6 +1672,7 @@ public class ContactListItemView extends ViewGroup
         if (mNameTextView != null) {
             removeView(mNameTextView);
             mNameTextView = null;
+            mNameTextParams = null;
         }
     }
 
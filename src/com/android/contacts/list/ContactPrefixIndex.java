@@ -0,0 +1,799 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.list.ContactListAdapter.ContactQuery;
+import com.android.contacts.util.concurrent.ContactsExecutors;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ObjectArrays;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory prefix index over the names, phonetic names, nicknames and phone numbers of the
+ * contacts in the default directory, which answers type-ahead searches without a provider query.
+ *
+ * <p>The names and the order of the contacts come from the contact list cursor, so matches are
+ * returned in the same order as the provider's filter query with the same sort order. Nicknames
+ * and phone numbers are loaded with one background query, and changes are applied as deltas
+ * from a {@link ContentObserver} between list reloads, queried with the list's own uri and
+ * selection. When a delta adds or renames contacts, the order of the list is queried again.
+ * </p>
+ *
+ * <p>Queries match like the provider's filter: every word of the query has to be the prefix of a
+ * word of the contact. Emails, organizations and other fields the provider also searches are not
+ * indexed; callers are expected to refresh the results from the provider when typing pauses.</p>
+ */
+final class ContactPrefixIndex {
+    private static final String TAG = "ContactPrefixIndex";
+
+    /** Number of columns copied from the contact list cursor, all but the snippet. */
+    private static final int ROW_COLUMN_COUNT = ContactQuery.CONTACT_SNIPPET;
+
+    private static final String[] DATA_PROJECTION = new String[] {
+            Data.CONTACT_ID,
+            Data.MIMETYPE,
+            Data.DATA1,                 // Nickname.NAME or Phone.NUMBER
+            Phone.NORMALIZED_NUMBER,
+    };
+    private static final String DATA_SELECTION = Data.MIMETYPE + " IN (?,?)";
+    private static final String[] DATA_SELECTION_ARGS =
+            new String[] { Nickname.CONTENT_ITEM_TYPE, Phone.CONTENT_ITEM_TYPE };
+
+    /** The most contact ids bound in a single {@code IN(...)} selection. */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /** Overlap of successive delta queries, to tolerate timestamps written out of order. */
+    private static final long DELTA_OVERLAP_MILLIS = 1000;
+
+    /** Everything the index knows about one contact. */
+    private static final class Entry {
+        final long contactId;
+        /** Position in the provider's sort order. */
+        double rank;
+        /** The contact list columns, or null if the contact isn't in the list. */
+        Object[] row;
+        final List<String> nameTokens = new ArrayList<>();
+        /** Nicknames and phone numbers as displayed, parallel to {@link #dataTokens}. */
+        final List<String> dataValues = new ArrayList<>();
+        final List<String> dataTokens = new ArrayList<>();
+
+        Entry(long contactId) {
+            this.contactId = contactId;
+        }
+
+        String getDisplayName() {
+            return row == null ? null : (String) row[ContactQuery.CONTACT_DISPLAY_NAME];
+        }
+
+        String getPhoneticName() {
+            return row == null ? null : (String) row[ContactQuery.CONTACT_PHONETIC_NAME];
+        }
+    }
+
+    /** The query the contact list was loaded with, which deltas are restricted to. */
+    static final class ListQuery {
+        final Uri uri;
+        final String selection;
+        final String[] selectionArgs;
+        final String sortOrder;
+
+        /**
+         * @param uri the list's uri, without the parameters that ask for the address book index
+         * or limit the number of rows
+         */
+        ListQuery(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+            this.uri = uri;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+            this.sortOrder = sortOrder;
+        }
+    }
+
+    private static final Comparator<Entry> RANK_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return Double.compare(lhs.rank, rhs.rank);
+        }
+    };
+
+    private final ContentResolver mResolver;
+    private final Executor mExecutor;
+    private final ContentObserver mObserver;
+    private final AtomicBoolean mChangePending = new AtomicBoolean();
+
+    // All of the following are guarded by this.
+    private final Map<Long, Entry> mEntries = new HashMap<>();
+    private final TreeMap<String, Set<Entry>> mTokens = new TreeMap<>();
+    private String[] mRowProjection;
+    private ListQuery mListQuery;
+    private int mDisplayOrder = -1;
+    private int mSortOrder = -1;
+    private boolean mListLoaded;
+    private boolean mDataLoading;
+    private boolean mDataLoaded;
+    private boolean mObserving;
+    /** Provider timestamp up to which changes are reflected. */
+    private long mUpdatedMillis;
+
+    public ContactPrefixIndex(Context context) {
+        this(context.getContentResolver(), ContactsExecutors.getDefaultThreadPoolExecutor());
+    }
+
+    @VisibleForTesting
+    ContactPrefixIndex(ContentResolver resolver, Executor executor) {
+        mResolver = resolver;
+        mExecutor = executor;
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                requestDelta();
+            }
+        };
+    }
+
+    /**
+     * Starts applying contact changes to the index, and catches up with the changes made while
+     * it was stopped.
+     */
+    public synchronized void start() {
+        if (mObserving) {
+            return;
+        }
+        mObserving = true;
+        mResolver.registerContentObserver(Contacts.CONTENT_URI, true, mObserver);
+        if (mDataLoaded) {
+            requestDelta();
+        }
+    }
+
+    public synchronized void stop() {
+        if (!mObserving) {
+            return;
+        }
+        mObserving = false;
+        mResolver.unregisterContentObserver(mObserver);
+    }
+
+    /**
+     * Updates the names and positions from a freshly loaded contact list, which must contain all
+     * the contacts of the default directory sorted by the given sort order. Only the contacts
+     * whose names changed are indexed again. Reads the whole cursor, so it must be called
+     * before the cursor is handed to the main thread, e.g. by the loader.
+     */
+    public void updateFromContactList(Cursor cursor, ListQuery query, int displayOrder,
+            int sortOrder) {
+        final String[] rowProjection = new String[ROW_COLUMN_COUNT];
+        for (int i = 0; i < ROW_COLUMN_COUNT; i++) {
+            rowProjection[i] = cursor.getColumnName(i);
+        }
+        final List<Object[]> rows = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            rows.add(readRow(cursor));
+        }
+        cursor.moveToPosition(-1);
+        // Tokenized here rather than while holding the lock that queries wait for.
+        final List<List<String>> nameTokens = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            nameTokens.add(tokenizeNames(row));
+        }
+        onContactListLoaded(rows, nameTokens, rowProjection, query, displayOrder, sortOrder);
+    }
+
+    private synchronized void onContactListLoaded(List<Object[]> rows,
+            List<List<String>> nameTokens, String[] rowProjection, ListQuery query,
+            int displayOrder, int sortOrder) {
+        if (displayOrder != mDisplayOrder || sortOrder != mSortOrder) {
+            // Names are in the other display order now, start over.
+            clearNames();
+            mDisplayOrder = displayOrder;
+            mSortOrder = sortOrder;
+        }
+        mRowProjection = rowProjection;
+        mListQuery = query;
+
+        final Set<Entry> listed = new HashSet<>();
+        for (int rank = 0; rank < rows.size(); rank++) {
+            final Object[] row = rows.get(rank);
+            final Entry entry = getOrCreateEntry((Long) row[ContactQuery.CONTACT_ID]);
+            // Favorites may be listed first and again in place; the latter is the sort order.
+            entry.rank = rank;
+            setRow(entry, row, nameTokens.get(rank));
+            listed.add(entry);
+        }
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (!listed.contains(entry) && entry.row != null) {
+                removeTokens(entry, entry.nameTokens);
+                removeTokens(entry, entry.dataTokens);
+                iterator.remove();
+            }
+        }
+        mListLoaded = true;
+        if (!mDataLoaded && !mDataLoading) {
+            mDataLoading = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadData();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the contacts matching the query, in list order and with the given projection,
+     * which must be the contact list projection followed by the snippet. Returns null until the
+     * index is complete or if it was built for another display or sort order.
+     */
+    public synchronized Cursor query(String query, String[] projection, int displayOrder,
+            int sortOrder) {
+        if (!mListLoaded || !mDataLoaded || displayOrder != mDisplayOrder
+                || sortOrder != mSortOrder) {
+            return null;
+        }
+
+        final List<Entry> matches = new ArrayList<>(findMatches(query));
+        Collections.sort(matches, RANK_COMPARATOR);
+
+        final List<String> words = tokenize(query);
+        final String digits = isPhoneNumberLike(query) ? digitsOf(query) : null;
+        final LocalResultCursor cursor = new LocalResultCursor(projection, matches.size(), query);
+        for (Entry entry : matches) {
+            final Object[] values = new Object[projection.length];
+            System.arraycopy(entry.row, 0, values, 0, ROW_COLUMN_COUNT);
+            values[ContactQuery.CONTACT_SNIPPET] = getSnippet(entry, words, digits);
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private Set<Entry> findMatches(String query) {
+        final Set<Entry> matches = new HashSet<>();
+        final List<String> words = tokenize(query);
+        Set<Entry> wordMatches = null;
+        for (String word : words) {
+            final Set<Entry> prefixed = findPrefixed(word);
+            if (wordMatches == null) {
+                wordMatches = prefixed;
+            } else {
+                wordMatches.retainAll(prefixed);
+            }
+            if (wordMatches.isEmpty()) {
+                break;
+            }
+        }
+        if (wordMatches != null) {
+            matches.addAll(wordMatches);
+        }
+        if (isPhoneNumberLike(query)) {
+            // "650-555" searches for a number rather than the words "650" and "555".
+            matches.addAll(findPrefixed(digitsOf(query)));
+        }
+        // Contacts only known from their data aren't in the list.
+        final Iterator<Entry> iterator = matches.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().row == null) {
+                iterator.remove();
+            }
+        }
+        return matches;
+    }
+
+    private Set<Entry> findPrefixed(String prefix) {
+        final Set<Entry> result = new HashSet<>();
+        if (prefix.isEmpty()) {
+            return result;
+        }
+        for (Set<Entry> entries : mTokens.subMap(
+                prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the nickname or number that matched, like the provider's deferred snippet, or null
+     * if the names matched on their own.
+     */
+    private static String getSnippet(Entry entry, List<String> words, String digits) {
+        for (String word : words) {
+            if (hasPrefixedToken(entry.nameTokens, word)) {
+                continue;
+            }
+            final String value = findPrefixedValue(entry, word);
+            if (value != null) {
+                return value;
+            }
+        }
+        if (digits != null && !digits.isEmpty()) {
+            return findPrefixedValue(entry, digits);
+        }
+        return null;
+    }
+
+    private static boolean hasPrefixedToken(List<String> tokens, String prefix) {
+        for (String token : tokens) {
+            if (token.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String findPrefixedValue(Entry entry, String prefix) {
+        for (int i = 0; i < entry.dataTokens.size(); i++) {
+            if (entry.dataTokens.get(i).startsWith(prefix)) {
+                return entry.dataValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the nicknames and phone numbers of all contacts.
+     */
+    private void loadData() {
+        final long startMillis = System.currentTimeMillis();
+        onDataLoaded(queryData(null), startMillis);
+    }
+
+    /**
+     * @param data the nickname and phone rows by contact, see {@link #queryData}, or null if
+     * they couldn't be read
+     * @param updatedMillis the time the rows were read at
+     */
+    @VisibleForTesting
+    synchronized void onDataLoaded(Map<Long, List<String[]>> data, long updatedMillis) {
+        mDataLoading = false;
+        if (data == null) {
+            return;
+        }
+        for (Map.Entry<Long, List<String[]>> contactData : data.entrySet()) {
+            setData(getOrCreateEntry(contactData.getKey()), contactData.getValue());
+        }
+        mUpdatedMillis = updatedMillis;
+        mDataLoaded = true;
+    }
+
+    private void requestDelta() {
+        synchronized (this) {
+            if (!mDataLoaded) {
+                // The full load will see the change.
+                return;
+            }
+        }
+        if (mChangePending.getAndSet(true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mChangePending.set(false);
+                applyDelta();
+            }
+        });
+    }
+
+    /**
+     * Applies the contacts changed or deleted since the last update.
+     */
+    private void applyDelta() {
+        final long startMillis = System.currentTimeMillis();
+        final String[] rowProjection;
+        final ListQuery listQuery;
+        final long since;
+        synchronized (this) {
+            rowProjection = mRowProjection;
+            listQuery = mListQuery;
+            since = mUpdatedMillis - DELTA_OVERLAP_MILLIS;
+        }
+        if (rowProjection == null || listQuery == null) {
+            return;
+        }
+
+        final String changedSelection = Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">?";
+        final String[] changedArgs = new String[] { String.valueOf(since) };
+        final Set<Long> changedIds = new HashSet<>();
+        final Map<Long, Object[]> changedRows = new HashMap<>();
+        final Map<Long, List<String>> changedNameTokens = new HashMap<>();
+        final List<Long> deletedIds = new ArrayList<>();
+        Map<Long, List<String[]>> changedData = null;
+        try {
+            // All changed contacts, to drop the ones the list no longer shows, e.g. because
+            // they were hidden.
+            final Cursor ids = mResolver.query(Contacts.CONTENT_URI,
+                    new String[] { Contacts._ID }, changedSelection, changedArgs, null);
+            if (ids != null) {
+                try {
+                    while (ids.moveToNext()) {
+                        changedIds.add(ids.getLong(0));
+                    }
+                } finally {
+                    ids.close();
+                }
+            }
+            final Cursor cursor = mResolver.query(listQuery.uri, rowProjection,
+                    andSelection(listQuery.selection, changedSelection),
+                    andSelectionArgs(listQuery.selectionArgs, changedArgs), null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        final Object[] row = readRow(cursor);
+                        final long contactId = cursor.getLong(ContactQuery.CONTACT_ID);
+                        changedRows.put(contactId, row);
+                        changedNameTokens.put(contactId, tokenizeNames(row));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            final Cursor deleted = mResolver.query(DeletedContacts.CONTENT_URI,
+                    new String[] { DeletedContacts.CONTACT_ID },
+                    DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?",
+                    new String[] { String.valueOf(since) }, null);
+            if (deleted != null) {
+                try {
+                    while (deleted.moveToNext()) {
+                        deletedIds.add(deleted.getLong(0));
+                    }
+                } finally {
+                    deleted.close();
+                }
+            }
+            if (!changedRows.isEmpty()) {
+                changedData = queryData(changedRows.keySet());
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to read contact changes", e);
+            return;
+        }
+        changedIds.removeAll(changedRows.keySet());
+        deletedIds.addAll(changedIds);
+
+        boolean reorder = false;
+        synchronized (this) {
+            for (Long id : deletedIds) {
+                final Entry entry = mEntries.remove(id);
+                if (entry != null) {
+                    removeTokens(entry, entry.nameTokens);
+                    removeTokens(entry, entry.dataTokens);
+                }
+            }
+            for (Map.Entry<Long, Object[]> changed : changedRows.entrySet()) {
+                final Entry entry = getOrCreateEntry(changed.getKey());
+                if (entry.row == null) {
+                    // Listed last until the order is queried.
+                    entry.rank = Double.MAX_VALUE;
+                }
+                if (setRow(entry, changed.getValue(), changedNameTokens.get(changed.getKey()))) {
+                    reorder = true;
+                }
+                final List<String[]> data = changedData == null ? null
+                        : changedData.get(changed.getKey());
+                setData(entry, data == null ? Collections.<String[]>emptyList() : data);
+            }
+            mUpdatedMillis = Math.max(mUpdatedMillis, startMillis);
+        }
+        if (reorder) {
+            updateRanks(listQuery);
+        }
+    }
+
+    /**
+     * Places the contacts in the order of the provider, which is the only one that can compare
+     * its sort keys the way the list is sorted.
+     */
+    private void updateRanks(ListQuery listQuery) {
+        final List<Long> orderedIds = new ArrayList<>();
+        try {
+            final Cursor cursor = mResolver.query(listQuery.uri, new String[] { Contacts._ID },
+                    listQuery.selection, listQuery.selectionArgs, listQuery.sortOrder);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    orderedIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to read contact order", e);
+            return;
+        }
+        synchronized (this) {
+            if (listQuery != mListQuery) {
+                // The list was reloaded in the meantime, which placed all contacts.
+                return;
+            }
+            for (int rank = 0; rank < orderedIds.size(); rank++) {
+                final Entry entry = mEntries.get(orderedIds.get(rank));
+                if (entry != null) {
+                    entry.rank = rank;
+                }
+            }
+        }
+    }
+
+    private static String andSelection(String listSelection, String selection) {
+        return TextUtils.isEmpty(listSelection)
+                ? selection : "(" + listSelection + ") AND " + selection;
+    }
+
+    private static String[] andSelectionArgs(String[] listArgs, String[] args) {
+        return listArgs == null || listArgs.length == 0
+                ? args : ObjectArrays.concat(listArgs, args, String.class);
+    }
+
+    /**
+     * Returns the nickname and phone rows, as {mimetype, value, normalized number}, of the given
+     * contacts or all contacts, or null if the query failed.
+     */
+    private Map<Long, List<String[]>> queryData(Collection<Long> contactIds) {
+        final Map<Long, List<String[]>> result = new HashMap<>();
+        final List<Long> ids = contactIds == null ? null : new ArrayList<>(contactIds);
+        final int count = ids == null ? 1 : ids.size();
+        for (int start = 0; start < count; start += MAX_IDS_PER_QUERY) {
+            String selection = DATA_SELECTION;
+            if (ids != null) {
+                final List<Long> chunk =
+                        ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_QUERY));
+                selection += " AND " + Data.CONTACT_ID + " IN(" + TextUtils.join(",", chunk) + ")";
+            }
+            final Cursor cursor;
+            try {
+                cursor = mResolver.query(Data.CONTENT_URI, DATA_PROJECTION, selection,
+                        DATA_SELECTION_ARGS, null);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to read nicknames and phone numbers", e);
+                return null;
+            }
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(0);
+                    List<String[]> rows = result.get(contactId);
+                    if (rows == null) {
+                        rows = new ArrayList<>();
+                        result.put(contactId, rows);
+                    }
+                    rows.add(new String[] {
+                            cursor.getString(1), cursor.getString(2), cursor.getString(3) });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private static Object[] readRow(Cursor cursor) {
+        final Object[] row = new Object[ROW_COLUMN_COUNT];
+        for (int i = 0; i < ROW_COLUMN_COUNT; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private Entry getOrCreateEntry(long contactId) {
+        Entry entry = mEntries.get(contactId);
+        if (entry == null) {
+            entry = new Entry(contactId);
+            mEntries.put(contactId, entry);
+        }
+        return entry;
+    }
+
+    private static List<String> tokenizeNames(Object[] row) {
+        final List<String> tokens = tokenize((String) row[ContactQuery.CONTACT_DISPLAY_NAME]);
+        tokens.addAll(tokenize((String) row[ContactQuery.CONTACT_PHONETIC_NAME]));
+        return tokens;
+    }
+
+    /**
+     * Returns whether the names changed, or the contact is new to the list.
+     *
+     * @param nameTokens the tokens of the names in the row, see {@link #tokenizeNames}
+     */
+    private boolean setRow(Entry entry, Object[] row, List<String> nameTokens) {
+        final boolean namesChanged = entry.row == null
+                || !TextUtils.equals(entry.getDisplayName(),
+                        (String) row[ContactQuery.CONTACT_DISPLAY_NAME])
+                || !TextUtils.equals(entry.getPhoneticName(),
+                        (String) row[ContactQuery.CONTACT_PHONETIC_NAME]);
+        entry.row = row;
+        if (namesChanged) {
+            removeTokens(entry, entry.nameTokens);
+            entry.nameTokens.clear();
+            entry.nameTokens.addAll(nameTokens);
+            addTokens(entry, entry.nameTokens);
+        }
+        return namesChanged;
+    }
+
+    private void setData(Entry entry, List<String[]> data) {
+        removeTokens(entry, entry.dataTokens);
+        entry.dataTokens.clear();
+        entry.dataValues.clear();
+        for (String[] row : data) {
+            final String value = row[1];
+            if (TextUtils.isEmpty(value)) {
+                continue;
+            }
+            if (Nickname.CONTENT_ITEM_TYPE.equals(row[0])) {
+                for (String token : tokenize(value)) {
+                    entry.dataTokens.add(token);
+                    entry.dataValues.add(value);
+                }
+            } else {
+                // Both the number as entered and in E.164, with the country code.
+                entry.dataTokens.add(digitsOf(value));
+                entry.dataValues.add(value);
+                if (!TextUtils.isEmpty(row[2])) {
+                    entry.dataTokens.add(digitsOf(row[2]));
+                    entry.dataValues.add(value);
+                }
+            }
+        }
+        addTokens(entry, entry.dataTokens);
+    }
+
+    private void clearNames() {
+        for (Entry entry : mEntries.values()) {
+            removeTokens(entry, entry.nameTokens);
+            entry.nameTokens.clear();
+            entry.row = null;
+        }
+        mListLoaded = false;
+    }
+
+    private void addTokens(Entry entry, List<String> tokens) {
+        for (String token : tokens) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            Set<Entry> entries = mTokens.get(token);
+            if (entries == null) {
+                entries = new HashSet<>();
+                mTokens.put(token, entries);
+            }
+            entries.add(entry);
+        }
+    }
+
+    private void removeTokens(Entry entry, List<String> tokens) {
+        for (String token : tokens) {
+            final Set<Entry> entries = mTokens.get(token);
+            if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+                mTokens.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Splits the text into lower case words without accents.
+     */
+    static List<String> tokenize(String text) {
+        final List<String> tokens = new ArrayList<>();
+        if (TextUtils.isEmpty(text)) {
+            return tokens;
+        }
+        final String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "").toLowerCase();
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            final boolean wordChar = i < normalized.length()
+                    && Character.isLetterOrDigit(normalized.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    static boolean isPhoneNumberLike(String query) {
+        boolean hasDigit = false;
+        for (int i = 0; i < query.length(); i++) {
+            final char c = query.charAt(i);
+            if (Character.isDigit(c)) {
+                hasDigit = true;
+            } else if ("+-(). ".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return hasDigit;
+    }
+
+    private static String digitsOf(String number) {
+        final StringBuilder digits = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (Character.isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Local results, with the extras that make the list items snippet them on the client like
+     * the provider's deferred snippets.
+     */
+    private static final class LocalResultCursor extends MatrixCursor {
+        private final Bundle mExtras = new Bundle();
+
+        LocalResultCursor(String[] projection, int initialCapacity, String query) {
+            super(projection, initialCapacity);
+            mExtras.putBoolean(ContactsContract.DEFERRED_SNIPPETING, true);
+            mExtras.putString(ContactsContract.DEFERRED_SNIPPETING_QUERY, query);
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+}
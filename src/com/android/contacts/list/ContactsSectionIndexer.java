@@ -102,6 +102,29 @@ public class ContactsSectionIndexer implements SectionIndexer {
         return index >= 0 ? index : -index - 2;
     }
 
+    /**
+     * Returns the position in another index that is the same offset into the section of the
+     * same title as the given position is in this one, or the last position of that section if
+     * it got shorter. Returns -1 if the other index has no such section.
+     */
+    public int getPositionInIndex(ContactsSectionIndexer other, int position) {
+        final int section = getSectionForPosition(position);
+        if (section < 0) {
+            return -1;
+        }
+        for (int i = 0; i < other.mSections.length; i++) {
+            if (other.mSections[i].equals(mSections[section])) {
+                final int end = i + 1 < other.mPositions.length
+                        ? other.mPositions[i + 1] : other.mCount;
+                if (end <= other.mPositions[i]) {
+                    return -1;
+                }
+                return Math.min(other.mPositions[i] + position - mPositions[section], end - 1);
+            }
+        }
+        return -1;
+    }
+
     public void setFavoritesHeader(int numberOfItemsToAdd) {
         if (mSections != null) {
             // Don't do anything if the header is already set properly.
@@ -53,9 +53,12 @@ import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.LinearLayout.LayoutParams;
+import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.contacts.AggregationProgressReceiver;
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.Experiments;
 import com.android.contacts.R;
@@ -158,6 +161,7 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
     private ContactListFilterController mContactListFilterController;
 
     private Future<List<AccountInfo>> mWritableAccountsFuture;
+    private AggregationProgressReceiver mJoinProgress;
 
     private final ActionBarAdapter.Listener mActionBarListener = new ActionBarAdapter.Listener() {
         @Override
@@ -279,7 +283,38 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
         if (loader.getId() == Directory.DEFAULT) {
             bindListHeader(data == null ? 0 : data.getCount());
         }
+        final ContactListDiff diff = FavoritesAndContactsLoader.getDiff(data);
+        final ListView listView = getListView();
+        final View firstChild = listView == null ? null : listView.getChildAt(0);
+        int anchorOffset = -1;
+        final int anchorTop = firstChild == null ? 0 : firstChild.getTop();
+        if (diff != null && diff.hasMovedRows() && firstChild != null) {
+            final int position = listView.getFirstVisiblePosition()
+                    - listView.getHeaderViewsCount();
+            if (getAdapter().getPartitionForPosition(position) == loader.getId()) {
+                anchorOffset = getAdapter().getOffsetInPartition(position);
+            }
+        }
+        final SectionIndexer oldIndexer = getAdapter().getIndexer();
         super.onLoadFinished(loader, data);
+        if (anchorOffset >= 0) {
+            // Rows were inserted or removed, keep the contact at the top where it was instead of
+            // the position.
+            int newOffset = diff.getNewPosition(anchorOffset);
+            final SectionIndexer newIndexer = getAdapter().getIndexer();
+            if (newOffset < 0 && oldIndexer instanceof ContactsSectionIndexer
+                    && newIndexer instanceof ContactsSectionIndexer && newIndexer != oldIndexer) {
+                // The row at the top is gone, or was a placeholder laid out by a stale index.
+                // Stay as far into its section as before.
+                newOffset = ((ContactsSectionIndexer) oldIndexer).getPositionInIndex(
+                        (ContactsSectionIndexer) newIndexer, anchorOffset);
+            }
+            if (newOffset >= 0 && newOffset != anchorOffset) {
+                listView.setSelectionFromTop(listView.getHeaderViewsCount()
+                        + getAdapter().getPositionForOffsetInPartition(loader.getId(), newOffset),
+                        anchorTop);
+            }
+        }
         if (!isSearchMode()) {
             maybeShowHamburgerFeatureHighlight();
         }
@@ -1133,8 +1168,32 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
 
     private void joinSelectedContacts() {
         final Context context = getContext();
+        final Context applicationContext = context.getApplicationContext();
+        if (mJoinProgress != null) {
+            mJoinProgress.detach();
+        }
+        // Shows the progress of a join that takes several transactions, and lets the user
+        // cancel it. With a receiver, the service leaves the toasts to it.
+        mJoinProgress = new AggregationProgressReceiver(getActivity(),
+                R.string.contacts_linking_progress_bar) {
+            @Override
+            protected void onFinished(int resultCode, Bundle resultData) {
+                if (resultCode == ContactSaveService.CONTACTS_LINKED) {
+                    final String name =
+                            resultData.getString(ContactSaveService.EXTRA_DISPLAY_NAME);
+                    Toast.makeText(applicationContext, TextUtils.isEmpty(name)
+                            ? applicationContext.getString(R.string.contactsJoinedMessage)
+                            : applicationContext.getString(
+                                    R.string.contactsJoinedNamedMessage, name),
+                            Toast.LENGTH_LONG).show();
+                } else if (resultCode == ContactSaveService.AGGREGATION_CANCELLED) {
+                    Toast.makeText(applicationContext, R.string.contacts_linking_cancelled,
+                            Toast.LENGTH_LONG).show();
+                }
+            }
+        };
         final Intent intent = ContactSaveService.createJoinSeveralContactsIntent(
-                context, getSelectedContactIdsArray());
+                context, getSelectedContactIdsArray(), mJoinProgress);
         context.startService(intent);
 
         mActionBarAdapter.setSelectionMode(false);
@@ -1224,6 +1283,10 @@ public class DefaultContactBrowseListFragment extends ContactBrowseListFragment
         if (mActionBarAdapter != null) {
             mActionBarAdapter.setListener(null);
         }
+        if (mJoinProgress != null) {
+            mJoinProgress.detach();
+            mJoinProgress = null;
+        }
         super.onDestroy();
     }
 
@@ -44,15 +44,65 @@ public class DefaultContactListAdapter extends ContactListAdapter {
     public static final char SNIPPET_START_MATCH = '[';
     public static final char SNIPPET_END_MATCH = ']';
 
+    /** The number of contacts the browse list loads before the others, a few screenfuls. */
+    private static final int FIRST_PAGE_SIZE = 50;
+
+    private final ContactPrefixIndex mPrefixIndex;
 
     public DefaultContactListAdapter(Context context) {
         super(context);
+        mPrefixIndex = new ContactPrefixIndex(context);
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mPrefixIndex.start();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mPrefixIndex.stop();
+    }
+
+    /**
+     * Returns whether the directory's list has all the contacts a search of the default
+     * directory can return, so that the local index can be built from it.
+     */
+    private boolean isCompleteContactList(long directoryId) {
+        if (isSearchMode() || directoryId != Directory.DEFAULT) {
+            return false;
+        }
+        final ContactListFilter filter = getFilter();
+        return filter == null || filter.filterType == ContactListFilter.FILTER_TYPE_ALL_ACCOUNTS;
+    }
+
+    @Override
+    public Cursor getLocalSearchResults() {
+        if (!isSearchMode() || isGroupMembersFilter()) {
+            return null;
+        }
+        final String query = getQueryString() == null ? "" : getQueryString().trim();
+        if (TextUtils.isEmpty(query)) {
+            return null;
+        }
+        return mPrefixIndex.query(query, getProjection(true), getContactNameDisplayOrder(),
+                getSortOrder());
     }
 
     @Override
     public void configureLoader(CursorLoader loader, long directoryId) {
         if (loader instanceof FavoritesAndContactsLoader) {
             ((FavoritesAndContactsLoader) loader).setLoadFavorites(shouldIncludeFavorites());
+            // Search results are replaced as the query changes, only the browse list is worth
+            // updating incrementally.
+            ((FavoritesAndContactsLoader) loader).setChangeTrackingEnabled(!isSearchMode());
+            ((FavoritesAndContactsLoader) loader).setFirstPageSize(
+                    isSearchMode() ? 0 : FIRST_PAGE_SIZE);
+            ((FavoritesAndContactsLoader) loader).setPrefixIndex(
+                    isCompleteContactList(directoryId) ? mPrefixIndex : null,
+                    getContactNameDisplayOrder(), getSortOrder());
         }
 
         String sortOrder = null;
@@ -242,6 +292,16 @@ public class DefaultContactListAdapter extends ContactListAdapter {
 
         bindSectionHeaderAndDivider(view, position, cursor);
 
+        if (isPlaceholder(cursor)) {
+            // Not loaded yet, keep the row the size of a contact.
+            view.removePhotoView(true, true);
+            view.hideDisplayName();
+            view.setPresence(null);
+            view.setStatus(null);
+            view.setSnippet(null);
+            return;
+        }
+
         if (isQuickContactEnabled()) {
             bindQuickContact(view, partition, cursor, ContactQuery.CONTACT_PHOTO_ID,
                     ContactQuery.CONTACT_PHOTO_URI, ContactQuery.CONTACT_ID,
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.SearchSnippets;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recent search results of remote directories, keyed by directory and normalized query.
+ *
+ * <p>Results are served as they are for the same query, which makes backspacing instant. For a
+ * narrower query, the results of the longest cached prefix of the query are filtered locally
+ * the way the provider matches: every word of the query has to be the prefix of a word of the
+ * name, the data or the snippet of the row. Such results may miss rows the directory left out
+ * of the broader query, so callers are expected to refresh them from the directory.</p>
+ *
+ * <p>Entries expire after {@link #TTL_MILLIS}. Not thread-safe.</p>
+ */
+final class DirectoryResultCache {
+    @VisibleForTesting
+    static final long TTL_MILLIS = 2 * 60 * 1000;
+    private static final int MAX_ENTRIES = 32;
+    /** Larger results aren't worth copying. */
+    @VisibleForTesting
+    static final int MAX_ROWS = 200;
+
+    /** The columns matched against the query, if the results have them. */
+    private static final String[] MATCH_COLUMNS = new String[] {
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.DISPLAY_NAME_ALTERNATIVE,
+            Data.DATA1,
+            SearchSnippets.SNIPPET,
+    };
+
+    private static final class Entry {
+        final String[] columns;
+        final List<Object[]> rows;
+        /** The words of the matched columns of each row. */
+        final List<List<String>> rowTokens;
+        final Bundle extras;
+        final long createdMillis;
+
+        Entry(String[] columns, List<Object[]> rows, List<List<String>> rowTokens,
+                Bundle extras, long createdMillis) {
+            this.columns = columns;
+            this.rows = rows;
+            this.rowTokens = rowTokens;
+            this.extras = extras;
+            this.createdMillis = createdMillis;
+        }
+    }
+
+    /**
+     * Cached results. {@link #isExact()} tells whether they are the directory's own results for
+     * the query, or filtered from those of a broader query.
+     */
+    static final class CachedResultCursor extends MatrixCursor {
+        private final Bundle mExtras;
+        private final boolean mExact;
+
+        CachedResultCursor(String[] columns, int initialCapacity, Bundle extras, boolean exact) {
+            super(columns, initialCapacity);
+            mExtras = extras;
+            mExact = exact;
+        }
+
+        public boolean isExact() {
+            return mExact;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    private final long mTtlMillis;
+
+    public DirectoryResultCache() {
+        this(TTL_MILLIS);
+    }
+
+    @VisibleForTesting
+    DirectoryResultCache(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Copies the directory's results for the query. Results served by this cache are not
+     * stored again.
+     */
+    public void put(long directoryId, String query, Cursor cursor) {
+        final String normalized = normalize(query);
+        if (cursor == null || cursor instanceof CachedResultCursor || normalized.isEmpty()
+                || cursor.isClosed() || cursor.getCount() > MAX_ROWS) {
+            return;
+        }
+        final String[] columns = cursor.getColumnNames();
+        final int[] matchColumns = getMatchColumns(columns);
+        final List<Object[]> rows = new ArrayList<>(cursor.getCount());
+        final List<List<String>> rowTokens = new ArrayList<>(cursor.getCount());
+        final int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = getValue(cursor, i);
+            }
+            rows.add(row);
+            rowTokens.add(getTokens(row, matchColumns));
+        }
+        cursor.moveToPosition(position);
+        final Bundle extras = cursor.getExtras();
+        mEntries.put(getKey(directoryId, normalized), new Entry(columns, rows, rowTokens,
+                extras == null ? Bundle.EMPTY : new Bundle(extras),
+                SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Returns the results for the query, exact or filtered from those of a broader query, or
+     * null if none are cached.
+     */
+    public CachedResultCursor get(long directoryId, String query) {
+        final String normalized = normalize(query);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        final Entry exact = getFresh(getKey(directoryId, normalized));
+        if (exact != null) {
+            return toCursor(exact, null);
+        }
+        final List<String> words = ContactPrefixIndex.tokenize(normalized);
+        for (int length = normalized.length() - 1; length > 0; length--) {
+            final Entry broader = getFresh(getKey(directoryId, normalized.substring(0, length)));
+            if (broader != null) {
+                return toCursor(broader, words);
+            }
+        }
+        return null;
+    }
+
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mEntries.size();
+    }
+
+    private Entry getFresh(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.createdMillis >= mTtlMillis) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param words the words every returned row has to match, or null for all rows
+     */
+    private static CachedResultCursor toCursor(Entry entry, List<String> words) {
+        final CachedResultCursor cursor = new CachedResultCursor(entry.columns,
+                entry.rows.size(), entry.extras, words == null);
+        for (int i = 0; i < entry.rows.size(); i++) {
+            if (words == null || matches(entry.rowTokens.get(i), words)) {
+                cursor.addRow(entry.rows.get(i));
+            }
+        }
+        return cursor;
+    }
+
+    private static boolean matches(List<String> tokens, List<String> words) {
+        for (String word : words) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] getMatchColumns(String[] columns) {
+        final int[] indexes = new int[MATCH_COLUMNS.length];
+        int count = 0;
+        for (String column : MATCH_COLUMNS) {
+            final int index = Arrays.asList(columns).indexOf(column);
+            if (index >= 0) {
+                indexes[count++] = index;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    private static List<String> getTokens(Object[] row, int[] matchColumns) {
+        final List<String> tokens = new ArrayList<>();
+        for (int column : matchColumns) {
+            if (!(row[column] instanceof String)) {
+                continue;
+            }
+            final String value = (String) row[column];
+            final List<String> words = ContactPrefixIndex.tokenize(value);
+            tokens.addAll(words);
+            if (ContactPrefixIndex.isPhoneNumberLike(value)) {
+                // Match numbers typed without their separators.
+                tokens.add(TextUtils.join("", words));
+            }
+        }
+        return tokens;
+    }
+
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            default:
+                return null;
+        }
+    }
+
+    @VisibleForTesting
+    static String normalize(String query) {
+        return query == null ? "" : TextUtils.join(" ", ContactPrefixIndex.tokenize(query));
+    }
+
+    private static String getKey(long directoryId, String normalizedQuery) {
+        return directoryId + "/" + normalizedQuery;
+    }
+}
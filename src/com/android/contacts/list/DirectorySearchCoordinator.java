@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Searches remote directories concurrently, each with its own debounce and deadline.
+ *
+ * <p>Every directory is queried on its own worker as soon as its debounce expires, and its
+ * results are handed to the {@link Listener} as they arrive, so that a slow directory doesn't
+ * hold up the others. A directory that hasn't answered by its deadline is cancelled and
+ * reported as timed out.</p>
+ *
+ * <p>The debounce follows the typing speed: a pause longer than the usual gap between keystrokes
+ * means the user is likely done. Slow directories are waited for a little longer, as every
+ * superseded query costs them more. Deadlines follow the latency each directory has shown so
+ * far. All methods must be called on the thread of the handler, which is also the one the
+ * listener is called on.</p>
+ */
+final class DirectorySearchCoordinator {
+    private static final String TAG = "DirectorySearch";
+
+    /** Debounce used until the typing speed is known. */
+    @VisibleForTesting
+    static final long DEFAULT_DEBOUNCE_MILLIS = 300;
+    @VisibleForTesting
+    static final long MIN_DEBOUNCE_MILLIS = 100;
+    @VisibleForTesting
+    static final long MAX_DEBOUNCE_MILLIS = 600;
+    /** How much longer than the usual gap between keystrokes to wait. */
+    private static final float TYPING_GAP_FACTOR = 1.5f;
+    /** Gaps longer than this are pauses, not typing. */
+    private static final long MAX_TYPING_GAP_MILLIS = 1000;
+    /** Share of a directory's latency added to its debounce, and the most that is added. */
+    private static final float LATENCY_DEBOUNCE_FACTOR = 0.25f;
+    private static final long MAX_LATENCY_DEBOUNCE_MILLIS = 300;
+
+    @VisibleForTesting
+    static final long MIN_DEADLINE_MILLIS = 2000;
+    @VisibleForTesting
+    static final long MAX_DEADLINE_MILLIS = 5000;
+    /** How many times its usual latency a directory is given to answer. */
+    private static final float LATENCY_DEADLINE_FACTOR = 3f;
+
+    /** Weight of the latest sample in the smoothed typing gap and latencies. */
+    private static final float SMOOTHING = 0.3f;
+
+    /**
+     * Queries a directory for the current search.
+     */
+    public interface DirectoryQuery {
+        /**
+         * Called on a worker thread. Returns the results or null, or throws
+         * {@link OperationCanceledException} if cancelled.
+         */
+        Cursor query(CancellationSignal signal);
+    }
+
+    /**
+     * Receives the results, on the handler's thread.
+     */
+    public interface Listener {
+        /** Takes ownership of the cursor, which may be null. */
+        void onDirectoryLoaded(long directoryId, Cursor cursor);
+
+        void onDirectoryTimedOut(long directoryId);
+    }
+
+    /** A search of one directory for one generation of the query. */
+    private final class Search implements Runnable {
+        final long directoryId;
+        final DirectoryQuery query;
+        final int generation;
+        final CancellationSignal signal = new CancellationSignal();
+        long startMillis;
+
+        /** Fires at the deadline. */
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (mSearches.get(directoryId) != Search.this) {
+                    return;
+                }
+                mSearches.remove(directoryId);
+                signal.cancel();
+                recordLatency(directoryId, SystemClock.uptimeMillis() - startMillis);
+                mListener.onDirectoryTimedOut(directoryId);
+            }
+        };
+
+        Search(long directoryId, DirectoryQuery query, int generation) {
+            this.directoryId = directoryId;
+            this.query = query;
+            this.generation = generation;
+        }
+
+        /** Runs on the handler's thread once the debounce expires. */
+        @Override
+        public void run() {
+            if (mSearches.get(directoryId) != this) {
+                return;
+            }
+            startMillis = SystemClock.uptimeMillis();
+            mHandler.postDelayed(timeout, getDeadlineMillis(directoryId));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queryInBackground();
+                }
+            });
+        }
+
+        private void queryInBackground() {
+            Cursor cursor = null;
+            try {
+                if (!signal.isCanceled()) {
+                    cursor = query.query(signal);
+                    if (cursor != null) {
+                        // Fill the window off the main thread.
+                        cursor.getCount();
+                    }
+                }
+            } catch (OperationCanceledException e) {
+                // Superseded or timed out.
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Directory search failed: " + directoryId, e);
+            }
+            final Cursor result = cursor;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(result);
+                }
+            });
+        }
+
+        private void deliver(Cursor cursor) {
+            if (mSearches.get(directoryId) != this || generation != mGeneration) {
+                // Superseded or timed out in the meantime.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            mSearches.remove(directoryId);
+            mHandler.removeCallbacks(timeout);
+            recordLatency(directoryId, SystemClock.uptimeMillis() - startMillis);
+            mListener.onDirectoryLoaded(directoryId, cursor);
+        }
+
+        void cancel() {
+            mHandler.removeCallbacks(this);
+            mHandler.removeCallbacks(timeout);
+            signal.cancel();
+        }
+    }
+
+    private final Listener mListener;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+    private final long mMinDeadlineMillis;
+    private final long mMaxDeadlineMillis;
+
+    private final Map<Long, Search> mSearches = new HashMap<>();
+    private final Map<Long, Float> mLatencies = new HashMap<>();
+    private int mGeneration;
+    private long mLastQueryChangeMillis = -1;
+    /** Smoothed gap between keystrokes, or -1 if unknown. */
+    private float mTypingGapMillis = -1;
+
+    public DirectorySearchCoordinator(Listener listener, Executor executor, Handler handler) {
+        this(listener, executor, handler, MIN_DEADLINE_MILLIS, MAX_DEADLINE_MILLIS);
+    }
+
+    @VisibleForTesting
+    DirectorySearchCoordinator(Listener listener, Executor executor, Handler handler,
+            long minDeadlineMillis, long maxDeadlineMillis) {
+        mListener = listener;
+        mExecutor = executor;
+        mHandler = handler;
+        mMinDeadlineMillis = minDeadlineMillis;
+        mMaxDeadlineMillis = maxDeadlineMillis;
+    }
+
+    /**
+     * Called when the query changes. Cancels the searches of the previous query and learns the
+     * typing speed.
+     */
+    public void onQueryChanged() {
+        cancel();
+        final long now = SystemClock.uptimeMillis();
+        if (mLastQueryChangeMillis >= 0) {
+            final long gap = now - mLastQueryChangeMillis;
+            if (gap <= MAX_TYPING_GAP_MILLIS) {
+                mTypingGapMillis = mTypingGapMillis < 0 ? gap
+                        : SMOOTHING * gap + (1 - SMOOTHING) * mTypingGapMillis;
+            }
+        }
+        mLastQueryChangeMillis = now;
+    }
+
+    /**
+     * Searches the directory once its debounce expires, or right away. Replaces the search of
+     * the directory that may be pending or running.
+     */
+    public void search(long directoryId, DirectoryQuery query, boolean debounce) {
+        final Search previous = mSearches.get(directoryId);
+        if (previous != null) {
+            previous.cancel();
+        }
+        final Search search = new Search(directoryId, query, mGeneration);
+        mSearches.put(directoryId, search);
+        if (debounce) {
+            mHandler.postDelayed(search, getDebounceMillis(directoryId));
+        } else {
+            search.run();
+        }
+    }
+
+    /**
+     * Cancels all pending and running searches; their results are dropped.
+     */
+    public void cancel() {
+        mGeneration++;
+        for (Search search : mSearches.values()) {
+            search.cancel();
+        }
+        mSearches.clear();
+    }
+
+    public boolean isSearching(long directoryId) {
+        return mSearches.containsKey(directoryId);
+    }
+
+    public long getDebounceMillis(long directoryId) {
+        return computeDebounceMillis(mTypingGapMillis, getLatencyMillis(directoryId));
+    }
+
+    public long getDeadlineMillis(long directoryId) {
+        return computeDeadlineMillis(getLatencyMillis(directoryId), mMinDeadlineMillis,
+                mMaxDeadlineMillis);
+    }
+
+    private float getLatencyMillis(long directoryId) {
+        final Float latency = mLatencies.get(directoryId);
+        return latency == null ? -1 : latency;
+    }
+
+    private void recordLatency(long directoryId, long millis) {
+        final float latency = getLatencyMillis(directoryId);
+        mLatencies.put(directoryId,
+                latency < 0 ? millis : SMOOTHING * millis + (1 - SMOOTHING) * latency);
+    }
+
+    /**
+     * @param typingGapMillis the usual gap between keystrokes, or -1 if unknown
+     * @param latencyMillis the usual latency of the directory, or -1 if unknown
+     */
+    @VisibleForTesting
+    static long computeDebounceMillis(float typingGapMillis, float latencyMillis) {
+        long debounce = typingGapMillis < 0 ? DEFAULT_DEBOUNCE_MILLIS
+                : Math.max(MIN_DEBOUNCE_MILLIS, Math.min(MAX_DEBOUNCE_MILLIS,
+                        (long) (typingGapMillis * TYPING_GAP_FACTOR)));
+        if (latencyMillis > 0) {
+            debounce += Math.min(MAX_LATENCY_DEBOUNCE_MILLIS,
+                    (long) (latencyMillis * LATENCY_DEBOUNCE_FACTOR));
+        }
+        return debounce;
+    }
+
+    /**
+     * @param latencyMillis the usual latency of the directory, or -1 if unknown
+     */
+    @VisibleForTesting
+    static long computeDeadlineMillis(float latencyMillis, long minMillis, long maxMillis) {
+        if (latencyMillis < 0) {
+            return maxMillis;
+        }
+        return Math.max(minMillis,
+                Math.min(maxMillis, (long) (latencyMillis * LATENCY_DEADLINE_FACTOR)));
+    }
+}
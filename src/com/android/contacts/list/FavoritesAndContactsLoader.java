@@ -16,27 +16,74 @@
 package com.android.contacts.list;
 
 import android.content.Context;
-import android.content.CursorLoader;
 import android.database.Cursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteException;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.OperationCanceledException;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
+import android.util.Log;
 
+import com.android.contacts.util.concurrent.ContactsExecutors;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * A loader for use in the default contact list, which will also query for favorite contacts
  * if configured to do so.
  */
-public class FavoritesAndContactsLoader extends CursorLoader {
+public class FavoritesAndContactsLoader extends CancellableCursorLoader {
+    private static final String TAG = "FavoritesAndContacts";
+
+    /** How long to gather change notifications before reloading once for all of them. */
+    @VisibleForTesting
+    static final long CHANGE_COALESCE_MILLIS = 500;
+
+    /** The result of a load, with its difference from the previously delivered result. */
+    private static class ContactsCursor extends MergeCursor {
+        private final Cursor mContactsCursor;
+        private ContactListDiff mDiff;
+        /** Whether the contacts are a {@link FirstPageCursor}. */
+        private boolean mFirstPage;
+
+        ContactsCursor(Cursor[] cursors, Cursor contactsCursor) {
+            super(cursors);
+            mContactsCursor = contactsCursor;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            // Need to get the extras from the contacts cursor.
+            return mContactsCursor == null ? new Bundle() : mContactsCursor.getExtras();
+        }
+    }
 
     private boolean mLoadFavorites;
 
     private String[] mProjection;
 
+    private boolean mChangeTrackingEnabled;
+    /** The rows of the delivered result, which the next result is compared with. */
+    private volatile ContactListDiff.Snapshot mSnapshot;
+    private Cursor mDeliveredCursor;
+
+    /** The number of contacts to load before the others, or 0 to load them all at once. */
+    private int mFirstPageSize;
+    /** Whether the first page was delivered, so that the next load is of all contacts. */
+    private volatile boolean mFirstPageDelivered;
+
+    /** Updated from each full load of the contacts, or null. */
+    private ContactPrefixIndex mPrefixIndex;
+    private int mPrefixIndexDisplayOrder;
+    private int mPrefixIndexSortOrder;
 
     public FavoritesAndContactsLoader(Context context) {
         super(context);
@@ -52,21 +99,193 @@ public class FavoritesAndContactsLoader extends CursorLoader {
         mProjection = projection;
     }
 
+    /**
+     * Whether to compare each result with the previous one. Reloads caused by changes to the
+     * contacts are then coalesced over {@link #CHANGE_COALESCE_MILLIS}, and a result that shows
+     * the same rows as the delivered one isn't delivered at all. Must be called on the main
+     * thread.
+     */
+    public void setChangeTrackingEnabled(boolean enabled) {
+        mChangeTrackingEnabled = enabled;
+        if (!enabled) {
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Loads the first {@code rows} contacts and delivers them, padded to the size of the full
+     * list, before loading all of them. This gets the first screen, the section headers and the
+     * fast scroller up without waiting for the provider to go through the whole list. Must be
+     * called before the loader starts.
+     *
+     * @param rows the size of the first page, or 0 to load all contacts at once
+     */
+    public void setFirstPageSize(int rows) {
+        mFirstPageSize = rows;
+    }
+
+    /**
+     * Updates the index from each full load of the contacts, on the loader thread, so that the
+     * main thread doesn't go through the whole list. The loader must list all contacts a search
+     * of the default directory can return. Must be called before the loader starts.
+     *
+     * @param index the index, or null to stop updating it
+     */
+    void setPrefixIndex(ContactPrefixIndex index, int displayOrder, int sortOrder) {
+        mPrefixIndex = index;
+        mPrefixIndexDisplayOrder = displayOrder;
+        mPrefixIndexSortOrder = sortOrder;
+    }
+
+    /**
+     * Returns how a result of this loader differs from the one delivered before it, or null
+     * if change tracking is disabled.
+     */
+    public static ContactListDiff getDiff(Cursor cursor) {
+        return cursor instanceof ContactsCursor ? ((ContactsCursor) cursor).mDiff : null;
+    }
+
+    /**
+     * Returns whether a result of this loader is a first page, padded with placeholder rows
+     * whose values are all null.
+     */
+    public static boolean isFirstPage(Cursor cursor) {
+        return cursor instanceof ContactsCursor && ((ContactsCursor) cursor).mFirstPage;
+    }
+
     @Override
     public Cursor loadInBackground() {
         List<Cursor> cursors = Lists.newArrayList();
-        if (mLoadFavorites) {
-            cursors.add(loadFavoritesContacts());
+        // Query the favorites on the shared pool while the contacts are queried here. Both
+        // queries share the cancellation signal of the load.
+        final FutureTask<Cursor> favoritesTask = mLoadFavorites
+                ? new FutureTask<>(new Callable<Cursor>() {
+                    @Override
+                    public Cursor call() {
+                        final Cursor cursor = loadFavoritesContacts();
+                        if (cursor != null) {
+                            // Fill the window here rather than on the main thread.
+                            cursor.getCount();
+                        }
+                        return cursor;
+                    }
+                })
+                : null;
+        if (favoritesTask != null) {
+            ContactsExecutors.getDefaultThreadPoolExecutor().execute(favoritesTask);
+        }
+        final Cursor contactsCursor;
+        try {
+            contactsCursor = mFirstPageSize > 0 && !mFirstPageDelivered
+                    ? loadFirstPage() : loadContacts();
+        } catch (OperationCanceledException e) {
+            try {
+                closeQuietly(getFavorites(favoritesTask));
+            } catch (RuntimeException ignored) {
+                // Most likely cancelled along with the contacts.
+            }
+            throw e;
+        }
+        if (favoritesTask != null) {
+            try {
+                cursors.add(getFavorites(favoritesTask));
+            } catch (RuntimeException e) {
+                closeQuietly(contactsCursor);
+                throw e;
+            }
         }
-        final Cursor contactsCursor = loadContacts();
         cursors.add(contactsCursor);
-        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) {
-            @Override
-            public Bundle getExtras() {
-                // Need to get the extras from the contacts cursor.
-                return contactsCursor == null ? new Bundle() : contactsCursor.getExtras();
+        final ContactsCursor cursor =
+                new ContactsCursor(cursors.toArray(new Cursor[cursors.size()]), contactsCursor);
+        cursor.mFirstPage = contactsCursor instanceof FirstPageCursor;
+        if (mFirstPageSize > 0 && !cursor.mFirstPage && contactsCursor != null
+                && hasIndex(getUri())) {
+            // Lets the next load of this list start with its index.
+            SectionIndexCache.getInstance(getContext()).put(getSectionIndexKey(),
+                    contactsCursor.getExtras());
+        }
+        if (mPrefixIndex != null && !cursor.mFirstPage && contactsCursor != null) {
+            mPrefixIndex.updateFromContactList(cursor, new ContactPrefixIndex.ListQuery(
+                    SectionIndexCache.withoutIndex(getUri()), getSelection(),
+                    getSelectionArgs(), getSortOrder()),
+                    mPrefixIndexDisplayOrder, mPrefixIndexSortOrder);
+        }
+        if (mChangeTrackingEnabled && contactsCursor != null) {
+            final ContactListDiff.Snapshot snapshot = ContactListDiff.Snapshot.of(cursor);
+            if (snapshot != null) {
+                cursor.mDiff = ContactListDiff.compute(mSnapshot, snapshot);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (cursor != null && cursor == mDeliveredCursor) {
+            // Delivered again as the loader restarts.
+            super.deliverResult(cursor);
+            return;
+        }
+        final ContactListDiff diff = getDiff(cursor);
+        if (diff != null && isStarted()) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Contact list update, rows changed: " + diff.getChangedRowCount());
+            }
+            ListQueryStats.recordUpdate(diff.getChangedRowCount());
+            if (diff.isUnchanged() && mDeliveredCursor != null && !mDeliveredCursor.isClosed()) {
+                // The list already shows exactly this, keep it as it is.
+                cursor.close();
+                return;
+            }
+            mSnapshot = diff.getSnapshot();
+        }
+        mDeliveredCursor = cursor;
+        super.deliverResult(cursor);
+        if (isFirstPage(cursor)) {
+            // Load all contacts right away, or as soon as the loader is started again.
+            mFirstPageDelivered = true;
+            setUpdateThrottle(0);
+            onContentChanged();
+        } else {
+            setUpdateThrottle(mChangeTrackingEnabled ? CHANGE_COALESCE_MILLIS : 0);
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        mDeliveredCursor = null;
+        mSnapshot = null;
+    }
+
+    /**
+     * Waits for the favorites, or queries them on this thread if the pool didn't get to it
+     * yet. Returns null if there is no task or the query failed with a checked exception.
+     */
+    private static Cursor getFavorites(FutureTask<Cursor> task) {
+        if (task == null) {
+            return null;
+        }
+        // Does nothing if the task already started.
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(false);
+            throw new OperationCanceledException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-        };
+            Log.w(TAG, "Failed to load favorites", e.getCause());
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
     }
 
     private Cursor loadContacts() {
@@ -81,6 +300,56 @@ public class FavoritesAndContactsLoader extends CursorLoader {
         return null;
     }
 
+    private static boolean hasIndex(Uri uri) {
+        return uri.getBooleanQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, false);
+    }
+
+    private String getSectionIndexKey() {
+        return SectionIndexCache.getKey(getUri(), getSelection(), getSelectionArgs(),
+                getSortOrder());
+    }
+
+    /**
+     * Loads the first page of contacts, padded to the size of the full list. Loads all contacts
+     * if the size of the list is unknown.
+     *
+     * <p>If the index of the list is cached from an earlier load, the page is queried without
+     * one, which spares the provider going through all contacts to count them. The full load
+     * that follows corrects the index if it changed in the meantime.</p>
+     */
+    private Cursor loadFirstPage() {
+        Uri uri = getUri();
+        final Bundle cachedIndex = hasIndex(uri)
+                ? SectionIndexCache.getInstance(getContext()).get(getSectionIndexKey()) : null;
+        final boolean useCachedIndex = cachedIndex != null
+                && FirstPageCursor.getIndexCount(cachedIndex) > mFirstPageSize;
+        if (useCachedIndex) {
+            uri = SectionIndexCache.withoutIndex(uri);
+        }
+        final Cursor page;
+        try {
+            uri = uri.buildUpon().appendQueryParameter(
+                    ContactsContract.LIMIT_PARAM_KEY, String.valueOf(mFirstPageSize)).build();
+            page = query(uri, getProjection(), getSelection(), getSelectionArgs(),
+                    getSortOrder());
+        } catch (NullPointerException | SQLiteException | SecurityException e) {
+            // Ignore NPEs, SQLiteExceptions and SecurityExceptions thrown by providers
+            return null;
+        }
+        if (page != null && useCachedIndex) {
+            return FirstPageCursor.wrap(page, cachedIndex, mFirstPageSize);
+        }
+        if (page == null || page.getCount() < mFirstPageSize) {
+            return page;
+        }
+        final Cursor padded = FirstPageCursor.wrap(page);
+        if (padded == null) {
+            page.close();
+            return loadContacts();
+        }
+        return padded;
+    }
+
     private Cursor loadFavoritesContacts() {
         final StringBuilder selection = new StringBuilder();
         selection.append(Contacts.STARRED + "=?");
@@ -89,8 +358,7 @@ public class FavoritesAndContactsLoader extends CursorLoader {
         if (filter != null && filter.filterType == ContactListFilter.FILTER_TYPE_CUSTOM) {
             selection.append(" AND ").append(Contacts.IN_VISIBLE_GROUP + "=1");
         }
-        return getContext().getContentResolver().query(
-                Contacts.CONTENT_URI, mProjection, selection.toString(), new String[]{"1"},
+        return query(Contacts.CONTENT_URI, mProjection, selection.toString(), new String[]{"1"},
                 getSortOrder());
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+
+/**
+ * The first page of a contact list query, padded with empty rows to the size of the full
+ * result. The size comes from the address book index of the page, which counts all rows, or
+ * from the index of an earlier load of the same list.
+ *
+ * <p>This lets the list, its section headers and its fast scroller show the whole result
+ * before the rest of the rows are loaded. All values of the padding rows are null, which no
+ * real row has for its id.</p>
+ */
+final class FirstPageCursor extends AbstractCursor {
+    private final Cursor mPage;
+    private final int mPageCount;
+    private final int mCount;
+    private final Bundle mExtras;
+
+    private FirstPageCursor(Cursor page, int count, Bundle extras) {
+        mPage = page;
+        mPageCount = page.getCount();
+        mCount = count;
+        mExtras = extras;
+    }
+
+    /**
+     * Pads the page to the size of the full result. Returns the page itself if it already is
+     * the full result, or null if the size of the full result is unknown.
+     */
+    public static Cursor wrap(Cursor page) {
+        final int count = getIndexCount(page.getExtras());
+        if (count < 0) {
+            return null;
+        }
+        return count > page.getCount() ? new FirstPageCursor(page, count, page.getExtras()) : page;
+    }
+
+    /**
+     * Pads a page that was queried without an address book index to the size of the given
+     * index, e.g. the one of the previous load, which then is the extras of the cursor. A page
+     * shorter than {@code pageSize} is the full result and isn't padded.
+     */
+    public static Cursor wrap(Cursor page, Bundle index, int pageSize) {
+        final int pageCount = page.getCount();
+        final int count = pageCount < pageSize
+                ? pageCount : Math.max(pageCount, getIndexCount(index));
+        return new FirstPageCursor(page, count, index);
+    }
+
+    /**
+     * Returns the number of rows that the address book index counts, or -1 if there is none.
+     */
+    static int getIndexCount(Bundle extras) {
+        final int[] counts = extras == null
+                ? null : extras.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+        if (counts == null) {
+            return -1;
+        }
+        int count = 0;
+        for (int sectionCount : counts) {
+            count += sectionCount;
+        }
+        return count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPage.getColumnNames();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (newPosition < mPageCount) {
+            mPage.moveToPosition(newPosition);
+        }
+        return true;
+    }
+
+    private boolean isLoaded() {
+        return mPos < mPageCount;
+    }
+
+    @Override
+    public String getString(int column) {
+        return isLoaded() ? mPage.getString(column) : null;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return isLoaded() ? mPage.getShort(column) : 0;
+    }
+
+    @Override
+    public int getInt(int column) {
+        return isLoaded() ? mPage.getInt(column) : 0;
+    }
+
+    @Override
+    public long getLong(int column) {
+        return isLoaded() ? mPage.getLong(column) : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return isLoaded() ? mPage.getFloat(column) : 0;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return isLoaded() ? mPage.getDouble(column) : 0;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return isLoaded() ? mPage.getBlob(column) : null;
+    }
+
+    @Override
+    public int getType(int column) {
+        return isLoaded() ? mPage.getType(column) : FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return !isLoaded() || mPage.isNull(column);
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return mExtras;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mPage.registerContentObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        mPage.unregisterContentObserver(observer);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mPage.registerDataSetObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mPage.unregisterDataSetObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mPage.close();
+    }
+}
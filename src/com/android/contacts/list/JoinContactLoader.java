@@ -16,7 +16,6 @@
 package com.android.contacts.list;
 
 import android.content.Context;
-import android.content.CursorLoader;
 import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
@@ -28,7 +27,7 @@ import android.net.Uri;
  * This loader also loads the "suggestion" cursor, which can be accessed with:
  * {@code ((JoinContactLoaderResult) result).suggestionCursor }
  */
-public class JoinContactLoader extends CursorLoader {
+public class JoinContactLoader extends CancellableCursorLoader {
 
     private String[] mProjection;
     private Uri mSuggestionUri;
@@ -81,8 +80,7 @@ public class JoinContactLoader extends CursorLoader {
     public Cursor loadInBackground() {
         // First execute the suggestions query, then call super.loadInBackground
         // to load the entire list
-        final Cursor suggestionsCursor = getContext().getContentResolver()
-                .query(mSuggestionUri, mProjection, null, null, null);
+        final Cursor suggestionsCursor = query(mSuggestionUri, mProjection, null, null, null);
         if (suggestionsCursor == null) {
             return null;
         }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the contact list queries that were delivered to the list and the ones that were
+ * superseded by a newer query, such as the previous prefix while the user is typing. Also
+ * counts the rows that changed in the updates of change-tracking loaders.
+ */
+public final class ListQueryStats {
+    private static final AtomicLong sDelivered = new AtomicLong();
+    /** Superseded queries that the provider stopped before they completed. */
+    private static final AtomicLong sCancelled = new AtomicLong();
+    /** Superseded queries that ran to completion anyway and were closed unread. */
+    private static final AtomicLong sDiscarded = new AtomicLong();
+    /** Reloads of change-tracking loaders, and the ones that changed nothing the list shows. */
+    private static final AtomicLong sUpdates = new AtomicLong();
+    private static final AtomicLong sUnchangedUpdates = new AtomicLong();
+    private static final AtomicLong sChangedRows = new AtomicLong();
+
+    private ListQueryStats() {
+    }
+
+    static void recordDelivered() {
+        sDelivered.incrementAndGet();
+    }
+
+    /**
+     * @param completed whether the query ran to completion before it was cancelled
+     */
+    static void recordWasted(boolean completed) {
+        (completed ? sDiscarded : sCancelled).incrementAndGet();
+    }
+
+    static void recordUpdate(int changedRows) {
+        sUpdates.incrementAndGet();
+        if (changedRows == 0) {
+            sUnchangedUpdates.incrementAndGet();
+        }
+        sChangedRows.addAndGet(changedRows);
+    }
+
+    public static long getDeliveredCount() {
+        return sDelivered.get();
+    }
+
+    public static long getWastedCount() {
+        return sCancelled.get() + sDiscarded.get();
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "ListQueryStats: delivered=" + sDelivered.get()
+                + " cancelled=" + sCancelled.get() + " discarded=" + sDiscarded.get()
+                + " updates=" + sUpdates.get() + " unchangedUpdates=" + sUnchangedUpdates.get()
+                + " changedRows=" + sChangedRows.get());
+    }
+}
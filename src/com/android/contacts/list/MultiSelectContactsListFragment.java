@@ -195,7 +195,9 @@ public abstract class MultiSelectContactsListFragment<T extends MultiSelectEntry
         final Cursor cursor = (Cursor) getAdapter().getItem(position);
         if (cursor != null) {
             if (cursor.getColumnCount() > contactIdColumnIndex) {
-                return cursor.getLong(contactIdColumnIndex);
+                // Rows that aren't loaded yet have no id.
+                return cursor.isNull(contactIdColumnIndex)
+                        ? -1 : cursor.getLong(contactIdColumnIndex);
             }
         }
 
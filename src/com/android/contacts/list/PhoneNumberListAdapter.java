@@ -530,6 +530,11 @@ public class PhoneNumberListAdapter extends ContactEntryListAdapter {
                 !isExtendedDirectory(directoryId) && userType == ContactsUtils.USER_TYPE_WORK);
     }
 
+    @Override
+    protected long getPhotoId(Cursor cursor) {
+        return cursor.isNull(PhoneQuery.PHOTO_ID) ? 0 : cursor.getLong(PhoneQuery.PHOTO_ID);
+    }
+
     protected void bindPhoto(final ContactListItemView view, int partitionIndex, Cursor cursor) {
         if (!isPhotoSupported(partitionIndex)) {
             view.removePhotoView();
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.os.SystemClock;
+import android.widget.AbsListView.OnScrollListener;
+
+import com.android.contacts.ContactPhotoManager;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Follows the scrolling of a contact list and tells the photo manager which thumbnails are
+ * about to come on screen, so that they are already decoded when they do.
+ *
+ * <p>The prefetch window starts right after the visible items in the direction of the scroll
+ * and covers the items that will come on screen within {@link #LOOKAHEAD_MILLIS} at the current
+ * speed, but at least a screenful. The window is dropped when the list comes to rest.</p>
+ */
+final class PhotoPrefetcher {
+    /** How far ahead of the scroll to prefetch. */
+    @VisibleForTesting
+    static final int LOOKAHEAD_MILLIS = 500;
+
+    /** The largest number of items to prefetch. */
+    @VisibleForTesting
+    static final int MAX_PREFETCH_ITEMS = 50;
+
+    /** Weight of the latest sample in the smoothed scroll speed. */
+    private static final float SPEED_SMOOTHING = 0.5f;
+
+    private final ContactPhotoManager mPhotoManager;
+
+    private boolean mScrolling;
+    private int mLastFirstVisibleItem = -1;
+    private long mLastScrollTime;
+    /** Smoothed scroll speed in items per second, negative when scrolling up. */
+    private float mItemsPerSecond;
+    private boolean mWindowSet;
+
+    public PhotoPrefetcher(ContactPhotoManager photoManager) {
+        mPhotoManager = photoManager;
+    }
+
+    /**
+     * @param firstVisibleItem the adapter position of the first visible item, i.e. not counting
+     * the list view's header views
+     */
+    public void onScroll(ContactEntryListAdapter adapter, int firstVisibleItem,
+            int visibleItemCount) {
+        onScroll(adapter, firstVisibleItem, visibleItemCount, SystemClock.uptimeMillis());
+    }
+
+    @VisibleForTesting
+    void onScroll(ContactEntryListAdapter adapter, int firstVisibleItem, int visibleItemCount,
+            long now) {
+        // onScroll is also called on every layout, so only act when the list actually moves.
+        if (!mScrolling || firstVisibleItem == mLastFirstVisibleItem) {
+            return;
+        }
+        if (mLastFirstVisibleItem >= 0 && now > mLastScrollTime) {
+            final float itemsPerSecond =
+                    (firstVisibleItem - mLastFirstVisibleItem) * 1000f / (now - mLastScrollTime);
+            // Start over when the direction changes, the old speed says nothing about the new one.
+            mItemsPerSecond = Math.signum(itemsPerSecond) != Math.signum(mItemsPerSecond)
+                    ? itemsPerSecond
+                    : SPEED_SMOOTHING * itemsPerSecond + (1 - SPEED_SMOOTHING) * mItemsPerSecond;
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+        mLastScrollTime = now;
+        if (mItemsPerSecond == 0) {
+            return;
+        }
+
+        final boolean forward = mItemsPerSecond > 0;
+        final int count = getWindowSize(mItemsPerSecond, visibleItemCount);
+        final int start = forward ? firstVisibleItem + visibleItemCount : firstVisibleItem - 1;
+        mPhotoManager.prefetchThumbnails(adapter.getPhotoIdsForPrefetch(start, count, forward));
+        mWindowSet = true;
+    }
+
+    public void onScrollStateChanged(int scrollState) {
+        mScrolling = scrollState != OnScrollListener.SCROLL_STATE_IDLE;
+        if (!mScrolling) {
+            reset();
+        }
+    }
+
+    /**
+     * Forgets the scroll speed and drops the prefetch window.
+     */
+    private void reset() {
+        mLastFirstVisibleItem = -1;
+        mItemsPerSecond = 0;
+        if (mWindowSet) {
+            mPhotoManager.prefetchThumbnails(new long[0]);
+            mWindowSet = false;
+        }
+    }
+
+    /**
+     * Returns the number of items that come on screen within {@link #LOOKAHEAD_MILLIS}, but at
+     * least a screenful and at most {@link #MAX_PREFETCH_ITEMS}.
+     */
+    @VisibleForTesting
+    static int getWindowSize(float itemsPerSecond, int visibleItemCount) {
+        final int lookahead = (int) Math.ceil(Math.abs(itemsPerSecond) * LOOKAHEAD_MILLIS / 1000);
+        return Math.min(MAX_PREFETCH_ITEMS, Math.max(visibleItemCount, lookahead));
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.graphics.Typeface;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.TextUtils.TruncateAt;
+import android.text.style.StyleSpan;
+import android.util.LruCache;
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.android.contacts.format.FormatUtils;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Measures the names of the rows about to come on screen on a background executor, so that
+ * binding a {@link ContactListItemView} only has to hand the measured text to its name view.
+ *
+ * <p>Results are keyed by the text, the highlighted prefix, whether the name is marked for
+ * {@link TruncateAt#MARQUEE}, and the text appearance of the view, as given by its
+ * {@link PrecomputedTextCompat.Params}. The measurement doesn't depend on the width the view is
+ * laid out at. Prefetching uses the appearance of the last view that asked for a result. Looking
+ * a result up allocates nothing. Thread-safe.</p>
+ */
+final class RowTextPrecomputer {
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 200;
+
+    /** A cache key. Keys in the cache hold a String, the lookup key is reused for any text. */
+    private static final class Key {
+        CharSequence text;
+        String upperCasePrefix;
+        boolean marquee;
+        PrecomputedTextCompat.Params params;
+        private int mHash;
+
+        Key() {
+        }
+
+        Key(String text, String upperCasePrefix, boolean marquee,
+                PrecomputedTextCompat.Params params) {
+            set(text, upperCasePrefix, marquee, params, params.hashCode());
+        }
+
+        /**
+         * @param paramsHash the hash code of the params, which the caller may have cached since
+         *         computing it allocates
+         */
+        void set(CharSequence text, String upperCasePrefix, boolean marquee,
+                PrecomputedTextCompat.Params params, int paramsHash) {
+            this.text = text;
+            this.upperCasePrefix = upperCasePrefix;
+            this.marquee = marquee;
+            this.params = params;
+            // The same as String.hashCode(), without turning the text into a String.
+            int hash = 0;
+            for (int i = 0; i < text.length(); i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            hash = 31 * hash + (upperCasePrefix == null ? 0 : upperCasePrefix.hashCode());
+            hash = 31 * hash + (marquee ? 1 : 0);
+            mHash = 31 * hash + paramsHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHash == other.mHash
+                    && marquee == other.marquee
+                    && TextUtils.equals(text, other.text)
+                    && TextUtils.equals(upperCasePrefix, other.upperCasePrefix)
+                    && params.equals(other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final LruCache<Key, PrecomputedTextCompat> mCache = new LruCache<>(MAX_ENTRIES);
+    private final Set<Key> mPending = Collections.newSetFromMap(
+            new ConcurrentHashMap<Key, Boolean>());
+    /** Looks results up, guarded by itself, as are the last params and their hash code. */
+    private final Key mLookupKey = new Key();
+    private PrecomputedTextCompat.Params mLookupParams;
+    private int mLookupParamsHash;
+    private volatile PrecomputedTextCompat.Params mParams;
+    private volatile boolean mMarquee;
+    /** Incremented by {@link #clear()}, so that results of earlier requests are dropped. */
+    private volatile int mGeneration;
+
+    public RowTextPrecomputer(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the measured name, or null if it hasn't been measured for this appearance.
+     *
+     * @param text the name. Only read during the call, so it may be a reused buffer.
+     * @param upperCasePrefix the highlighted prefix in upper case letters, or null
+     * @param marquee whether the name is marked for {@link TruncateAt#MARQUEE}
+     */
+    public PrecomputedTextCompat get(CharSequence text, String upperCasePrefix, boolean marquee,
+            PrecomputedTextCompat.Params params) {
+        mMarquee = marquee;
+        mParams = params;
+        synchronized (mLookupKey) {
+            if (params != mLookupParams) {
+                mLookupParams = params;
+                mLookupParamsHash = params.hashCode();
+            }
+            mLookupKey.set(text, upperCasePrefix, marquee, params, mLookupParamsHash);
+            try {
+                return mCache.get(mLookupKey);
+            } finally {
+                // Don't hold on to the caller's buffer.
+                mLookupKey.text = null;
+            }
+        }
+    }
+
+    /**
+     * Measures the names that aren't cached yet in the background. Does nothing until a view
+     * has called {@link #get}.
+     */
+    public void prefetch(List<String> texts, String upperCasePrefix) {
+        final PrecomputedTextCompat.Params params = mParams;
+        if (params == null) {
+            return;
+        }
+        final boolean marquee = mMarquee;
+        for (String text : texts) {
+            final Key key = new Key(text, upperCasePrefix, marquee, params);
+            if (mCache.get(key) != null || !mPending.add(key)) {
+                continue;
+            }
+            final int generation = mGeneration;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (generation == mGeneration) {
+                            final PrecomputedTextCompat result = precompute(key);
+                            if (generation == mGeneration) {
+                                mCache.put(key, result);
+                            }
+                        }
+                    } finally {
+                        mPending.remove(key);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops all results, e.g. when the configuration changes.
+     */
+    public void clear() {
+        mGeneration++;
+        mParams = null;
+        mCache.evictAll();
+    }
+
+    @VisibleForTesting
+    int size() {
+        return mCache.size();
+    }
+
+    /**
+     * Builds the text the way {@link ContactListItemView} shows names: the prefix in bold, and
+     * marked for {@link TruncateAt#MARQUEE} if the view ellipsizes that way.
+     */
+    @VisibleForTesting
+    static PrecomputedTextCompat precompute(String text, String upperCasePrefix,
+            boolean marquee, PrecomputedTextCompat.Params params) {
+        return precompute(new Key(text, upperCasePrefix, marquee, params));
+    }
+
+    private static PrecomputedTextCompat precompute(Key key) {
+        final SpannableString text = new SpannableString(key.text);
+        if (key.upperCasePrefix != null) {
+            final int prefixStart = BindTextBuffer.getPrefixStart(key.upperCasePrefix);
+            final int index = FormatUtils.indexOfWordPrefix(text, key.upperCasePrefix,
+                    prefixStart);
+            if (index >= 0) {
+                final int end = Math.min(text.length(),
+                        index + key.upperCasePrefix.length() - prefixStart);
+                text.setSpan(new StyleSpan(Typeface.BOLD), index, end, 0 /* flags */);
+            }
+        }
+        if (key.marquee) {
+            text.setSpan(TruncateAt.MARQUEE, 0, text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return PrecomputedTextCompat.create(text, key.params);
+    }
+}
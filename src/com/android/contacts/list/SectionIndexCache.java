@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * The address book index of the last full load of each contact list, by query. Lets the next
+ * load skip the index when it only needs a first page, and still show the section headers and
+ * the fast scroller with it.
+ */
+final class SectionIndexCache {
+    private static final String TAG = "SectionIndexCache";
+
+    private static final String PREFERENCES_NAME = "section_index_cache";
+    private static final String KEY_TITLES = "titles";
+    private static final String KEY_COUNTS = "counts";
+
+    /** The number of lists to remember, e.g. one for each filter and sort order in use. */
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 16;
+
+    private static SectionIndexCache sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    @VisibleForTesting
+    SectionIndexCache(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    public static synchronized SectionIndexCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SectionIndexCache(context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the key of the list that a query loads, which doesn't depend on whether the
+     * query asks for the index or limits the number of rows.
+     */
+    public static String getKey(Uri uri, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return withoutIndex(uri) + "|" + selection + "|" + Arrays.toString(selectionArgs)
+                + "|" + sortOrder;
+    }
+
+    /**
+     * Returns the uri without the parameters that ask the provider for the address book index
+     * and limit the number of rows.
+     */
+    public static Uri withoutIndex(Uri uri) {
+        final Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if (Contacts.EXTRA_ADDRESS_BOOK_INDEX.equals(name)
+                    || ContactsContract.LIMIT_PARAM_KEY.equals(name)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the cached index of the list as cursor extras, or null if there is none.
+     */
+    public Bundle get(String key) {
+        final String value = mPrefs.getString(key, null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            final JSONObject json = new JSONObject(value);
+            final JSONArray titlesJson = json.getJSONArray(KEY_TITLES);
+            final JSONArray countsJson = json.getJSONArray(KEY_COUNTS);
+            if (titlesJson.length() != countsJson.length()) {
+                return null;
+            }
+            final String[] titles = new String[titlesJson.length()];
+            final int[] counts = new int[countsJson.length()];
+            for (int i = 0; i < titles.length; i++) {
+                titles[i] = titlesJson.getString(i);
+                counts[i] = countsJson.getInt(i);
+            }
+            final Bundle extras = new Bundle();
+            extras.putStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES, titles);
+            extras.putIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS, counts);
+            return extras;
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring malformed index for " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the index in the extras of a full load of the list. Does nothing if the extras
+     * have no index or the same one is cached already.
+     */
+    public void put(String key, Bundle extras) {
+        final String[] titles = extras == null
+                ? null : extras.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
+        final int[] counts = extras == null
+                ? null : extras.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS);
+        if (titles == null || counts == null || titles.length != counts.length) {
+            return;
+        }
+        final JSONObject json = new JSONObject();
+        try {
+            final JSONArray titlesJson = new JSONArray();
+            final JSONArray countsJson = new JSONArray();
+            for (int i = 0; i < titles.length; i++) {
+                titlesJson.put(titles[i] == null ? "" : titles[i]);
+                countsJson.put(counts[i]);
+            }
+            json.put(KEY_TITLES, titlesJson);
+            json.put(KEY_COUNTS, countsJson);
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to store index for " + key, e);
+            return;
+        }
+        final String value = json.toString();
+        if (value.equals(mPrefs.getString(key, null))) {
+            return;
+        }
+        final SharedPreferences.Editor editor = mPrefs.edit();
+        if (!mPrefs.contains(key) && mPrefs.getAll().size() >= MAX_ENTRIES) {
+            // Lists that were used a while ago are as likely to be stale as to be used again.
+            editor.clear();
+        }
+        editor.putString(key, value).apply();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps whose memory can be reused to decode or draw other bitmaps, which
+ * saves an allocation (and the garbage collection that goes with it) per bitmap.
+ *
+ * <p>Bitmaps are kept in buckets by allocation size, rounded up to a power of two, so that a
+ * lookup only has to look at bitmaps of about the right size. A bitmap must not be returned to
+ * the pool while anything still draws it. This class is thread-safe.</p>
+ */
+public class BitmapPool {
+    private final int mMaxBytes;
+
+    /** Pooled bitmaps, by bucket. */
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxBytes the maximum number of bytes held by the pooled bitmaps
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable bitmap whose allocation can hold at least {@code byteCount} bytes, or
+     * null if there is none. The bitmap is removed from the pool and its pixels are undefined.
+     */
+    public synchronized Bitmap get(int byteCount) {
+        // Look in the bucket of the requested size and in the next one up, so that we never
+        // hand out a bitmap that is more than four times as big as needed.
+        final int bucket = bucketFor(byteCount);
+        final Bitmap bitmap = removeFromBucket(bucket, byteCount);
+        if (bitmap != null) {
+            mHitCount++;
+            return bitmap;
+        }
+        final Bitmap larger = bucket < (1 << 30) ? removeFromBucket(bucket << 1, byteCount) : null;
+        if (larger != null) {
+            mHitCount++;
+            return larger;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Offers a bitmap for reuse. Bitmaps that are immutable, recycled or larger than the pool
+     * are ignored. If the pool is full, the largest bitmaps are dropped first, since they are
+     * the least likely to be reused for thumbnails.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > mMaxBytes) {
+            return;
+        }
+        final int bucket = bucketFor(byteCount);
+        ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBuckets.put(bucket, bitmaps);
+        } else {
+            for (Bitmap pooled : bitmaps) {
+                if (pooled == bitmap) {
+                    return;
+                }
+            }
+        }
+        bitmaps.addLast(bitmap);
+        mSize += byteCount;
+        mPutCount++;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Drops pooled bitmaps, largest first, until at most {@code maxBytes} bytes are held.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        while (mSize > maxBytes && !mBuckets.isEmpty()) {
+            final Map.Entry<Integer, ArrayDeque<Bitmap>> largest = mBuckets.lastEntry();
+            final Bitmap bitmap = largest.getValue().removeFirst();
+            if (largest.getValue().isEmpty()) {
+                mBuckets.remove(largest.getKey());
+            }
+            mSize -= bitmap.getAllocationByteCount();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxBytes + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%,puts=" + mPutCount
+                + ",evictions=" + mEvictionCount + "]";
+    }
+
+    private Bitmap removeFromBucket(int bucket, int byteCount) {
+        final ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            return null;
+        }
+        final Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            final int allocation = bitmap.getAllocationByteCount();
+            if (allocation >= byteCount) {
+                iterator.remove();
+                if (bitmaps.isEmpty()) {
+                    mBuckets.remove(bucket);
+                }
+                mSize -= allocation;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /** Rounds the byte count up to a power of two. */
+    private static int bucketFor(int byteCount) {
+        return byteCount <= 1 ? 1 : Integer.highestOneBit(byteCount - 1) << 1;
+    }
+}
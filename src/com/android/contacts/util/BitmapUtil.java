@@ -18,12 +18,15 @@ package com.android.contacts.util;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader.TileMode;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
@@ -89,6 +92,84 @@ public class BitmapUtil {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
     }
 
+    /**
+     * Decodes the bitmap with the given sample size into the memory of a bitmap from the pool,
+     * if the pool has one that is large enough. The result is mutable, so that it can be
+     * returned to the pool once it is no longer used.
+     */
+    public static Bitmap decodeBitmapFromBytes(byte[] bytes, int sampleSize, BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = Math.max(1, sampleSize);
+        options.inMutable = true;
+        // Rounding up keeps the estimate on the safe side for decoders that round up.
+        final int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = pool.get(width * height * 4);
+        if (options.inBitmap == null) {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder can't reuse the pooled bitmap for this image after all.
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    /**
+     * Crops the center square out of the bitmap, drawing into a bitmap from the pool if the
+     * pool has one that is large enough. The source bitmap is returned to the pool, so it must
+     * not be used by anything else.
+     */
+    public static Bitmap cropToSquare(Bitmap source, BitmapPool pool) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int dimension = Math.min(width, height);
+        Bitmap square = pool.get(dimension * dimension * 4);
+        if (square != null) {
+            square.reconfigure(dimension, dimension, Bitmap.Config.ARGB_8888);
+            square.eraseColor(Color.TRANSPARENT);
+        } else {
+            square = Bitmap.createBitmap(dimension, dimension, Bitmap.Config.ARGB_8888);
+        }
+        square.setHasAlpha(source.hasAlpha());
+        final int left = (width - dimension) / 2;
+        final int top = (height - dimension) / 2;
+        new Canvas(square).drawBitmap(source, new Rect(left, top, left + dimension,
+                top + dimension), new Rect(0, 0, dimension, dimension), null);
+        pool.put(source);
+        return square;
+    }
+
+    /**
+     * Draws a square bitmap clipped to a circle with anti-aliased edges, into a bitmap from the
+     * pool if the pool has one that is large enough. The source bitmap is left untouched.
+     */
+    public static Bitmap renderCircular(Bitmap source, BitmapPool pool) {
+        final int dimension = source.getWidth();
+        Bitmap circular = pool.get(dimension * dimension * 4);
+        if (circular != null) {
+            circular.reconfigure(dimension, dimension, Bitmap.Config.ARGB_8888);
+            circular.eraseColor(Color.TRANSPARENT);
+        } else {
+            circular = Bitmap.createBitmap(dimension, dimension, Bitmap.Config.ARGB_8888);
+        }
+        circular.setHasAlpha(true);
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        paint.setShader(new BitmapShader(source, TileMode.CLAMP, TileMode.CLAMP));
+        final float radius = dimension / 2f;
+        new Canvas(circular).drawCircle(radius, radius, radius, paint);
+        return circular;
+    }
+
     /**
      * Retrieves a copy of the specified drawable resource, rotated by a specified angle.
      *
@@ -36,6 +36,9 @@ public class ContactDisplayUtils {
 
     private static final String TAG = ContactDisplayUtils.class.getSimpleName();
 
+    /** The characters {@link Patterns#PHONE} accepts. */
+    private static final String PHONE_NUMBER_CHARS = "0123456789+-. ()";
+
     /**
      * Checks if the given data type is a custom type.
      *
@@ -162,7 +165,17 @@ public class ContactDisplayUtils {
      * phone numbers with letters.
      */
     public static boolean isPossiblePhoneNumber(CharSequence text) {
-        return text == null ? false : Patterns.PHONE.matcher(text.toString()).matches();
+        if (text == null) {
+            return false;
+        }
+        // Most names have a character the pattern doesn't allow, and can be rejected without
+        // running the matcher.
+        for (int i = 0; i < text.length(); i++) {
+            if (PHONE_NUMBER_CHARS.indexOf(text.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return Patterns.PHONE.matcher(text.toString()).matches();
     }
 
     /**
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link AggregationPlanner}.
+ */
+@SmallTest
+public class AggregationPlannerTest extends AndroidTestCase {
+
+    private static long[] rawContactIds(int count) {
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    public void testJoinIsAChain() {
+        assertEquals(59, AggregationPlanner.planJoin(rawContactIds(60),
+                Collections.<long[]>emptyList()).size());
+    }
+
+    public void testJoinOverridesKeepSeparate() {
+        final List<long[]> keepSeparate = new ArrayList<>();
+        // Not in the chain.
+        keepSeparate.add(new long[] { 1, 3 });
+        // In the chain already, the other way around.
+        keepSeparate.add(new long[] { 3, 2 });
+        assertEquals(3, AggregationPlanner.planJoin(rawContactIds(3), keepSeparate).size());
+    }
+
+    public void testJoinWithUnknownExceptionsJoinsAllPairs() {
+        assertEquals(6, AggregationPlanner.planJoin(rawContactIds(4), null).size());
+    }
+
+    public void testSplitHasOneExceptionPerCrossGroupPair() {
+        final long[][] groups = new long[][] {
+                { 1, 2 },
+                { 3, 4, 5 },
+                { 6 },
+        };
+        // 2 * 3 + 2 * 1 + 3 * 1
+        assertEquals(11, AggregationPlanner.planSplit(groups, true).size());
+        assertEquals(11, AggregationPlanner.planSplit(groups, false).size());
+        assertEquals(0, AggregationPlanner.planSplit(new long[][] { { 1, 2 } }, true).size());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactPhotoDiskCache}.
+ */
+@SmallTest
+public class ContactPhotoDiskCacheTest extends AndroidTestCase {
+    private static final int MAX_BYTES = 64 * 1024;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "ContactPhotoDiskCacheTest");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testPutAndGet() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        final byte[] photo = createPhoto(1000, 1);
+        cache.put(ContactPhotoDiskCache.keyFor(1L, -1), 7, photo);
+
+        assertTrue(Arrays.equals(photo, cache.get(ContactPhotoDiskCache.keyFor(1L, -1))));
+        assertEquals(7, cache.getVersion(ContactPhotoDiskCache.keyFor(1L, -1)));
+        assertNull(cache.get(ContactPhotoDiskCache.keyFor(1L, 96)));
+        assertEquals(ContactPhotoDiskCache.NO_VERSION,
+                cache.getVersion(ContactPhotoDiskCache.keyFor(2L, -1)));
+    }
+
+    public void testSurvivesReopen() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        final byte[] photo = createPhoto(1000, 2);
+        final String key = ContactPhotoDiskCache.keyFor("content://photo/1", 128);
+        cache.put(key, 3, photo);
+        cache.flush();
+
+        final ContactPhotoDiskCache reopened = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        assertEquals(3, reopened.getVersion(key));
+        assertTrue(Arrays.equals(photo, reopened.get(key)));
+    }
+
+    public void testUnflushedEntriesAreDroppedOnReopen() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        cache.put(ContactPhotoDiskCache.keyFor(1L, -1), 1, createPhoto(100, 1));
+        cache.flush();
+        cache.put(ContactPhotoDiskCache.keyFor(2L, -1), 1, createPhoto(100, 2));
+
+        final ContactPhotoDiskCache reopened = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        assertNotNull(reopened.get(ContactPhotoDiskCache.keyFor(1L, -1)));
+        assertNull(reopened.get(ContactPhotoDiskCache.keyFor(2L, -1)));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        final int photoSize = MAX_BYTES / 10;
+        for (long id = 0; id < 9; id++) {
+            cache.put(ContactPhotoDiskCache.keyFor(id, -1), 1, createPhoto(photoSize, (int) id));
+        }
+        // Touch the oldest entry so that the second oldest is evicted instead.
+        assertNotNull(cache.get(ContactPhotoDiskCache.keyFor(0L, -1)));
+        cache.put(ContactPhotoDiskCache.keyFor(9L, -1), 1, createPhoto(photoSize, 9));
+        cache.put(ContactPhotoDiskCache.keyFor(10L, -1), 1, createPhoto(photoSize, 10));
+
+        assertTrue(cache.size() <= MAX_BYTES);
+        assertNotNull(cache.get(ContactPhotoDiskCache.keyFor(0L, -1)));
+        assertNull(cache.get(ContactPhotoDiskCache.keyFor(1L, -1)));
+        assertNotNull(cache.get(ContactPhotoDiskCache.keyFor(10L, -1)));
+    }
+
+    public void testCompactionKeepsLiveEntries() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        final int photoSize = MAX_BYTES / 10;
+        // Overwrite the same few keys until the data file has been compacted several times.
+        for (int i = 0; i < 100; i++) {
+            cache.put(ContactPhotoDiskCache.keyFor((long) (i % 3), -1), i,
+                    createPhoto(photoSize, i));
+        }
+        assertTrue(new File(mDirectory, "photos.dat").length() <= 2 * MAX_BYTES);
+        assertEquals(99, cache.getVersion(ContactPhotoDiskCache.keyFor(0L, -1)));
+        assertTrue(Arrays.equals(createPhoto(photoSize, 99),
+                cache.get(ContactPhotoDiskCache.keyFor(0L, -1))));
+    }
+
+    public void testIdenticalPhotoIsNotAppendedAgain() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        final String key = ContactPhotoDiskCache.keyFor("content://photo/1", -1);
+        cache.put(key, 0, createPhoto(1000, 1));
+        final long length = new File(mDirectory, "photos.dat").length();
+
+        cache.put(key, 0, createPhoto(1000, 1));
+        assertEquals(length, new File(mDirectory, "photos.dat").length());
+
+        cache.put(key, 0, createPhoto(1000, 2));
+        assertTrue(new File(mDirectory, "photos.dat").length() > length);
+        assertTrue(Arrays.equals(createPhoto(1000, 2), cache.get(key)));
+    }
+
+    public void testRecordsAcrossMappedRegions() {
+        final int maxBytes = 8 * 1024 * 1024;
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, maxBytes);
+        // Records that start in one mapped region and end in the next, read as they are added.
+        final int photoSize = 300 * 1000;
+        for (int i = 0; i < 12; i++) {
+            cache.put(ContactPhotoDiskCache.keyFor((long) i, -1), 1, createPhoto(photoSize, i));
+            assertNotNull(cache.get(ContactPhotoDiskCache.keyFor((long) i, -1)));
+        }
+        for (int i = 0; i < 12; i++) {
+            assertTrue(Arrays.equals(createPhoto(photoSize, i),
+                    cache.get(ContactPhotoDiskCache.keyFor((long) i, -1))));
+        }
+    }
+
+    public void testRemoveAndClear() {
+        final ContactPhotoDiskCache cache = new ContactPhotoDiskCache(mDirectory, MAX_BYTES);
+        cache.put(ContactPhotoDiskCache.keyFor(1L, -1), 1, createPhoto(100, 1));
+        cache.put(ContactPhotoDiskCache.keyFor(2L, -1), 1, createPhoto(100, 2));
+
+        cache.remove(ContactPhotoDiskCache.keyFor(1L, -1));
+        assertNull(cache.get(ContactPhotoDiskCache.keyFor(1L, -1)));
+        assertNotNull(cache.get(ContactPhotoDiskCache.keyFor(2L, -1)));
+
+        cache.clear();
+        assertNull(cache.get(ContactPhotoDiskCache.keyFor(2L, -1)));
+        assertEquals(0, cache.size());
+    }
+
+    private static byte[] createPhoto(int size, int seed) {
+        final byte[] photo = new byte[size];
+        for (int i = 0; i < size; i++) {
+            photo[i] = (byte) (i * 31 + seed);
+        }
+        return photo;
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
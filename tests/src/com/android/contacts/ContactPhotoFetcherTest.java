@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ContactPhotoFetcher}, run against a loopback HTTP server.
+ */
+@MediumTest
+public class ContactPhotoFetcherTest extends AndroidTestCase {
+    private static final byte[] PHOTO = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private LoopbackServer mServer;
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LoopbackServer();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testFetchesPhoto() throws Exception {
+        final ContactPhotoFetcher fetcher = createFetcher(4, 4, 5000);
+        final Result result = new Result(1);
+        fetcher.fetch(mServer.uri("/photo"), result);
+
+        assertTrue(result.await());
+        assertTrue(Arrays.equals(PHOTO, result.bytes.get(mServer.uri("/photo"))));
+    }
+
+    public void testMergesDuplicateRequests() throws Exception {
+        mServer.delayMillis = 200;
+        final ContactPhotoFetcher fetcher = createFetcher(4, 4, 5000);
+        final Result result = new Result(3);
+        fetcher.fetch(mServer.uri("/photo"), result);
+        fetcher.fetch(mServer.uri("/photo"), result);
+        fetcher.fetch(mServer.uri("/photo"), result);
+
+        assertTrue(result.await());
+        assertEquals(1, mServer.requestCount.get());
+        assertEquals(0, fetcher.getPendingFetchCount());
+    }
+
+    public void testLimitsFetchesPerHost() throws Exception {
+        mServer.delayMillis = 100;
+        final ContactPhotoFetcher fetcher = createFetcher(8, 2, 5000);
+        final Result result = new Result(6);
+        for (int i = 0; i < 6; i++) {
+            fetcher.fetch(mServer.uri("/photo" + i), result);
+        }
+
+        assertTrue(result.await());
+        assertEquals(6, mServer.requestCount.get());
+        assertEquals(2, mServer.maxConcurrentRequests.get());
+    }
+
+    public void testTimesOut() throws Exception {
+        mServer.delayMillis = 5000;
+        final ContactPhotoFetcher fetcher = createFetcher(4, 4, 200);
+        final Result result = new Result(1);
+        fetcher.fetch(mServer.uri("/photo"), result);
+
+        assertTrue(result.await());
+        assertTrue(result.bytes.containsKey(mServer.uri("/photo")));
+        assertNull(result.bytes.get(mServer.uri("/photo")));
+    }
+
+    public void testReportsMissingPhoto() throws Exception {
+        final ContactPhotoFetcher fetcher = createFetcher(4, 4, 5000);
+        final Result result = new Result(1);
+        fetcher.fetch(mServer.uri("/missing"), result);
+
+        assertTrue(result.await());
+        assertNull(result.bytes.get(mServer.uri("/missing")));
+    }
+
+    private ContactPhotoFetcher createFetcher(int maxFetches, int maxFetchesPerHost,
+            int timeoutMillis) {
+        return new ContactPhotoFetcher(getContext().getContentResolver(), "test", mExecutor,
+                maxFetches, maxFetchesPerHost, timeoutMillis, timeoutMillis);
+    }
+
+    private static class Result implements ContactPhotoFetcher.Callback {
+        final CountDownLatch latch;
+        final Map<Uri, byte[]> bytes = Collections.synchronizedMap(new HashMap<Uri, byte[]>());
+
+        Result(int expectedCallbacks) {
+            latch = new CountDownLatch(expectedCallbacks);
+        }
+
+        @Override
+        public void onPhotoFetched(Uri uri, byte[] photo) {
+            bytes.put(uri, photo);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.0 server that answers {@code /photo*} with {@link #PHOTO} and everything
+     * else with a 404, after an optional delay.
+     */
+    private static class LoopbackServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger requestCount = new AtomicInteger();
+        final AtomicInteger concurrentRequests = new AtomicInteger();
+        final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+        volatile int delayMillis;
+
+        LoopbackServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(this, "LoopbackServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Uri uri(String path) {
+            return Uri.parse("http://127.0.0.1:" + serverSocket.getLocalPort() + path);
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            final int concurrent = concurrentRequests.incrementAndGet();
+            int max;
+            while ((max = maxConcurrentRequests.get()) < concurrent
+                    && !maxConcurrentRequests.compareAndSet(max, concurrent)) {
+            }
+            requestCount.incrementAndGet();
+            boolean counted = true;
+            try {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.US_ASCII));
+                final String path = reader.readLine().split(" ")[1];
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    // Skip the headers
+                }
+                Thread.sleep(delayMillis);
+                // Stop counting before responding, so that the next fetch the client starts
+                // once it has the response can't overlap with this one.
+                concurrentRequests.decrementAndGet();
+                counted = false;
+
+                final OutputStream out = socket.getOutputStream();
+                if (path.startsWith("/photo")) {
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Length: " + PHOTO.length
+                            + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.write(PHOTO);
+                } else {
+                    out.write("HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                }
+                out.flush();
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                // The client gave up
+            } finally {
+                if (counted) {
+                    concurrentRequests.decrementAndGet();
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
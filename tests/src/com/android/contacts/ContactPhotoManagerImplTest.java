@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ComponentCallbacks2;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.InstrumentationRegistry;
+
+/**
+ * Tests for the cache sizing of {@link ContactPhotoManagerImpl}.
+ */
+@SmallTest
+public class ContactPhotoManagerImplTest extends AndroidTestCase {
+    private static final int MB = 1024 * 1024;
+
+    public void testBitmapCacheHoldsSeveralScreens() {
+        // 120px thumbnails on a 1920px screen: 16 thumbnails of 57600 bytes per screen.
+        final int size = ContactPhotoManagerImpl.computeBitmapCacheSize(192, false, 120, 1920, 1);
+        assertEquals(3 * 16 * 57600, size);
+    }
+
+    public void testBitmapCacheGrowsWithPanes() {
+        final int onePane =
+                ContactPhotoManagerImpl.computeBitmapCacheSize(256, false, 120, 1920, 1);
+        final int twoPanes =
+                ContactPhotoManagerImpl.computeBitmapCacheSize(256, false, 120, 1920, 2);
+        assertEquals(2 * onePane, twoPanes);
+    }
+
+    public void testBitmapCacheIsLimitedByHeap() {
+        final int size = ContactPhotoManagerImpl.computeBitmapCacheSize(32, false, 480, 4000, 2);
+        assertEquals(2 * MB, size);
+        final int lowRamSize =
+                ContactPhotoManagerImpl.computeBitmapCacheSize(32, true, 480, 4000, 2);
+        assertEquals(MB, lowRamSize);
+    }
+
+    public void testHolderCacheGrowsWithHeap() {
+        final int small = ContactPhotoManagerImpl.computeHolderCacheSize(64, false, 1);
+        final int large = ContactPhotoManagerImpl.computeHolderCacheSize(256, false, 1);
+        final int lowRam = ContactPhotoManagerImpl.computeHolderCacheSize(64, true, 1);
+        assertEquals(4 * small, large);
+        assertEquals(small / 2, lowRam);
+    }
+
+    public void testTrimMemoryShrinksBitmapsBeforeHolders() {
+        // The manager handles messages on the thread that creates it.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final ContactPhotoManagerImpl manager = new ContactPhotoManagerImpl(getContext());
+                final Bundle initial = manager.getStats();
+                final long bitmapMax = initial.getLong("bitmap.maxBytes");
+                final long holderMax = initial.getLong("holder.maxBytes");
+
+                manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+                assertTrue(manager.getStats().getLong("bitmap.maxBytes") < bitmapMax);
+                assertEquals(holderMax, manager.getStats().getLong("holder.maxBytes"));
+
+                manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+                assertEquals(holderMax, manager.getStats().getLong("holder.maxBytes"));
+
+                manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+                assertTrue(manager.getStats().getLong("holder.maxBytes") < holderMax);
+            }
+        });
+    }
+}
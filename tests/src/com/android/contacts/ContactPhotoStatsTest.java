@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests for {@link ContactPhotoStats}.
+ */
+@SmallTest
+public class ContactPhotoStatsTest extends AndroidTestCase {
+    private static final long MILLIS = 1000000L;
+
+    public void testHistogramBuckets() {
+        assertEquals(0, ContactPhotoStats.Histogram.bucketFor(0));
+        assertEquals(1, ContactPhotoStats.Histogram.bucketFor(1));
+        assertEquals(2, ContactPhotoStats.Histogram.bucketFor(2));
+        assertEquals(2, ContactPhotoStats.Histogram.bucketFor(3));
+        assertEquals(3, ContactPhotoStats.Histogram.bucketFor(4));
+        assertEquals(ContactPhotoStats.Histogram.BUCKET_COUNT - 1,
+                ContactPhotoStats.Histogram.bucketFor(Long.MAX_VALUE));
+    }
+
+    public void testHistogramPercentiles() {
+        final ContactPhotoStats.Histogram histogram = new ContactPhotoStats.Histogram();
+        assertEquals(-1, histogram.percentileMillis(50));
+
+        for (int i = 0; i < 9; i++) {
+            histogram.record(3 * MILLIS);
+        }
+        histogram.record(100 * MILLIS);
+
+        assertEquals(10, histogram.count());
+        assertEquals(4, histogram.percentileMillis(50));
+        assertEquals(4, histogram.percentileMillis(90));
+        assertEquals(128, histogram.percentileMillis(99));
+    }
+
+    public void testCountersAndReset() {
+        final ContactPhotoStats stats = new ContactPhotoStats();
+        stats.recordHit(ContactPhotoStats.TIER_BITMAP);
+        stats.recordHit(ContactPhotoStats.TIER_BITMAP);
+        stats.recordMiss(ContactPhotoStats.TIER_DISK);
+        stats.recordEviction(ContactPhotoStats.TIER_HOLDER,
+                ContactPhotoStats.EVICTION_TRIM_MEMORY);
+
+        assertEquals(2, stats.getHitCount(ContactPhotoStats.TIER_BITMAP));
+        assertEquals(0, stats.getHitCount(ContactPhotoStats.TIER_DISK));
+        assertEquals(1, stats.getMissCount(ContactPhotoStats.TIER_DISK));
+        assertEquals(1, stats.getEvictionCount(ContactPhotoStats.TIER_HOLDER,
+                ContactPhotoStats.EVICTION_TRIM_MEMORY));
+        assertEquals(0, stats.getEvictionCount(ContactPhotoStats.TIER_HOLDER,
+                ContactPhotoStats.EVICTION_LRU));
+
+        stats.reset();
+        assertEquals(0, stats.getHitCount(ContactPhotoStats.TIER_BITMAP));
+        assertEquals(0, stats.getEvictionCount(ContactPhotoStats.TIER_HOLDER,
+                ContactPhotoStats.EVICTION_TRIM_MEMORY));
+    }
+
+    public void testExport() {
+        final ContactPhotoStats stats = new ContactPhotoStats();
+        stats.recordHit(ContactPhotoStats.TIER_HOLDER);
+        stats.recordEviction(ContactPhotoStats.TIER_BITMAP, ContactPhotoStats.EVICTION_SOFTEN);
+        stats.recordLatency(ContactPhotoStats.LATENCY_DECODE_URI, System.nanoTime());
+
+        final Bundle bundle = new Bundle();
+        stats.addTo(bundle);
+        assertEquals(1, bundle.getLong("holder.hits"));
+        assertEquals(1, bundle.getLong("bitmap.evictions.soften"));
+        assertEquals(1, bundle.getLong("decodeUri.count"));
+        assertEquals(0, bundle.getLong("loadUri.count"));
+
+        final StringWriter out = new StringWriter();
+        stats.dump("", new PrintWriter(out));
+        assertTrue(out.toString().contains("holder: hits=1"));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Benchmarks deleting many contacts against a synthetic provider that counts its transactions.
+ */
+@LargeTest
+public class ContactSaveServiceBulkDeleteTest extends AndroidTestCase {
+    private static final String TAG = "BulkDeleteTest";
+
+    private static final int CONTACT_COUNT = 10000;
+    /** The most operations the provider accepts between yield points. */
+    private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
+
+    /**
+     * Holds contact ids only. Each transaction notifies observers once, as the contacts
+     * provider does.
+     */
+    private static class SyntheticContactsProvider extends MockContentProvider {
+        final Set<Long> contactIds = new HashSet<>();
+        int transactionCount;
+        int notificationCount;
+        int maxOperationsPerYieldPoint;
+        /** The transaction that fails, counting from 1, or 0 if none does. */
+        int failingTransaction;
+        private boolean mInTransaction;
+
+        SyntheticContactsProvider(int contactCount) {
+            for (long id = 1; id <= contactCount; id++) {
+                contactIds.add(id);
+            }
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            final int count = contactIds.remove(ContentUris.parseId(uri)) ? 1 : 0;
+            if (!mInTransaction) {
+                transactionCount++;
+                notificationCount++;
+            }
+            return count;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (transactionCount + 1 == failingTransaction) {
+                throw new OperationApplicationException("Transaction " + failingTransaction);
+            }
+            mInTransaction = true;
+            try {
+                final ContentProviderResult[] results =
+                        new ContentProviderResult[operations.size()];
+                int sinceYieldPoint = 0;
+                for (int i = 0; i < operations.size(); i++) {
+                    if (operations.get(i).isYieldAllowed()) {
+                        sinceYieldPoint = 0;
+                    }
+                    sinceYieldPoint++;
+                    maxOperationsPerYieldPoint =
+                            Math.max(maxOperationsPerYieldPoint, sinceYieldPoint);
+                    results[i] = operations.get(i).apply(this, results, i);
+                }
+                transactionCount++;
+                notificationCount++;
+                return results;
+            } finally {
+                mInTransaction = false;
+            }
+        }
+    }
+
+    private static long[] getContactIds() {
+        final long[] ids = new long[CONTACT_COUNT];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    private static MockContentResolver createResolver(SyntheticContactsProvider provider) {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, provider);
+        return resolver;
+    }
+
+    public void testBatchedDelete() throws Exception {
+        final SyntheticContactsProvider provider = new SyntheticContactsProvider(CONTACT_COUNT);
+        final MockContentResolver resolver = createResolver(provider);
+        final int[] progress = new int[2];
+
+        final long start = SystemClock.elapsedRealtime();
+        final int deleted = ContactSaveService.applyInBatches(resolver,
+                ContactSaveService.buildDeleteContactsOperations(getContactIds()),
+                new ContactSaveService.BatchProgressListener() {
+                    @Override
+                    public void onBatchApplied(int appliedCount, int totalCount) {
+                        assertTrue(appliedCount > progress[0]);
+                        progress[0] = appliedCount;
+                        progress[1]++;
+                    }
+                });
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Batched delete of " + CONTACT_COUNT + " contacts: " + elapsed + "ms, "
+                + provider.transactionCount + " transactions");
+
+        assertEquals(CONTACT_COUNT, deleted);
+        assertTrue(provider.contactIds.isEmpty());
+        final int batches = (CONTACT_COUNT + 498) / 499;
+        assertEquals(batches, provider.transactionCount);
+        assertEquals(batches, provider.notificationCount);
+        assertEquals(batches, progress[1]);
+        assertEquals(CONTACT_COUNT, progress[0]);
+        assertTrue(provider.maxOperationsPerYieldPoint <= MAX_OPERATIONS_PER_YIELD_POINT);
+    }
+
+    public void testFailedBatchReportsDeletedCount() throws Exception {
+        final SyntheticContactsProvider provider = new SyntheticContactsProvider(CONTACT_COUNT);
+        provider.failingTransaction = 3;
+        final int[] deletedCount = new int[1];
+        try {
+            ContactSaveService.applyInBatches(createResolver(provider),
+                    ContactSaveService.buildDeleteContactsOperations(getContactIds()),
+                    new ContactSaveService.BatchProgressListener() {
+                        @Override
+                        public void onBatchApplied(int appliedCount, int totalCount) {
+                            deletedCount[0] = appliedCount;
+                        }
+                    });
+            fail();
+        } catch (OperationApplicationException expected) {
+        }
+        // The first two transactions were committed and stay deleted.
+        assertEquals(2 * 499, deletedCount[0]);
+        assertEquals(CONTACT_COUNT - 2 * 499, provider.contactIds.size());
+    }
+
+    public void testPerContactDelete() {
+        // What deleting contacts one by one costs, for comparison.
+        final SyntheticContactsProvider provider = new SyntheticContactsProvider(CONTACT_COUNT);
+        final MockContentResolver resolver = createResolver(provider);
+
+        final long start = SystemClock.elapsedRealtime();
+        for (long contactId : getContactIds()) {
+            resolver.delete(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+                    null, null);
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Per-contact delete of " + CONTACT_COUNT + " contacts: " + elapsed + "ms, "
+                + provider.transactionCount + " transactions");
+
+        assertTrue(provider.contactIds.isEmpty());
+        assertEquals(CONTACT_COUNT, provider.notificationCount);
+    }
+}
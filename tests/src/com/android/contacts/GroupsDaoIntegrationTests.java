@@ -17,6 +17,7 @@
 package com.android.contacts;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -26,11 +27,14 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Data;
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
 import com.android.contacts.model.account.AccountWithDataSet;
 
@@ -42,6 +46,10 @@ import java.util.List;
  */
 @MediumTest
 public class GroupsDaoIntegrationTests extends InstrumentationTestCase {
+    private static final String TAG = "GroupsDaoIntegrationTests";
+
+    /** The number of raw contacts that the membership benchmark adds to a group. */
+    private static final int BENCHMARK_MEMBER_COUNT = 500;
 
     private ContentResolver mResolver;
     private List<Uri> mTestRecords;
@@ -200,6 +208,80 @@ public class GroupsDaoIntegrationTests extends InstrumentationTestCase {
         assertGroupWithTitleExists("Test undo delete null memberIds");
     }
 
+    public void test_addMembers_skipsExistingMembers() throws Exception {
+        final ContactSaveService.GroupsDao sut = createDao();
+        final long groupId = ContentUris.parseId(
+                sut.create("Test add existing members", getLocalAccount()));
+        final long member = ContentUris.parseId(createRawContact());
+        final long newMember = ContentUris.parseId(createRawContact());
+        addMemberToGroup(member, groupId);
+
+        assertEquals(1, ContactSaveService.applyGroupMembershipChanges(mResolver, groupId,
+                new long[] { member, newMember, newMember }, null));
+        assertEquals(2, getMembershipCount(groupId));
+
+        // Adding the same members again writes nothing.
+        assertEquals(0, ContactSaveService.applyGroupMembershipChanges(mResolver, groupId,
+                new long[] { member, newMember }, null));
+        assertEquals(2, getMembershipCount(groupId));
+    }
+
+    public void test_removeMembers_removesOnlyGivenMembers() throws Exception {
+        final ContactSaveService.GroupsDao sut = createDao();
+        final long groupId = ContentUris.parseId(
+                sut.create("Test remove members", getLocalAccount()));
+        final long member = ContentUris.parseId(createRawContact());
+        final long removedMember = ContentUris.parseId(createRawContact());
+        final long addedAndRemoved = ContentUris.parseId(createRawContact());
+        addMemberToGroup(member, groupId);
+        addMemberToGroup(removedMember, groupId);
+
+        ContactSaveService.applyGroupMembershipChanges(mResolver, groupId,
+                new long[] { addedAndRemoved }, new long[] { removedMember, addedAndRemoved });
+        assertEquals(1, getMembershipCount(groupId));
+    }
+
+    public void test_addMembers_skipsDeletedRawContacts() throws Exception {
+        final ContactSaveService.GroupsDao sut = createDao();
+        final long groupId = ContentUris.parseId(
+                sut.create("Test add deleted members", getLocalAccount()));
+        final long newMember = ContentUris.parseId(createRawContact());
+        final Uri deletedUri = createRawContact();
+        mResolver.delete(deletedUri.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build(), null, null);
+
+        assertEquals(1, ContactSaveService.applyGroupMembershipChanges(mResolver, groupId,
+                new long[] { ContentUris.parseId(deletedUri), newMember }, null));
+        assertEquals(1, getMembershipCount(groupId));
+    }
+
+    @LargeTest
+    public void test_addManyMembers_benchmark() throws Exception {
+        final ContactSaveService.GroupsDao sut = createDao();
+        final long[] rawContactIds = createRawContacts(BENCHMARK_MEMBER_COUNT);
+
+        final long perContactGroupId = ContentUris.parseId(
+                sut.create("Test add members one by one", getLocalAccount()));
+        long start = SystemClock.elapsedRealtime();
+        for (long rawContactId : rawContactIds) {
+            addMemberWithAssert(rawContactId, perContactGroupId);
+        }
+        final long perContactMillis = SystemClock.elapsedRealtime() - start;
+
+        final long batchedGroupId = ContentUris.parseId(
+                sut.create("Test add members in batches", getLocalAccount()));
+        start = SystemClock.elapsedRealtime();
+        ContactSaveService.applyGroupMembershipChanges(mResolver, batchedGroupId,
+                rawContactIds, null);
+        final long batchedMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "Added " + BENCHMARK_MEMBER_COUNT + " members one by one in "
+                + perContactMillis + "ms, in batches in " + batchedMillis + "ms");
+        assertEquals(BENCHMARK_MEMBER_COUNT, getMembershipCount(perContactGroupId));
+        assertEquals(BENCHMARK_MEMBER_COUNT, getMembershipCount(batchedGroupId));
+    }
+
     private void assertGroupHasTitle(Uri groupUri, String title) {
         final Cursor cursor = mResolver.query(groupUri,
                 new String[] { ContactsContract.Groups.TITLE },
@@ -239,6 +321,55 @@ public class GroupsDaoIntegrationTests extends InstrumentationTestCase {
         return result;
     }
 
+    private long[] createRawContacts(int count) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
+                    .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, null)
+                    .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, null)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        final ContentProviderResult[] results =
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            mTestRecords.add(results[i].uri);
+            ids[i] = ContentUris.parseId(results[i].uri);
+        }
+        return ids;
+    }
+
+    private int getMembershipCount(long groupId) {
+        final Cursor cursor = mResolver.query(Data.CONTENT_URI, new String[] { Data._ID },
+                Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
+                new String[] { GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId) },
+                null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Adds a member the way group members used to be added, in a transaction of its own. */
+    private void addMemberWithAssert(long rawContactId, long groupId) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>(2);
+        ops.add(ContentProviderOperation.newAssertQuery(Data.CONTENT_URI)
+                .withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=? AND "
+                        + GroupMembership.GROUP_ROW_ID + "=?",
+                        new String[] { String.valueOf(rawContactId),
+                                GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId) })
+                .withExpectedCount(0)
+                .build());
+        ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                .withValue(Data.RAW_CONTACT_ID, rawContactId)
+                .withValue(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE)
+                .withValue(GroupMembership.GROUP_ROW_ID, groupId)
+                .build());
+        mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+    }
+
     private Uri addMemberToGroup(long rawContactId, long groupId) {
         final ContentValues values = new ContentValues();
         values.put(Data.RAW_CONTACT_ID, rawContactId);
@@ -267,6 +398,7 @@ public class GroupsDaoIntegrationTests extends InstrumentationTestCase {
                     .newDelete(uri.buildUpon()
                             .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
                             .build())
+                    .withYieldAllowed(true)
                     .build());
         }
         mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
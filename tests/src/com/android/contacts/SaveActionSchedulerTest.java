@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentUris;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link SaveActionScheduler}.
+ */
+@SmallTest
+public class SaveActionSchedulerTest extends AndroidTestCase {
+
+    /** Runs actions only when the test says so. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> started = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            started.add(command);
+        }
+
+        void run(int index) {
+            started.remove(index).run();
+        }
+    }
+
+    private ManualExecutor mExecutor;
+    private SaveActionScheduler mScheduler;
+    private final List<Intent> mCallbacks = new ArrayList<>();
+    private final List<Intent> mSuperseded = new ArrayList<>();
+    private final List<Integer> mFinishedThrough = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new ManualExecutor();
+        mScheduler = new SaveActionScheduler(mExecutor, new SaveActionScheduler.Callback() {
+            @Override
+            public void runAction(final Intent intent) {
+                mScheduler.deliverInOrder(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallbacks.add(intent);
+                    }
+                });
+            }
+
+            @Override
+            public void onActionSuperseded(Intent intent) {
+                mSuperseded.add(intent);
+            }
+
+            @Override
+            public void onFinishedThrough(int startId) {
+                mFinishedThrough.add(startId);
+            }
+        });
+    }
+
+    private static Intent setStarred(long contactId, boolean starred) {
+        return new Intent(ContactSaveService.ACTION_SET_STARRED)
+                .putExtra(ContactSaveService.EXTRA_CONTACT_URI,
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId))
+                .putExtra(ContactSaveService.EXTRA_STARRED_FLAG, starred);
+    }
+
+    public void testDifferentContactsRunConcurrently() {
+        mScheduler.submit(setStarred(1, true), 1);
+        mScheduler.submit(setStarred(2, true), 2);
+        assertEquals(2, mExecutor.started.size());
+    }
+
+    public void testSameContactRunsInOrder() {
+        final Intent first = setStarred(1, true);
+        final Intent ringtone = new Intent(ContactSaveService.ACTION_SET_RINGTONE)
+                .putExtra(ContactSaveService.EXTRA_CONTACT_URI,
+                        ContentUris.withAppendedId(Contacts.CONTENT_URI, 1));
+        mScheduler.submit(first, 1);
+        mScheduler.submit(ringtone, 2);
+        assertEquals(1, mExecutor.started.size());
+        assertEquals(1, mScheduler.getQueueDepth());
+
+        mExecutor.run(0);
+        assertEquals(1, mExecutor.started.size());
+        mExecutor.run(0);
+        assertEquals(2, mCallbacks.size());
+        assertSame(first, mCallbacks.get(0));
+        assertEquals(2, (int) mFinishedThrough.get(mFinishedThrough.size() - 1));
+    }
+
+    public void testPendingUpdateIsSuperseded() {
+        mScheduler.submit(setStarred(1, true), 1);
+        final Intent superseded = setStarred(1, false);
+        mScheduler.submit(superseded, 2);
+        final Intent last = setStarred(1, true);
+        mScheduler.submit(last, 3);
+
+        assertEquals(1, mSuperseded.size());
+        assertSame(superseded, mSuperseded.get(0));
+        assertEquals(1, mScheduler.getQueueDepth());
+
+        mExecutor.run(0);
+        mExecutor.run(0);
+        assertSame(last, mCallbacks.get(1));
+        assertEquals(3, (int) mFinishedThrough.get(mFinishedThrough.size() - 1));
+    }
+
+    public void testOtherActionsRunAlone() {
+        mScheduler.submit(setStarred(1, true), 1);
+        mScheduler.submit(new Intent(ContactSaveService.ACTION_JOIN_SEVERAL_CONTACTS), 2);
+        mScheduler.submit(setStarred(2, true), 3);
+        // The join waits for the first action, and the last one waits for the join.
+        assertEquals(1, mExecutor.started.size());
+
+        mExecutor.run(0);
+        assertEquals(1, mExecutor.started.size());
+        mExecutor.run(0);
+        assertEquals(1, mExecutor.started.size());
+        mExecutor.run(0);
+        assertEquals(3, mCallbacks.size());
+    }
+
+    public void testLookupUriWithoutIdRunsAlone() {
+        final Uri lookupUri = Uri.withAppendedPath(Contacts.CONTENT_LOOKUP_URI, "0r1-2A3C");
+        final Intent byLookup = new Intent(ContactSaveService.ACTION_SET_STARRED)
+                .putExtra(ContactSaveService.EXTRA_CONTACT_URI, lookupUri)
+                .putExtra(ContactSaveService.EXTRA_STARRED_FLAG, true);
+        mScheduler.submit(setStarred(1, true), 1);
+        mScheduler.submit(byLookup, 2);
+        mScheduler.submit(new Intent(byLookup), 3);
+        // It may be the contact of the first action, so it waits, and isn't superseded.
+        assertEquals(1, mExecutor.started.size());
+        assertTrue(mSuperseded.isEmpty());
+
+        mExecutor.run(0);
+        assertEquals(1, mExecutor.started.size());
+        mExecutor.run(0);
+        mExecutor.run(0);
+        assertEquals(3, mCallbacks.size());
+    }
+
+    public void testLookupUriWithIdMatchesIdUri() {
+        final Uri lookupUri = Contacts.getLookupUri(1, "0r1-2A3C");
+        mScheduler.submit(setStarred(1, true), 1);
+        mScheduler.submit(new Intent(ContactSaveService.ACTION_SET_STARRED)
+                .putExtra(ContactSaveService.EXTRA_CONTACT_URI, lookupUri)
+                .putExtra(ContactSaveService.EXTRA_STARRED_FLAG, false), 2);
+        mScheduler.submit(setStarred(2, true), 3);
+        assertEquals(2, mExecutor.started.size());
+    }
+
+    public void testPrimaryChangesRunAloneAndAreKept() {
+        final Intent setPrimary = new Intent(ContactSaveService.ACTION_SET_SUPER_PRIMARY)
+                .putExtra(ContactSaveService.EXTRA_DATA_ID, 10L);
+        final Intent clearPrimary = new Intent(ContactSaveService.ACTION_CLEAR_PRIMARY)
+                .putExtra(ContactSaveService.EXTRA_DATA_ID, 11L);
+        mScheduler.submit(setStarred(1, true), 1);
+        mScheduler.submit(setPrimary, 2);
+        mScheduler.submit(clearPrimary, 3);
+        mScheduler.submit(new Intent(setPrimary), 4);
+        // Each primary change waits for everything before it, and none of them is dropped.
+        assertEquals(1, mExecutor.started.size());
+        assertTrue(mSuperseded.isEmpty());
+
+        for (int i = 0; i < 3; i++) {
+            mExecutor.run(0);
+            assertEquals(1, mExecutor.started.size());
+        }
+        mExecutor.run(0);
+        assertEquals(4, mCallbacks.size());
+        assertSame(clearPrimary, mCallbacks.get(2));
+    }
+
+    public void testCallbacksArriveInOrder() {
+        final Intent first = setStarred(1, true);
+        final Intent second = setStarred(2, true);
+        mScheduler.submit(first, 1);
+        mScheduler.submit(second, 2);
+
+        // The second action finishes first, its callback waits for the first one.
+        mExecutor.run(1);
+        assertTrue(mCallbacks.isEmpty());
+        assertTrue(mFinishedThrough.isEmpty());
+
+        mExecutor.run(0);
+        assertEquals(2, mCallbacks.size());
+        assertSame(first, mCallbacks.get(0));
+        assertSame(second, mCallbacks.get(1));
+        assertEquals(2, (int) mFinishedThrough.get(0));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentProviderOperation;
+import android.provider.ContactsContract.Data;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link SaveJournal}.
+ */
+@SmallTest
+public class SaveJournalTest extends AndroidTestCase {
+    private static final String FINGERPRINT = "test/build";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "SaveJournalTest");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static ArrayList<ContentProviderOperation> createOperations(int count) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            operations.add(ContentProviderOperation.newDelete(Data.CONTENT_URI)
+                    .withSelection(Data._ID + "=?", new String[] { String.valueOf(i) })
+                    .build());
+        }
+        return operations;
+    }
+
+    /** Writes a journal and leaves it open, as a process that died would. */
+    private SaveJournal createJournal() {
+        final SaveJournal journal = new SaveJournal(mFile, FINGERPRINT);
+        assertTrue(journal.recover().isEmpty());
+        return journal;
+    }
+
+    public void testUnfinishedSaveResumesFromLastBatch() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(3), true);
+        journal.onBatchApplied("a", 2, -1);
+
+        final List<SaveJournal.Entry> entries = new SaveJournal(mFile, FINGERPRINT).recover();
+        assertEquals(1, entries.size());
+        final SaveJournal.Entry entry = entries.get(0);
+        assertEquals("a", entry.saveId);
+        assertFalse(entry.finished);
+        assertEquals(2, entry.appliedCount);
+        assertEquals(3, entry.operations.size());
+        assertEquals(Data.CONTENT_URI, entry.operations.get(2).getUri());
+    }
+
+    public void testFinishedSaveIsNotResumed() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(1), false);
+        journal.end("a");
+        journal.begin("b", createOperations(1), false);
+
+        final List<SaveJournal.Entry> entries = new SaveJournal(mFile, FINGERPRINT).recover();
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).finished);
+        assertNull(entries.get(0).operations);
+        assertFalse(entries.get(1).finished);
+    }
+
+    public void testCommittedSingleTransactionSaveIsRecorded() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(2), false);
+        journal.onBatchApplied("a", 2, 7);
+        journal.begin("b", createOperations(2), false);
+
+        final List<SaveJournal.Entry> entries = new SaveJournal(mFile, FINGERPRINT).recover();
+        assertEquals(2, entries.size());
+        assertNull(entries.get(0).operations);
+        assertFalse(entries.get(0).finished);
+        assertEquals(2, entries.get(0).appliedCount);
+        assertEquals(7, entries.get(0).insertedRawContactId);
+        assertEquals(0, entries.get(1).appliedCount);
+        assertEquals(-1, entries.get(1).insertedRawContactId);
+    }
+
+    public void testInsertedRawContactIdOutlivesLaterBatches() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(3), true);
+        journal.onBatchApplied("a", 1, 7);
+        journal.onBatchApplied("a", 2, -1);
+        journal.end("a");
+
+        final SaveJournal.Entry entry = new SaveJournal(mFile, FINGERPRINT).recover().get(0);
+        assertTrue(entry.finished);
+        assertEquals(2, entry.appliedCount);
+        assertEquals(7, entry.insertedRawContactId);
+    }
+
+    public void testRetriedSaveStartsOver() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(3), true);
+        journal.onBatchApplied("a", 2, -1);
+        journal.begin("a", createOperations(4), true);
+
+        final SaveJournal.Entry entry = new SaveJournal(mFile, FINGERPRINT).recover().get(0);
+        assertEquals(0, entry.appliedCount);
+        assertEquals(4, entry.operations.size());
+    }
+
+    public void testTornRecordIsDropped() throws Exception {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(3), true);
+        journal.onBatchApplied("a", 1, -1);
+        final long length = mFile.length();
+        journal.onBatchApplied("a", 2, -1);
+        journal.close();
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(length + 5);
+        }
+
+        final SaveJournal reopened = new SaveJournal(mFile, FINGERPRINT);
+        assertEquals(1, reopened.recover().get(0).appliedCount);
+        assertEquals(length, mFile.length());
+
+        // New records follow the last intact one.
+        reopened.onBatchApplied("a", 3, -1);
+        assertEquals(3, new SaveJournal(mFile, FINGERPRINT).recover().get(0).appliedCount);
+    }
+
+    public void testCorruptRecordIsDropped() throws Exception {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(1), false);
+        journal.close();
+        try (FileOutputStream output = new FileOutputStream(mFile, true)) {
+            output.write(new byte[] { 0, 0, 0, 4, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0 });
+        }
+        assertEquals(1, new SaveJournal(mFile, FINGERPRINT).recover().size());
+    }
+
+    public void testJournalOfAnotherBuildIsDiscarded() {
+        final SaveJournal journal = createJournal();
+        journal.begin("a", createOperations(3), true);
+        journal.close();
+        assertTrue(new SaveJournal(mFile, "other/build").recover().isEmpty());
+    }
+}
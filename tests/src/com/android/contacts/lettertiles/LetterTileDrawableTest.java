@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.lettertiles;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for the shared tile cache of {@link LetterTileDrawable}.
+ */
+@SmallTest
+public class LetterTileDrawableTest extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        LetterTileDrawable.trimTileCache(true);
+    }
+
+    public void testSameTileIsShared() {
+        final Bitmap first = newDrawable('A').getTileBitmap(96, 96);
+        final Bitmap second = newDrawable('A').getTileBitmap(96, 96);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, LetterTileDrawable.getTileCacheCount());
+    }
+
+    public void testTilesAreKeyedByAppearance() {
+        final Bitmap tile = newDrawable('A').getTileBitmap(96, 96);
+        assertNotSame(tile, newDrawable('B').getTileBitmap(96, 96));
+        assertNotSame(tile, newDrawable('A').getTileBitmap(48, 48));
+        assertNotSame(tile, newDrawable('A').setIsCircular(true).getTileBitmap(96, 96));
+        assertNotSame(tile, newDrawable('A').setScale(0.5f).getTileBitmap(96, 96));
+        assertEquals(5, LetterTileDrawable.getTileCacheCount());
+    }
+
+    public void testTrimEvictsTiles() {
+        newDrawable('A').getTileBitmap(96, 96);
+        LetterTileDrawable.trimTileCache(true);
+        assertEquals(0, LetterTileDrawable.getTileCacheCount());
+    }
+
+    public void testLargeTilesAreNotCached() {
+        assertNull(newDrawable('A').getTileBitmap(4096, 4096));
+        assertEquals(0, LetterTileDrawable.getTileCacheCount());
+    }
+
+    private LetterTileDrawable newDrawable(char letter) {
+        return new LetterTileDrawable(getContext().getResources()).setLetter(letter);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.graphics.Typeface;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Spanned;
+import android.text.TextUtils.TruncateAt;
+import android.text.style.StyleSpan;
+import android.widget.TextView;
+
+import com.android.contacts.format.SpannedTestUtils;
+import com.android.contacts.util.ContactDisplayUtils;
+
+/**
+ * Tests for {@link BindTextBuffer}.
+ */
+@SmallTest
+public class BindTextBufferTest extends AndroidTestCase {
+    private static final char[][] NAMES = new char[][] {
+            "John Doe".toCharArray(), "Jane Roe".toCharArray(), "Doe Johnson".toCharArray() };
+
+    public void testSetAndHighlightPrefix() {
+        final BindTextBuffer buffer = createBuffer();
+        buffer.set("John Doe");
+        assertTrue(buffer.highlightPrefix("DOE"));
+
+        assertEquals("John Doe", buffer.getText().toString());
+        SpannedTestUtils.assertPrefixSpan(buffer.getText(), 5, 7);
+    }
+
+    public void testHighlightPrefixSkipsLeadingNonWordCharacters() {
+        final BindTextBuffer buffer = createBuffer();
+        buffer.set("John Doe");
+        assertTrue(buffer.highlightPrefix(" (DO"));
+        final Spanned text = (Spanned) buffer.getText();
+        final StyleSpan[] spans = text.getSpans(0, text.length(), StyleSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals(5, text.getSpanStart(spans[0]));
+        assertEquals(7, text.getSpanEnd(spans[0]));
+
+        buffer.set("John Doe");
+        assertFalse(buffer.highlightPrefix("SMITH"));
+        assertFalse(buffer.highlightPrefix(null));
+        assertEquals(0, ((Spanned) buffer.getText()).getSpans(0, 8, StyleSpan.class).length);
+    }
+
+    public void testSetFromCharArray() {
+        final BindTextBuffer buffer = createBuffer();
+        buffer.set(NAMES[2], 3);
+        assertEquals("Doe", buffer.getText().toString());
+    }
+
+    public void testPreviousTextIsKept() {
+        final BindTextBuffer buffer = createBuffer();
+        buffer.set("John Doe").highlight(0, 4);
+        final CharSequence first = buffer.getText();
+        buffer.set("Jane Roe");
+
+        assertEquals("John Doe", first.toString());
+        SpannedTestUtils.assertPrefixSpan(first, 0, 3);
+        assertEquals("Jane Roe", buffer.getText().toString());
+    }
+
+    public void testApply() {
+        final TextView view = new TextView(getContext());
+        final BindTextBuffer buffer = new BindTextBuffer(view, Typeface.BOLD);
+        buffer.set("John Doe").highlightPrefix("JO");
+        buffer.apply(true);
+
+        // The view shows the buffer itself rather than a copy.
+        assertSame(buffer.getText(), view.getText());
+        final Spanned text = (Spanned) view.getText();
+        assertEquals(0, text.getSpanStart(TruncateAt.MARQUEE));
+        assertEquals(8, text.getSpanEnd(TruncateAt.MARQUEE));
+
+        buffer.set("Jane Roe");
+        buffer.apply(false);
+        assertEquals("Jane Roe", view.getText().toString());
+        assertEquals(-1, ((Spanned) view.getText()).getSpanStart(TruncateAt.MARQUEE));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testRebindDoesNotAllocate() {
+        final BindTextBuffer buffer = createBuffer();
+        // Let the builders and the span pool grow to their final size.
+        for (int i = 0; i < 10; i++) {
+            bind(buffer, i);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 100; i++) {
+            bind(buffer, i);
+        }
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, allocations);
+    }
+
+    /** Binds a row the way {@link ContactListItemView} binds its name. */
+    private static void bind(BindTextBuffer buffer, int row) {
+        final char[] name = NAMES[row % NAMES.length];
+        buffer.set(name, name.length);
+        buffer.highlightPrefix("DOE");
+        buffer.highlight(0, 1);
+        ContactDisplayUtils.isPossiblePhoneNumber(buffer.getText());
+    }
+
+    private BindTextBuffer createBuffer() {
+        return new BindTextBuffer(new TextView(getContext()), Typeface.BOLD);
+    }
+}
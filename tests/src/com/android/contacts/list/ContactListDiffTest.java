@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactListDiff}.
+ */
+@SmallTest
+public class ContactListDiffTest extends AndroidTestCase {
+    private static final String[] COLUMNS = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, Contacts.PHOTO_ID };
+
+    /** Builds a result from id and name pairs. */
+    private static ContactListDiff.Snapshot snapshot(Object... idsAndNames) {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < idsAndNames.length; i += 2) {
+            cursor.addRow(new Object[] { idsAndNames[i], idsAndNames[i + 1], null });
+        }
+        cursor.moveToPosition(1);
+        final ContactListDiff.Snapshot snapshot = ContactListDiff.Snapshot.of(cursor);
+        assertEquals(1, cursor.getPosition());
+        return snapshot;
+    }
+
+    public void testFirstResultIsAllChanged() {
+        final ContactListDiff diff = ContactListDiff.compute(null, snapshot(1L, "Ann", 2L, "Bob"));
+        assertEquals(2, diff.getChangedRowCount());
+        assertFalse(diff.isUnchanged());
+        assertFalse(diff.hasMovedRows());
+        assertEquals(-1, diff.getNewPosition(0));
+    }
+
+    public void testSameResultIsUnchanged() {
+        final ContactListDiff diff = ContactListDiff.compute(
+                snapshot(1L, "Ann", 2L, "Bob"), snapshot(1L, "Ann", 2L, "Bob"));
+        assertTrue(diff.isUnchanged());
+        assertEquals(0, diff.getChangedRowCount());
+    }
+
+    public void testChangedRowsInPlace() {
+        final ContactListDiff diff = ContactListDiff.compute(
+                snapshot(1L, "Ann", 2L, "Bob", 3L, "Cid"),
+                snapshot(1L, "Ann", 2L, "Bobby", 3L, "Cid"));
+        assertFalse(diff.isUnchanged());
+        assertFalse(diff.hasMovedRows());
+        assertEquals(1, diff.getChangedRowCount());
+        assertEquals(2, diff.getNewPosition(2));
+    }
+
+    public void testInsertedAndRemovedRows() {
+        final ContactListDiff diff = ContactListDiff.compute(
+                snapshot(1L, "Ann", 2L, "Bob", 3L, "Cid"),
+                snapshot(4L, "Aaron", 1L, "Ann", 3L, "Cid"));
+        assertTrue(diff.hasMovedRows());
+        // Aaron was inserted, Bob removed.
+        assertEquals(2, diff.getChangedRowCount());
+        assertEquals(1, diff.getNewPosition(0));
+        assertEquals(-1, diff.getNewPosition(1));
+        assertEquals(2, diff.getNewPosition(2));
+    }
+
+    public void testRowsOfTheSameContactAreToldApart() {
+        // Ann is a favorite, and also in the full list.
+        final ContactListDiff diff = ContactListDiff.compute(
+                snapshot(1L, "Ann", 1L, "Ann", 2L, "Bob"),
+                snapshot(1L, "Ann", 5L, "Abe", 1L, "Ann", 2L, "Bob"));
+        assertEquals(1, diff.getChangedRowCount());
+        assertEquals(0, diff.getNewPosition(0));
+        assertEquals(2, diff.getNewPosition(1));
+        assertEquals(3, diff.getNewPosition(2));
+    }
+}
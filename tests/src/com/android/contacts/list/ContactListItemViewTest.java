@@ -18,9 +18,11 @@ package com.android.contacts.list;
 
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.os.Debug;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.LargeTest;
+import android.view.View;
 import android.widget.TextView;
 
 import com.android.contacts.format.SpannedTestUtils;
@@ -34,6 +36,10 @@ import com.android.contacts.preference.ContactsPreferences;
  */
 @LargeTest
 public class ContactListItemViewTest extends AndroidTestCase {
+    private static final String[] REBIND_NAMES = new String[] {
+            "John Doe", "Jane Roe", "Doe Johnson" };
+    private static final String[] REBIND_SNIPPETS = new String[] {
+            "doe@example.com", "jane.doe@example.com" };
 
     //private IntegrationTestUtils mUtils;
 
@@ -81,10 +87,38 @@ public class ContactListItemViewTest extends AndroidTestCase {
         assertEquals("John Doe", seq.toString());
         SpannedTestUtils.assertPrefixSpan(seq, 5, 7);
         // Talback should be without span tags.
-        assertEquals("John Doe", view.getNameTextView().getContentDescription());
+        assertEquals("John Doe", getAccessibilityDescription(view.getNameTextView()));
         assertFalse("John Doe".equals(seq));
     }
 
+    public void testShowDisplayName_Rebind() {
+        ContactListItemView view = createView();
+        view.setHighlightedPrefix("DOE");
+        view.showDisplayName(createCursor("John Doe", "Doe John"), 0,
+                ContactsPreferences.DISPLAY_ORDER_PRIMARY);
+        CharSequence first = view.getNameTextView().getText();
+
+        view.setHighlightedPrefix("JA");
+        view.showDisplayName(createCursor("Jane Roe", "Roe Jane"), 0,
+                ContactsPreferences.DISPLAY_ORDER_PRIMARY);
+
+        CharSequence seq = view.getNameTextView().getText();
+        assertEquals("Jane Roe", seq.toString());
+        SpannedTestUtils.assertPrefixSpan(seq, 0, 1);
+        // The text shown before is left as it was.
+        assertEquals("John Doe", first.toString());
+        assertEquals("Jane Roe", getAccessibilityDescription(view.getNameTextView()));
+    }
+
+    public void testSetDisplayName_PhoneNumber() {
+        ContactListItemView view = createView();
+        view.setDisplayName("555-1234");
+
+        assertNull(view.getNameTextView().getContentDescription());
+        CharSequence description = getAccessibilityDescription(view.getNameTextView());
+        assertEquals("555-1234", description.toString());
+    }
+
     public void testShowDisplayName_WithPrefixReversed() {
         Cursor cursor = createCursor("John Doe", "Doe John");
         ContactListItemView view = createView();
@@ -108,6 +142,53 @@ public class ContactListItemViewTest extends AndroidTestCase {
         SpannedTestUtils.assertPrefixSpan(seq, 10, 13);
     }
 
+    @SuppressWarnings("deprecation")
+    public void testRebindDoesNotAllocate() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "Name" });
+        for (String name : REBIND_NAMES) {
+            cursor.addRow(new Object[] { name });
+        }
+        final ContactListItemView view = createView();
+        // Let the buffers, the highlight spans and the views grow to their final size.
+        for (int i = 0; i < 10; i++) {
+            rebind(view, cursor, i);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 100; i++) {
+            rebind(view, cursor, i);
+        }
+        final int rebindAllocations = Debug.getThreadAllocCount();
+
+        // TextView.setText allocates for its span watchers, which the view can't avoid. Show
+        // the same texts again to count them.
+        final TextView nameView = view.getNameTextView();
+        final TextView snippetView = view.getSnippetView();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 100; i++) {
+            nameView.setText(nameView.getText(), TextView.BufferType.SPANNABLE);
+            snippetView.setText(snippetView.getText(), TextView.BufferType.SPANNABLE);
+        }
+        final int setTextAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertTrue("Rebinding allocated " + rebindAllocations + " objects, setText alone "
+                + setTextAllocations, rebindAllocations <= setTextAllocations);
+    }
+
+    /** Binds a row the way the contact list adapters do, with a highlighted prefix. */
+    private static void rebind(ContactListItemView view, Cursor cursor, int row) {
+        cursor.moveToPosition(row % REBIND_NAMES.length);
+        view.setHighlightedPrefix("DOE");
+        view.showDisplayName(cursor, 0, ContactsPreferences.DISPLAY_ORDER_PRIMARY);
+        view.setSnippet(REBIND_SNIPPETS[row % REBIND_SNIPPETS.length]);
+    }
+
+    private static CharSequence getAccessibilityDescription(View view) {
+        return view.createAccessibilityNodeInfo().getContentDescription();
+    }
+
     /** Creates the view to be tested. */
     private ContactListItemView createView() {
         ContactListItemView view = new ContactListItemView(getContext());
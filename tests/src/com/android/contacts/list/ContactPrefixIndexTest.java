@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Nickname;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link ContactPrefixIndex}.
+ */
+@SmallTest
+public class ContactPrefixIndexTest extends AndroidTestCase {
+    private static final String[] LIST_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.DISPLAY_NAME_PRIMARY,
+            Contacts.CONTACT_PRESENCE,
+            Contacts.CONTACT_STATUS,
+            Contacts.PHOTO_ID,
+            Contacts.PHOTO_THUMBNAIL_URI,
+            Contacts.LOOKUP_KEY,
+            Contacts.PHONETIC_NAME,
+            Contacts.STARRED,
+    };
+
+    private static final String[] SEARCH_PROJECTION;
+    static {
+        SEARCH_PROJECTION = Arrays.copyOf(LIST_PROJECTION, LIST_PROJECTION.length + 1);
+        SEARCH_PROJECTION[LIST_PROJECTION.length] = SearchSnippets.SNIPPET;
+    }
+
+    private static final ContactPrefixIndex.ListQuery LIST_QUERY =
+            new ContactPrefixIndex.ListQuery(Contacts.CONTENT_URI, null, null,
+                    Contacts.SORT_KEY_PRIMARY);
+
+    /** Background loads are driven by the tests. */
+    private static final Executor NO_OP_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+
+    private ContactPrefixIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ContactPrefixIndex(getContext().getContentResolver(), NO_OP_EXECUTOR);
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList("jose", "garcia", "lopez"),
+                ContactPrefixIndex.tokenize("Jos\u00e9 Garc\u00eda-L\u00f3pez"));
+        assertTrue(ContactPrefixIndex.tokenize(null).isEmpty());
+    }
+
+    public void testIsPhoneNumberLike() {
+        assertTrue(ContactPrefixIndex.isPhoneNumberLike("(650) 555-12"));
+        assertTrue(ContactPrefixIndex.isPhoneNumberLike("+1 650"));
+        assertFalse(ContactPrefixIndex.isPhoneNumberLike("john 5"));
+        assertFalse(ContactPrefixIndex.isPhoneNumberLike("-"));
+    }
+
+    public void testNoResultsUntilComplete() {
+        mIndex.updateFromContactList(newContactList(), LIST_QUERY, 1, 1);
+        assertNull(mIndex.query("jo", SEARCH_PROJECTION, 1, 1));
+    }
+
+    public void testMatchesNamePrefixesInListOrder() {
+        loadIndex();
+        assertEquals(Arrays.asList(1L, 3L), queryIds("jo"));
+        assertEquals(Arrays.asList(3L), queryIds("jo sm"));
+        assertEquals(Arrays.asList(2L), queryIds("ALI"));
+        assertTrue(queryIds("x").isEmpty());
+    }
+
+    public void testMatchesNicknamesAndNumbersWithSnippet() {
+        loadIndex();
+        final Cursor byNickname = mIndex.query("bud", SEARCH_PROJECTION, 1, 1);
+        assertTrue(byNickname.moveToFirst());
+        assertEquals(2, byNickname.getLong(0));
+        assertEquals("Buddy",
+                byNickname.getString(ContactListAdapter.ContactQuery.CONTACT_SNIPPET));
+        assertTrue(byNickname.getExtras().getBoolean(ContactsContract.DEFERRED_SNIPPETING));
+
+        assertEquals(Arrays.asList(3L), queryIds("650-555"));
+        assertEquals(Arrays.asList(3L), queryIds("+1650"));
+    }
+
+    public void testOtherOrderIsNotServed() {
+        loadIndex();
+        assertNull(mIndex.query("jo", SEARCH_PROJECTION, 2, 1));
+        assertNull(mIndex.query("jo", SEARCH_PROJECTION, 1, 2));
+    }
+
+    public void testReloadRemovesDeletedContacts() {
+        loadIndex();
+        final MatrixCursor list = new MatrixCursor(LIST_PROJECTION);
+        addContact(list, 3, "John Smith");
+        mIndex.updateFromContactList(list, LIST_QUERY, 1, 1);
+        assertEquals(Arrays.asList(3L), queryIds("jo"));
+    }
+
+    private void loadIndex() {
+        mIndex.updateFromContactList(newContactList(), LIST_QUERY, 1, 1);
+        final Map<Long, List<String[]>> data = new HashMap<>();
+        data.put(2L, Arrays.<String[]>asList(
+                new String[] { Nickname.CONTENT_ITEM_TYPE, "Buddy", null }));
+        data.put(3L, Arrays.<String[]>asList(
+                new String[] { Phone.CONTENT_ITEM_TYPE, "(650) 555-1234", "+16505551234" }));
+        mIndex.onDataLoaded(data, System.currentTimeMillis());
+    }
+
+    private List<Long> queryIds(String query) {
+        final Cursor cursor = mIndex.query(query, SEARCH_PROJECTION, 1, 1);
+        final List<Long> ids = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private static MatrixCursor newContactList() {
+        final MatrixCursor list = new MatrixCursor(LIST_PROJECTION);
+        addContact(list, 1, "Joan Adams");
+        addContact(list, 2, "Alice Brown");
+        addContact(list, 3, "John Smith");
+        return list;
+    }
+
+    private static void addContact(MatrixCursor list, long id, String name) {
+        list.addRow(new Object[] { id, name, null, null, 0L, null, "lookup" + id, null, 0L });
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link ContactsSectionIndexer}.
+ */
+@SmallTest
+public class ContactsSectionIndexerTest extends AndroidTestCase {
+
+    public void testPositionInIndex() {
+        final ContactsSectionIndexer stale = new ContactsSectionIndexer(
+                new String[] { "A", "B", "C" }, new int[] { 3, 4, 2 });
+        final ContactsSectionIndexer fresh = new ContactsSectionIndexer(
+                new String[] { "A", "C", "D" }, new int[] { 5, 1, 2 });
+        // Second row of A.
+        assertEquals(1, stale.getPositionInIndex(fresh, 1));
+        // B is gone.
+        assertEquals(-1, stale.getPositionInIndex(fresh, 4));
+        // Second row of C, which now only has one.
+        assertEquals(5, stale.getPositionInIndex(fresh, 8));
+        assertEquals(-1, stale.getPositionInIndex(fresh, 9));
+    }
+}
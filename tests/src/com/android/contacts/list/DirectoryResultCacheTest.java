@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link DirectoryResultCache}.
+ */
+@SmallTest
+public class DirectoryResultCacheTest extends AndroidTestCase {
+    private static final long DIRECTORY = 10;
+    private static final long OTHER_DIRECTORY = 11;
+
+    private static final String[] COLUMNS = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, Data.DATA1, Contacts.PHOTO_ID };
+
+    private static MatrixCursor createResults() {
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] { 1L, "John Smith", "john@example.com", 5L });
+        cursor.addRow(new Object[] { 2L, "Johanna Jones", "jo@example.com", null });
+        cursor.addRow(new Object[] { 3L, "Joe Bloggs", "(555) 123-4567", null });
+        return cursor;
+    }
+
+    public void testNormalize() {
+        assertEquals("john smith", DirectoryResultCache.normalize("  John   Smith "));
+        assertEquals("", DirectoryResultCache.normalize(null));
+    }
+
+    public void testExactQueryReturnsAllRows() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+
+        final DirectoryResultCache.CachedResultCursor cursor = cache.get(DIRECTORY, "Jo ");
+        assertNotNull(cursor);
+        assertTrue(cursor.isExact());
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1L, cursor.getLong(0));
+        assertEquals("John Smith", cursor.getString(1));
+        assertEquals(5L, cursor.getLong(3));
+        assertTrue(cursor.moveToNext());
+        assertTrue(cursor.isNull(3));
+    }
+
+    public void testNarrowerQueryFiltersBroaderResults() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+
+        final DirectoryResultCache.CachedResultCursor john = cache.get(DIRECTORY, "joh");
+        assertFalse(john.isExact());
+        assertEquals(2, john.getCount());
+
+        final Cursor smith = cache.get(DIRECTORY, "john sm");
+        assertEquals(1, smith.getCount());
+        assertTrue(smith.moveToFirst());
+        assertEquals(1L, smith.getLong(0));
+
+        final Cursor number = cache.get(DIRECTORY, "jo 5551");
+        assertEquals(1, number.getCount());
+        assertTrue(number.moveToFirst());
+        assertEquals(3L, number.getLong(0));
+    }
+
+    public void testLongestCachedPrefixIsUsed() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+        final MatrixCursor johns = new MatrixCursor(COLUMNS);
+        johns.addRow(new Object[] { 4L, "Johnny Cash", null, null });
+        cache.put(DIRECTORY, "john", johns);
+
+        final Cursor cursor = cache.get(DIRECTORY, "johnn");
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(4L, cursor.getLong(0));
+    }
+
+    public void testDirectoriesAreSeparate() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+        assertNull(cache.get(OTHER_DIRECTORY, "jo"));
+        assertNull(cache.get(DIRECTORY, "smith"));
+        assertNull(cache.get(DIRECTORY, ""));
+    }
+
+    public void testCachedResultsAreNotStoredAgain() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+        cache.put(DIRECTORY, "joh", cache.get(DIRECTORY, "joh"));
+        assertEquals(1, cache.size());
+        assertFalse(cache.get(DIRECTORY, "joh").isExact());
+    }
+
+    public void testLargeResultsAreNotCached() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i <= DirectoryResultCache.MAX_ROWS; i++) {
+            cursor.addRow(new Object[] { (long) i, "Jo " + i, null, null });
+        }
+        cache.put(DIRECTORY, "jo", cursor);
+        assertEquals(0, cache.size());
+    }
+
+    public void testEntriesExpire() {
+        final DirectoryResultCache cache = new DirectoryResultCache(0);
+        cache.put(DIRECTORY, "jo", createResults());
+        assertNull(cache.get(DIRECTORY, "jo"));
+        assertNull(cache.get(DIRECTORY, "john"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testClear() {
+        final DirectoryResultCache cache = new DirectoryResultCache();
+        cache.put(DIRECTORY, "jo", createResults());
+        cache.clear();
+        assertNull(cache.get(DIRECTORY, "jo"));
+    }
+}
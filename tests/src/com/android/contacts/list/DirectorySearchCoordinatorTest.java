@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DirectorySearchCoordinator}, with stub directories.
+ */
+@SmallTest
+public class DirectorySearchCoordinatorTest extends AndroidTestCase {
+    private static final long FAST_DIRECTORY = 10;
+    private static final long SLOW_DIRECTORY = 11;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ExecutorService mExecutor;
+
+    /** Records the results, on the handler's thread. */
+    private static class RecordingListener implements DirectorySearchCoordinator.Listener {
+        final List<Long> loaded = new ArrayList<>();
+        final List<Long> timedOut = new ArrayList<>();
+        final CountDownLatch done;
+
+        RecordingListener(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onDirectoryLoaded(long directoryId, Cursor cursor) {
+            loaded.add(directoryId);
+            if (cursor != null) {
+                cursor.close();
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void onDirectoryTimedOut(long directoryId) {
+            timedOut.add(directoryId);
+            done.countDown();
+        }
+    }
+
+    /** A directory that answers after a delay, unless cancelled. */
+    private static class StubDirectory implements DirectorySearchCoordinator.DirectoryQuery {
+        final long delayMillis;
+        final List<Cursor> cursors = new ArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile CountDownLatch release;
+
+        StubDirectory(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public Cursor query(CancellationSignal signal) {
+            started.countDown();
+            try {
+                if (release != null) {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                final long end = SystemClock.uptimeMillis() + delayMillis;
+                while (SystemClock.uptimeMillis() < end) {
+                    signal.throwIfCanceled();
+                    Thread.sleep(5);
+                }
+            } catch (InterruptedException e) {
+                throw new OperationCanceledException();
+            }
+            final MatrixCursor cursor = new MatrixCursor(new String[] { "_id" });
+            cursor.addRow(new Object[] { 1 });
+            synchronized (cursors) {
+                cursors.add(cursor);
+            }
+            return cursor;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("DirectorySearchCoordinatorTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testDebounceFollowsTypingSpeed() {
+        assertEquals(DirectorySearchCoordinator.DEFAULT_DEBOUNCE_MILLIS,
+                DirectorySearchCoordinator.computeDebounceMillis(-1, -1));
+        assertEquals(150, DirectorySearchCoordinator.computeDebounceMillis(100, -1));
+        assertEquals(DirectorySearchCoordinator.MIN_DEBOUNCE_MILLIS,
+                DirectorySearchCoordinator.computeDebounceMillis(10, -1));
+        assertEquals(DirectorySearchCoordinator.MAX_DEBOUNCE_MILLIS,
+                DirectorySearchCoordinator.computeDebounceMillis(900, -1));
+    }
+
+    public void testSlowDirectoriesAreDebouncedLonger() {
+        assertEquals(150 + 100, DirectorySearchCoordinator.computeDebounceMillis(100, 400));
+        assertEquals(150 + 300, DirectorySearchCoordinator.computeDebounceMillis(100, 10000));
+    }
+
+    public void testDeadlineFollowsLatency() {
+        assertEquals(5000, DirectorySearchCoordinator.computeDeadlineMillis(-1, 2000, 5000));
+        assertEquals(2000, DirectorySearchCoordinator.computeDeadlineMillis(100, 2000, 5000));
+        assertEquals(3000, DirectorySearchCoordinator.computeDeadlineMillis(1000, 2000, 5000));
+        assertEquals(5000, DirectorySearchCoordinator.computeDeadlineMillis(4000, 2000, 5000));
+    }
+
+    public void testSlowDirectoryDoesNotHoldUpFastOne() throws Exception {
+        final RecordingListener listener = new RecordingListener(2);
+        final DirectorySearchCoordinator coordinator =
+                new DirectorySearchCoordinator(listener, mExecutor, mHandler, 200, 200);
+        final StubDirectory fast = new StubDirectory(0);
+        final StubDirectory slow = new StubDirectory(2000);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                coordinator.search(SLOW_DIRECTORY, slow, false);
+                coordinator.search(FAST_DIRECTORY, fast, false);
+            }
+        });
+
+        assertTrue(listener.done.await(2, TimeUnit.SECONDS));
+        runOnHandlerSync(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(1, listener.loaded.size());
+                assertEquals(FAST_DIRECTORY, (long) listener.loaded.get(0));
+                assertEquals(1, listener.timedOut.size());
+                assertEquals(SLOW_DIRECTORY, (long) listener.timedOut.get(0));
+                assertFalse(coordinator.isSearching(SLOW_DIRECTORY));
+            }
+        });
+        assertTrue(slow.cursors.isEmpty());
+    }
+
+    public void testSupersededResultsAreDropped() throws Exception {
+        final RecordingListener listener = new RecordingListener(1);
+        final DirectorySearchCoordinator coordinator =
+                new DirectorySearchCoordinator(listener, mExecutor, mHandler);
+        final StubDirectory stale = new StubDirectory(0);
+        stale.release = new CountDownLatch(1);
+        final StubDirectory current = new StubDirectory(0);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                coordinator.search(FAST_DIRECTORY, stale, false);
+            }
+        });
+        assertTrue(stale.started.await(2, TimeUnit.SECONDS));
+        runOnHandlerSync(new Runnable() {
+            @Override
+            public void run() {
+                coordinator.onQueryChanged();
+                coordinator.search(FAST_DIRECTORY, current, false);
+            }
+        });
+        // The stale query ignores its cancellation and answers anyway.
+        stale.release.countDown();
+
+        assertTrue(listener.done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, current.cursors.size());
+        // Let the stale result reach the handler.
+        Thread.sleep(100);
+        runOnHandlerSync(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(1, listener.loaded.size());
+            }
+        });
+        synchronized (stale.cursors) {
+            for (Cursor cursor : stale.cursors) {
+                assertTrue(cursor.isClosed());
+            }
+        }
+    }
+
+    public void testDebouncedSearchIsNotSentIfSuperseded() throws Exception {
+        final RecordingListener listener = new RecordingListener(1);
+        final DirectorySearchCoordinator coordinator =
+                new DirectorySearchCoordinator(listener, mExecutor, mHandler);
+        final StubDirectory first = new StubDirectory(0);
+        final StubDirectory second = new StubDirectory(0);
+
+        runOnHandlerSync(new Runnable() {
+            @Override
+            public void run() {
+                coordinator.search(FAST_DIRECTORY, first, true);
+                coordinator.onQueryChanged();
+                coordinator.search(FAST_DIRECTORY, second, true);
+            }
+        });
+
+        assertTrue(listener.done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, first.started.getCount());
+        assertEquals(0, second.started.getCount());
+    }
+
+    private void runOnHandlerSync(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] failure = new Throwable[1];
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        } else if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.LoaderTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link FavoritesAndContactsLoader} against a provider that tells whether the
+ * favorites and contacts queries run at the same time.
+ */
+@LargeTest
+public class FavoritesAndContactsLoaderTest extends LoaderTestCase {
+    /** How long a query waits for the other one to start before giving up. */
+    private static final long OVERLAP_TIMEOUT_SECONDS = 10;
+    private static final String[] PROJECTION = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY, Contacts.STARRED };
+
+    /**
+     * Answers starred contacts if asked for them. Each query waits for the other one to start,
+     * so they only both return quickly if they run concurrently.
+     */
+    private static class OverlappingContactsProvider extends MockContentProvider {
+        final CountDownLatch favoritesStarted = new CountDownLatch(1);
+        final CountDownLatch contactsStarted = new CountDownLatch(1);
+        volatile boolean favoritesSawContacts;
+        volatile boolean contactsSawFavorites;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            final boolean favorites = selection != null && selection.startsWith(Contacts.STARRED);
+            try {
+                if (favorites) {
+                    favoritesStarted.countDown();
+                    favoritesSawContacts =
+                            contactsStarted.await(OVERLAP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } else {
+                    contactsStarted.countDown();
+                    contactsSawFavorites =
+                            favoritesStarted.await(OVERLAP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final MatrixCursor cursor = new MatrixCursor(projection);
+            if (favorites) {
+                cursor.addRow(new Object[] { 2L, "Bob", 1 });
+            } else {
+                cursor.addRow(new Object[] { 1L, "Ann", 0 });
+                cursor.addRow(new Object[] { 2L, "Bob", 1 });
+            }
+            return cursor;
+        }
+    }
+
+    private OverlappingContactsProvider mProvider;
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MockContentResolver resolver = new MockContentResolver();
+        mProvider = new OverlappingContactsProvider();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+    }
+
+    private FavoritesAndContactsLoader createLoader() {
+        final FavoritesAndContactsLoader loader = new FavoritesAndContactsLoader(mContext);
+        loader.setUri(Contacts.CONTENT_URI);
+        loader.setProjection(PROJECTION);
+        loader.setLoadFavorites(true);
+        return loader;
+    }
+
+    public void testFavoritesComeFirst() {
+        final Cursor cursor = getLoaderResultSynchronously(createLoader());
+        try {
+            assertEquals(3, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(2L, cursor.getLong(0));
+            assertTrue(cursor.moveToNext());
+            assertEquals(1L, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testQueriesRunConcurrently() {
+        getLoaderResultSynchronously(createLoader()).close();
+
+        // Each query was still running when the other one started.
+        assertTrue(mProvider.favoritesSawContacts);
+        assertTrue(mProvider.contactsSawFavorites);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link FirstPageCursor}.
+ */
+@SmallTest
+public class FirstPageCursorTest extends AndroidTestCase {
+    private static final String[] COLUMNS = new String[] {
+            Contacts._ID, Contacts.DISPLAY_NAME_PRIMARY };
+
+    /** A page of results with the given address book index counts. */
+    private static MatrixCursor createPage(int rows, int[] counts) {
+        final Bundle extras = new Bundle();
+        if (counts != null) {
+            extras.putStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES,
+                    new String[counts.length]);
+            extras.putIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS, counts);
+        }
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+        for (int i = 0; i < rows; i++) {
+            cursor.addRow(new Object[] { (long) i + 1, "Contact " + i });
+        }
+        return cursor;
+    }
+
+    public void testPageIsPaddedToFullSize() {
+        final MatrixCursor page = createPage(2, new int[] { 3, 2 });
+        final Cursor cursor = FirstPageCursor.wrap(page);
+        assertEquals(5, cursor.getCount());
+        assertSame(page.getExtras(), cursor.getExtras());
+
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals(2L, cursor.getLong(0));
+        assertEquals("Contact 1", cursor.getString(1));
+        assertFalse(cursor.isNull(0));
+
+        assertTrue(cursor.moveToPosition(4));
+        assertTrue(cursor.isNull(0));
+        assertNull(cursor.getString(1));
+        assertEquals(Cursor.FIELD_TYPE_NULL, cursor.getType(0));
+        assertFalse(cursor.moveToNext());
+
+        cursor.close();
+        assertTrue(page.isClosed());
+    }
+
+    public void testCompletePageIsReturnedAsIs() {
+        final MatrixCursor page = createPage(2, new int[] { 2 });
+        assertSame(page, FirstPageCursor.wrap(page));
+    }
+
+    public void testPageIsPaddedToGivenIndex() {
+        final MatrixCursor page = createPage(2, null);
+        final Bundle index = createPage(0, new int[] { 4, 3 }).getExtras();
+        final Cursor cursor = FirstPageCursor.wrap(page, index, 2);
+        assertEquals(7, cursor.getCount());
+        assertSame(index, cursor.getExtras());
+        // A short page is the full list, whatever the index says.
+        assertEquals(1, FirstPageCursor.wrap(createPage(1, null), index, 2).getCount());
+    }
+
+    public void testUnknownSize() {
+        assertNull(FirstPageCursor.wrap(createPage(2, null)));
+    }
+}
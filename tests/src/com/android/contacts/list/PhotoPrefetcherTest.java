@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link PhotoPrefetcher}.
+ */
+@SmallTest
+public class PhotoPrefetcherTest extends AndroidTestCase {
+    public void testWindowIsAtLeastAScreenful() {
+        assertEquals(10, PhotoPrefetcher.getWindowSize(1f, 10));
+        assertEquals(10, PhotoPrefetcher.getWindowSize(-1f, 10));
+    }
+
+    public void testWindowFollowsSpeed() {
+        // 60 items per second cover 30 items in the lookahead period, in either direction.
+        assertEquals(30, PhotoPrefetcher.getWindowSize(60f, 10));
+        assertEquals(30, PhotoPrefetcher.getWindowSize(-60f, 10));
+    }
+
+    public void testWindowIsCapped() {
+        assertEquals(PhotoPrefetcher.MAX_PREFETCH_ITEMS,
+                PhotoPrefetcher.getWindowSize(10000f, 10));
+    }
+}
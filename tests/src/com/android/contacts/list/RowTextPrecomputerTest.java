@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils.TruncateAt;
+import android.text.style.StyleSpan;
+import android.util.TypedValue;
+import android.widget.TextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link RowTextPrecomputer}.
+ */
+@SmallTest
+public class RowTextPrecomputerTest extends AndroidTestCase {
+    /** Runs the tasks when told to. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private ManualExecutor mExecutor;
+    private RowTextPrecomputer mPrecomputer;
+    private PrecomputedTextCompat.Params mParams;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new ManualExecutor();
+        mPrecomputer = new RowTextPrecomputer(mExecutor);
+        mParams = TextViewCompat.getTextMetricsParams(new TextView(getContext()));
+    }
+
+    public void testPrecomputeHighlightsPrefix() {
+        final PrecomputedTextCompat text =
+                RowTextPrecomputer.precompute("John Doe", " DO", true, mParams);
+        assertEquals("John Doe", text.toString());
+        final StyleSpan[] spans = text.getSpans(0, text.length(), StyleSpan.class);
+        assertEquals(1, spans.length);
+        assertEquals(5, text.getSpanStart(spans[0]));
+        assertEquals(7, text.getSpanEnd(spans[0]));
+        assertEquals(0, text.getSpanStart(TruncateAt.MARQUEE));
+        assertEquals(8, text.getSpanEnd(TruncateAt.MARQUEE));
+
+        final PrecomputedTextCompat plain = RowTextPrecomputer.precompute("John Doe", null,
+                false, mParams);
+        assertEquals(0, plain.getSpans(0, plain.length(), StyleSpan.class).length);
+        assertEquals(-1, plain.getSpanStart(TruncateAt.MARQUEE));
+    }
+
+    public void testNothingIsPrefetchedBeforeAViewAsks() {
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), null);
+        assertTrue(mExecutor.tasks.isEmpty());
+    }
+
+    public void testPrefetchedTextIsReturned() {
+        assertNull(mPrecomputer.get("John Doe", null, true, mParams));
+        mPrecomputer.prefetch(Arrays.asList("John Doe", "Jane Roe", "John Doe"), null);
+        assertEquals(2, mExecutor.tasks.size());
+        mExecutor.runAll();
+
+        assertEquals("Jane Roe", mPrecomputer.get("Jane Roe", null, true, mParams).toString());
+        assertNotNull(mPrecomputer.get("John Doe", null, true, mParams));
+        // A different prefix is a different text.
+        assertNull(mPrecomputer.get("John Doe", "DOE", true, mParams));
+
+        // Cached texts aren't measured again.
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), null);
+        assertTrue(mExecutor.tasks.isEmpty());
+    }
+
+    public void testLookupMatchesAnyCharSequence() {
+        mPrecomputer.get("John Doe", null, true, mParams);
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), null);
+        mExecutor.runAll();
+
+        final SpannableStringBuilder name = new SpannableStringBuilder("John Doe");
+        assertNotNull(mPrecomputer.get(name, null, true, mParams));
+        // Names that ellipsize differently are measured separately.
+        assertNull(mPrecomputer.get(name, null, false, mParams));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testLookupDoesNotAllocate() {
+        mPrecomputer.get("John Doe", "DO", true, mParams);
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), "DO");
+        mExecutor.runAll();
+        final SpannableStringBuilder name = new SpannableStringBuilder("John Doe");
+        assertNotNull(mPrecomputer.get(name, "DO", true, mParams));
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 100; i++) {
+            mPrecomputer.get(name, "DO", true, mParams);
+        }
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, allocations);
+    }
+
+    public void testDifferentAppearanceIsNotReturned() {
+        mPrecomputer.get("John Doe", null, true, mParams);
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), null);
+        mExecutor.runAll();
+
+        final TextView largeView = new TextView(getContext());
+        largeView.setTextSize(TypedValue.COMPLEX_UNIT_PX, largeView.getTextSize() * 2);
+        final PrecomputedTextCompat.Params largeParams =
+                TextViewCompat.getTextMetricsParams(largeView);
+        assertNull(mPrecomputer.get("John Doe", null, true, largeParams));
+        assertNotNull(mPrecomputer.get("John Doe", null, true, mParams));
+    }
+
+    public void testClearDropsPendingResults() {
+        mPrecomputer.get("John Doe", null, true, mParams);
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), null);
+        mPrecomputer.clear();
+        mExecutor.runAll();
+        assertEquals(0, mPrecomputer.size());
+        assertNull(mPrecomputer.get("John Doe", null, true, mParams));
+    }
+
+    public void testViewShowsPrefetchedName() {
+        final ContactListItemView view = new ContactListItemView(getContext(), null);
+        view.setRowTextPrecomputer(mPrecomputer);
+        view.setHighlightedPrefix("DO");
+        view.setDisplayName("John Doe");
+        mPrecomputer.prefetch(Arrays.asList("John Doe"), "DO");
+        mExecutor.runAll();
+
+        view.setDisplayName("John Doe");
+        final CharSequence text = view.getNameTextView().getText();
+        assertEquals("John Doe", text.toString());
+        // Not the text the view builds itself.
+        assertFalse(text instanceof SpannableStringBuilder);
+    }
+}
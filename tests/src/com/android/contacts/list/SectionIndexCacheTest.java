@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.list;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SectionIndexCache}.
+ */
+@SmallTest
+public class SectionIndexCacheTest extends AndroidTestCase {
+    private SharedPreferences mPrefs;
+    private SectionIndexCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = getContext().getSharedPreferences("section_index_cache_test",
+                Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+        mCache = new SectionIndexCache(mPrefs);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    private static Bundle index(String[] titles, int[] counts) {
+        final Bundle extras = new Bundle();
+        extras.putStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES, titles);
+        extras.putIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS, counts);
+        return extras;
+    }
+
+    public void testRoundTrip() {
+        assertNull(mCache.get("list"));
+        mCache.put("list", index(new String[] { "A", "B" }, new int[] { 3, 5 }));
+        final Bundle cached = mCache.get("list");
+        assertTrue(Arrays.equals(new String[] { "A", "B" },
+                cached.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES)));
+        assertTrue(Arrays.equals(new int[] { 3, 5 },
+                cached.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
+    }
+
+    public void testExtrasWithoutIndexAreIgnored() {
+        mCache.put("list", new Bundle());
+        mCache.put("list", null);
+        assertNull(mCache.get("list"));
+    }
+
+    public void testKeyIgnoresIndexAndLimit() {
+        final Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY, "0").build();
+        final Uri indexed = uri.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true")
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "50").build();
+        assertEquals(uri, SectionIndexCache.withoutIndex(indexed));
+        assertEquals(SectionIndexCache.getKey(uri, "sel", null, "sort"),
+                SectionIndexCache.getKey(indexed, "sel", null, "sort"));
+        assertFalse(SectionIndexCache.getKey(uri, "sel", null, "sort").equals(
+                SectionIndexCache.getKey(uri, "sel", null, "other sort")));
+    }
+
+    public void testEntriesAreBounded() {
+        for (int i = 0; i <= SectionIndexCache.MAX_ENTRIES; i++) {
+            mCache.put("list " + i, index(new String[] { "A" }, new int[] { i }));
+        }
+        assertTrue(mPrefs.getAll().size() <= SectionIndexCache.MAX_ENTRIES);
+        assertNotNull(mCache.get("list " + SectionIndexCache.MAX_ENTRIES));
+    }
+}
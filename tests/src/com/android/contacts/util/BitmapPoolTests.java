@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link BitmapPool} and the pooled decoding in {@link BitmapUtil}.
+ */
+@SmallTest
+public class BitmapPoolTests extends AndroidTestCase {
+    public void testGetReturnsLargeEnoughBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNull(pool.get(128 * 128 * 4));
+        assertSame(bitmap, pool.get(60 * 60 * 4));
+        assertNull(pool.get(60 * 60 * 4));
+        assertEquals(1, pool.hitCount());
+        assertEquals(2, pool.missCount());
+    }
+
+    public void testDoesNotHandOutMuchLargerBitmaps() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888));
+
+        assertNull(pool.get(16 * 16 * 4));
+    }
+
+    public void testRejectsImmutableBitmaps() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap mutable = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        pool.put(mutable.copy(Bitmap.Config.ARGB_8888, false));
+
+        assertEquals(0, pool.size());
+    }
+
+    public void testEvictsLargestFirst() {
+        final Bitmap small = Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888);
+        final Bitmap large = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        final BitmapPool pool = new BitmapPool(
+                large.getAllocationByteCount() + small.getAllocationByteCount() / 2);
+        pool.put(large);
+        pool.put(small);
+
+        assertEquals(small.getAllocationByteCount(), pool.size());
+        assertEquals(1, pool.evictionCount());
+        assertSame(small, pool.get(small.getByteCount()));
+    }
+
+    public void testDecodeReusesPooledBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap pooled = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(pooled);
+
+        final Bitmap decoded = BitmapUtil.decodeBitmapFromBytes(createJpeg(80, 60), 1, pool);
+        assertSame(pooled, decoded);
+        assertEquals(80, decoded.getWidth());
+        assertEquals(60, decoded.getHeight());
+        assertTrue(decoded.isMutable());
+    }
+
+    public void testCropToSquareReturnsSourceToPool() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap source = Bitmap.createBitmap(80, 60, Bitmap.Config.ARGB_8888);
+
+        final Bitmap square = BitmapUtil.cropToSquare(source, pool);
+        assertEquals(60, square.getWidth());
+        assertEquals(60, square.getHeight());
+        assertSame(source, pool.get(60 * 60 * 4));
+    }
+
+    public void testRenderCircularUsesPooledBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap pooled = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        pool.put(pooled);
+        final Bitmap source = Bitmap.createBitmap(60, 60, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.RED);
+
+        final Bitmap circular = BitmapUtil.renderCircular(source, pool);
+        assertSame(pooled, circular);
+        assertEquals(60, circular.getWidth());
+        assertEquals(Color.TRANSPARENT, circular.getPixel(0, 0));
+        assertEquals(Color.RED, circular.getPixel(30, 30));
+        // The source is still in use and must not be pooled.
+        assertEquals(0, pool.size());
+    }
+
+    private static byte[] createJpeg(int width, int height) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        return out.toByteArray();
+    }
+}